@@ -0,0 +1,110 @@
+/**
+ * BatchBenchmark.java
+ * Measures BatchCommands on generated command scripts, with the changes saved to a
+ * temporary data directory. A script adds the given number of events, then updates
+ * half of them, deletes a tenth, and lists and searches in between. It reports the
+ * commands run per second and the commands that failed (should be 0).
+ *
+ * Settings are read from system properties:
+ *   sizes       comma separated numbers of events added   (default 10000,100000)
+ *   iterations  runs of each script                        (default 3)
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+
+
+public class BatchBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = EventsBenchmark.parseSizes(System.getProperty("sizes", "10000,100000"));
+		int iterations = Integer.getInteger("iterations", 3);
+
+		System.out.println(String.format(Locale.US, "%9s %10s %10s %14s %10s",
+				"events", "commands", "ms", "commands/s", "errors"));
+		for (int size : sizes) {
+			for (int iteration = 0; iteration < iterations; iteration++) {
+				String script = writeScript(size);
+				File dataDirectory = Files.createTempDirectory("events").toFile();
+				try {
+					EventStore.initialize();
+					EventsManager eventsManager = new EventsManager();
+					eventsManager.persistence = new EventPersistence(dataDirectory, eventsManager,
+							EventPersistence.DEFAULT_SNAPSHOT_INTERVAL);
+					eventsManager.persistence.recover();
+					StringWriter output = new StringWriter();
+					long start = System.nanoTime();
+					int commands = new BatchCommands(eventsManager,
+							new BufferedReader(new StringReader(script)), output).run();
+					long elapsed = System.nanoTime() - start;
+					eventsManager.closePersistence();
+					System.out.println(String.format(Locale.US, "%9d %10d %10d %14.1f %10d",
+							size, commands, elapsed / 1000000, commands * 1e9 / elapsed,
+							countErrors(output.toString())));
+				} finally {
+					for (File file : dataDirectory.listFiles()) {
+						file.delete();
+					}
+					dataDirectory.delete();
+				}
+			}
+		}
+	}
+
+	/*
+	 * writes the commands for an empty store of the given size. The script has to be
+	 * run right away, its updates and deletes use the ids the next events will get
+	 */
+	static String writeScript(int size) {
+		EventsBenchmark.EventGenerator generator = new EventsBenchmark.EventGenerator(
+				EventsBenchmark.parseMix("NONE:90,DAILY:1,WEEKLY:3,MONTHLY:3,YEARLY:3"),
+				Math.max(1, size / 10), 42);
+		// the generated events take ids too, so they are all made before the first id is known
+		Event[] events = new Event[size + size / 2];
+		for (int i = 0; i < events.length; i++) {
+			events[i] = generator.next();
+		}
+		int firstId = Event.getNextId();
+		SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy,HH:mm");
+		Random random = new Random(7);
+		StringBuilder script = new StringBuilder(size * 80);
+		for (int i = 0; i < size; i++) {
+			Event event = events[i];
+			script.append("add,").append(dateFormat.format(event.getDate())).append(',')
+					.append(event.getName()).append(",\"").append(event.getNotes().replace("\"", "\"\""))
+					.append("\",").append(event.getReminder()).append(',').append(event.getFrequency())
+					.append('\n');
+			if (i % 1000 == 999) {
+				script.append("list,").append(random.nextInt(12) + 1).append(',')
+						.append(EventsBenchmark.FIRST_YEAR + random.nextInt(10)).append('\n');
+				script.append("search,").append(events[random.nextInt(i)].getName()).append('\n');
+			}
+		}
+		for (int i = 0; i < size / 2; i++) {
+			Event event = events[size + i];
+			script.append("update,").append(firstId + random.nextInt(size)).append(',')
+					.append(dateFormat.format(event.getDate())).append(',').append(event.getName())
+					.append(",updated ").append(i).append(",15,NONE\n");
+		}
+		for (int i = 0; i < size / 10; i++) {
+			script.append("delete,").append(firstId + i * 10).append('\n');
+		}
+		return script.toString();
+	}
+
+	private static int countErrors(String output) {
+		int errors = 0;
+		output = "\n" + output;
+		for (int i = output.indexOf("\nerror,"); i >= 0; i = output.indexOf("\nerror,", i + 1)) {
+			errors++;
+		}
+		return errors;
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * ConcurrentReadBenchmark.java
+ * Stress test for the EventStore. Reader threads run name lookups and month listings
+ * while a writer keeps adding, updating and deleting events. It reports the read
+ * throughput for each number of readers, how it scales against one reader, and how
+ * many reads saw the indexes disagree with each other (should always be 0).
+ *
+ * Settings are read from system properties:
+ *   size         number of events in the store          (default 100000)
+ *   maxThreads   largest number of reader threads        (default number of processors)
+ *   seconds      length of each measurement              (default 5)
+ *   writer       run the writer thread during the reads  (default true)
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class ConcurrentReadBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int size = Integer.getInteger("size", 100000);
+		int maxThreads = Integer.getInteger("maxThreads", Runtime.getRuntime().availableProcessors());
+		int seconds = Integer.getInteger("seconds", 5);
+		boolean withWriter = Boolean.parseBoolean(System.getProperty("writer", "true"));
+
+		final EventsManager eventsManager = new EventsManager();
+		EventsBenchmark.EventGenerator generator = new EventsBenchmark.EventGenerator(
+				EventsBenchmark.parseMix("NONE:90,DAILY:1,WEEKLY:3,MONTHLY:3,YEARLY:3"),
+				Math.max(1, size / 10), 42);
+		EventsBenchmark.populate(eventsManager, generator, size);
+
+		System.out.println("# " + size + " events, " + Runtime.getRuntime().availableProcessors()
+				+ " processors, writer " + (withWriter ? "on" : "off"));
+		System.out.println(String.format(Locale.US, "%8s %14s %10s %12s %14s",
+				"readers", "reads/s", "scaling", "writes/s", "inconsistent"));
+		// one untimed round so the first measurement is not the one that warms up the JIT
+		run(eventsManager, size, 1, seconds, withWriter);
+		double singleThreadRate = 0;
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			double[] rates = run(eventsManager, size, threads, seconds, withWriter);
+			if (threads == 1) {
+				singleThreadRate = rates[0];
+			}
+			System.out.println(String.format(Locale.US, "%8d %14.1f %10.2f %12.1f %14d",
+					threads, rates[0], rates[0] / singleThreadRate, rates[1], (long) rates[2]));
+		}
+	}
+
+	/*
+	 * runs the readers and the writer for the given time.
+	 * returns reads per second, writes per second and the number of inconsistent reads
+	 */
+	static double[] run(final EventsManager eventsManager, final int size, int threads, int seconds,
+			boolean withWriter) throws InterruptedException {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong reads = new AtomicLong();
+		final AtomicLong writes = new AtomicLong();
+		final AtomicLong inconsistent = new AtomicLong();
+		final CountDownLatch started = new CountDownLatch(threads + (withWriter ? 1 : 0));
+		List<Thread> workers = new ArrayList<Thread>();
+
+		for (int t = 0; t < threads; t++) {
+			final long seed = t;
+			workers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random(seed);
+					long count = 0;
+					started.countDown();
+					while (running.get()) {
+						if (random.nextInt(16) == 0) {
+							eventsManager.getMonthEvents(random.nextInt(12),
+									EventsBenchmark.FIRST_YEAR + random.nextInt(31));
+						} else if (!readConsistently("Event " + random.nextInt(Math.max(1, size / 10)))) {
+							inconsistent.incrementAndGet();
+						}
+						count++;
+					}
+					reads.addAndGet(count);
+				}
+			}, "reader-" + t));
+		}
+
+		if (withWriter) {
+			workers.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random(-1);
+					long count = 0;
+					started.countDown();
+					while (running.get()) {
+						Collection<Event> events = eventsManager.findEventsByName(
+								"Event " + random.nextInt(Math.max(1, size / 10)));
+						if (events == null || events.isEmpty()) {
+							continue;
+						}
+						Event event = events.iterator().next();
+						// move the event to another name and date, then delete and re-add it
+						eventsManager.updateInMaps(event, new Date(event.getDate().getTime() + 3600000L),
+								"Event " + random.nextInt(Math.max(1, size / 10)), event.getNotes(),
+								event.getReminder(), event.getFrequency());
+						eventsManager.deleteFromMaps(event);
+						eventsManager.addToMaps(event);
+						count += 3;
+					}
+					writes.addAndGet(count);
+				}
+			}, "writer"));
+		}
+
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		started.await();
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		running.set(false);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+		return new double[] { reads.get() / elapsedSeconds, writes.get() / elapsedSeconds, inconsistent.get() };
+	}
+
+	/*
+	 * looks up a name and checks, in the same read, that every event found is in
+	 * handles and in the time index of its frequency
+	 */
+	static boolean readConsistently(final String name) {
+		return EventStore.read(new EventStore.Query<Boolean>() {
+			@Override
+			public Boolean run() {
+				NavigableMap<Integer, Event> events = EventStore.nameMap.get(name.toLowerCase());
+				if (events == null) {
+					return true;
+				}
+				for (Event event : events.values()) {
+					EventHandle handle = EventStore.handles.get(event.getId());
+					if (handle == null || handle.getEvent() != event
+							|| !event.getName().equalsIgnoreCase(name)
+							|| !isInTimeIndex(event)) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+	}
+
+	static boolean isInTimeIndex(Event event) {
+		long start = event.getDate().getTime();
+		EventTimeIndex index;
+		switch (event.getFrequency()) {
+		case DAILY:
+			index = EventStore.dailyEvents;
+			break;
+		case WEEKLY:
+			index = EventStore.weeklyEvents;
+			break;
+		case MONTHLY:
+			index = EventStore.monthlyEvents;
+			break;
+		case YEARLY:
+			index = null;
+			for (EventTimeIndex yearlyIndex : EventStore.yearlyEvents.values()) {
+				for (Event indexed : yearlyIndex.between(start, start + 1)) {
+					if (indexed == event) {
+						return true;
+					}
+				}
+			}
+			return false;
+		default:
+			index = EventStore.nonRecurringEvents;
+		}
+		for (Event indexed : index.between(start, start + 1)) {
+			if (indexed == event) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
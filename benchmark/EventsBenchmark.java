@@ -0,0 +1,578 @@
+/**
+ * EventsBenchmark.java
+ * Benchmarks the EventsManager hot paths on stores of realistic size.
+ * Every benchmark reports throughput, time per operation and allocation per operation
+ * so that a run can be compared with the committed baseline.
+ *
+ * Settings are read from system properties:
+ *   sizes       comma separated store sizes                   (default 1000,100000,1000000)
+ *   mix         FREQUENCY:weight pairs for generated events    (default NONE:90,DAILY:1,WEEKLY:3,MONTHLY:3,YEARLY:3)
+ *   benchmarks  comma separated benchmark names                (default all)
+ *   warmup      warmup iterations                              (default 3)
+ *   iterations  measured iterations                            (default 5)
+ *   iterationMillis  length of one iteration                   (default 1000)
+ *   baseline    results file to compare against                (optional)
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+
+public class EventsBenchmark {
+
+	// events are spread over these years
+	static final int FIRST_YEAR = 2000;
+	static final int LAST_YEAR = 2030;
+	// number of events added or deleted by one batch of the add/delete benchmarks
+	static final int CHURN_BATCH = 1000;
+	// occurrences of an agenda read under one read lock, as by the batch agenda
+	static final int AGENDA_PAGE_SIZE = 1024;
+
+	static final PrintStream console = System.out;
+	static final PrintStream nullStream = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = parseSizes(System.getProperty("sizes", "1000,100000,1000000"));
+		Map<Event.Frequency, Integer> mix = parseMix(System.getProperty("mix",
+				"NONE:90,DAILY:1,WEEKLY:3,MONTHLY:3,YEARLY:3"));
+		List<String> selected = Arrays.asList(System.getProperty("benchmarks",
+				"addToMaps,deleteFromMaps,updateInMaps,listEvents,getMonthEvents,getBusiestDay,agendaMonth,findEventsByName,"
+				+ "searchEventsByName,searchNotes,printCalendarMonthYear")
+				.split(","));
+		int warmup = Integer.getInteger("warmup", 3);
+		int iterations = Integer.getInteger("iterations", 5);
+		long iterationMillis = Long.getLong("iterationMillis", 1000);
+		Map<String, Result> baseline = readBaseline(System.getProperty("baseline"));
+
+		console.println("# mix " + mix + ", " + warmup + " warmup and " + iterations
+				+ " measured iterations of " + iterationMillis + " ms");
+		console.println(Result.HEADER);
+		for (int size : sizes) {
+			EventsManager eventsManager = new EventsManager();
+			EventGenerator generator = new EventGenerator(mix, Math.max(1, size / 10), 42);
+			populate(eventsManager, generator, size);
+
+			for (Benchmark benchmark : createBenchmarks(eventsManager, generator)) {
+				if (!selected.contains(benchmark.name)) {
+					continue;
+				}
+				Result result = run(benchmark, size, warmup, iterations, iterationMillis);
+				console.println(result.format(baseline.get(result.key())));
+			}
+		}
+	}
+
+	/*
+	 * fills a fresh store with generated events through EventsManager.addToMaps
+	 */
+	static void populate(EventsManager eventsManager, EventGenerator generator, int size) {
+		EventStore.initialize();
+		for (int i = 0; i < size; i++) {
+			eventsManager.addToMaps(generator.next());
+		}
+	}
+
+	static List<Benchmark> createBenchmarks(final EventsManager eventsManager,
+			final EventGenerator generator) {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		benchmarks.add(new Benchmark("addToMaps", CHURN_BATCH) {
+			Event[] batch = new Event[CHURN_BATCH];
+
+			@Override
+			void beforeBatch() {
+				for (int i = 0; i < batch.length; i++) {
+					batch[i] = generator.next();
+				}
+			}
+
+			@Override
+			void operation(int i) {
+				eventsManager.addToMaps(batch[i]);
+			}
+
+			@Override
+			void afterBatch() {
+				for (Event event : batch) {
+					eventsManager.deleteFromMaps(event);
+				}
+			}
+		});
+
+		benchmarks.add(new Benchmark("deleteFromMaps", CHURN_BATCH) {
+			Event[] batch = new Event[CHURN_BATCH];
+
+			@Override
+			void beforeBatch() {
+				for (int i = 0; i < batch.length; i++) {
+					batch[i] = generator.next();
+					eventsManager.addToMaps(batch[i]);
+				}
+			}
+
+			@Override
+			void operation(int i) {
+				eventsManager.deleteFromMaps(batch[i]);
+			}
+		});
+
+		// moves each event to the date, name, notes and frequency of another generated one
+		benchmarks.add(new Benchmark("updateInMaps", CHURN_BATCH) {
+			Event[] batch = new Event[CHURN_BATCH];
+			Event[] changes = new Event[CHURN_BATCH];
+
+			@Override
+			void beforeBatch() {
+				for (int i = 0; i < batch.length; i++) {
+					batch[i] = generator.next();
+					changes[i] = generator.next();
+					eventsManager.addToMaps(batch[i]);
+				}
+			}
+
+			@Override
+			void operation(int i) {
+				Event change = changes[i];
+				eventsManager.updateInMaps(batch[i], change.getDate(), change.getName(), change.getNotes(),
+						change.getReminder(), change.getFrequency());
+			}
+
+			@Override
+			void afterBatch() {
+				for (Event event : batch) {
+					eventsManager.deleteFromMaps(event);
+				}
+			}
+		});
+
+		benchmarks.add(new Benchmark("listEvents", 12) {
+			int year = FIRST_YEAR;
+
+			@Override
+			void beforeBatch() {
+				System.setOut(nullStream);
+			}
+
+			@Override
+			void operation(int i) {
+				eventsManager.listEvents(i, year);
+			}
+
+			@Override
+			void afterBatch() {
+				System.setOut(console);
+				year = year == LAST_YEAR ? FIRST_YEAR : year + 1;
+			}
+		});
+
+		// the month query without printing, its allocation should be the result lists only
+		benchmarks.add(new Benchmark("getMonthEvents", 12) {
+			int year = FIRST_YEAR;
+
+			@Override
+			void operation(int i) {
+				eventsManager.getMonthEvents(i, year);
+			}
+
+			@Override
+			void afterBatch() {
+				year = year == LAST_YEAR ? FIRST_YEAR : year + 1;
+			}
+		});
+
+		// looks up every day of a year in the day counts
+		benchmarks.add(new Benchmark("getBusiestDay", 1) {
+			int year = FIRST_YEAR;
+
+			@Override
+			void operation(int i) {
+				eventsManager.getBusiestDay(Utility.getMonthStartDay(Calendar.JANUARY, year),
+						Utility.getMonthStartDay(Calendar.JANUARY, year + 1));
+			}
+
+			@Override
+			void afterBatch() {
+				year = year == LAST_YEAR ? FIRST_YEAR : year + 1;
+			}
+		});
+
+		// reads all the occurrences of a month in time order, in pages like the batch agenda
+		benchmarks.add(new Benchmark("agendaMonth", 12) {
+			int year = FIRST_YEAR;
+
+			@Override
+			void operation(int i) {
+				long from = Utility.getMonthStartMillis(i, year);
+				long to = i == Calendar.DECEMBER ? Utility.getMonthStartMillis(Calendar.JANUARY, year + 1)
+						: Utility.getMonthStartMillis(i + 1, year);
+				Agenda.Cursor cursor = null;
+				List<Occurrence> page;
+				do {
+					page = eventsManager.getOccurrences(from, to, AGENDA_PAGE_SIZE, cursor);
+					if (!page.isEmpty()) {
+						Occurrence last = page.get(page.size() - 1);
+						cursor = new Agenda.Cursor(last.getStartMillis(), last.getEvent().getId());
+					}
+				} while (page.size() == AGENDA_PAGE_SIZE);
+			}
+
+			@Override
+			void afterBatch() {
+				year = year == LAST_YEAR ? FIRST_YEAR : year + 1;
+			}
+		});
+
+		// the conflict check of adding an event: its first four weeks, each occurrence a query
+		benchmarks.add(new Benchmark("getConflicts", CHURN_BATCH) {
+			Event[] batch = new Event[CHURN_BATCH];
+
+			@Override
+			void beforeBatch() {
+				for (int i = 0; i < batch.length; i++) {
+					batch[i] = generator.next();
+				}
+			}
+
+			@Override
+			void operation(int i) {
+				long start = batch[i].getStartMillis();
+				eventsManager.getConflicts(batch[i], start,
+						start + EventsManager.CONFLICT_CHECK_DAYS * Utility.DAY_MILLIS);
+			}
+		});
+
+		// the free windows of a day
+		benchmarks.add(new Benchmark("getFreeSlots", 1000) {
+			long day = Utility.getMonthStartDay(Calendar.JANUARY, FIRST_YEAR);
+
+			@Override
+			void operation(int i) {
+				eventsManager.getFreeSlots(Utility.getMillis(day + i, 0), Utility.getMillis(day + i + 1, 0), 30);
+			}
+
+			@Override
+			void afterBatch() {
+				day += 1000;
+				if (day + 1000 > Utility.getMonthStartDay(Calendar.JANUARY, LAST_YEAR + 1)) {
+					day = Utility.getMonthStartDay(Calendar.JANUARY, FIRST_YEAR);
+				}
+			}
+		});
+
+		benchmarks.add(new Benchmark("findEventsByName", 1000) {
+			String[] names = new String[1000];
+
+			@Override
+			void beforeBatch() {
+				for (int i = 0; i < names.length; i++) {
+					names[i] = generator.nextName();
+				}
+			}
+
+			@Override
+			void operation(int i) {
+				eventsManager.findEventsByName(names[i]);
+			}
+		});
+
+		benchmarks.add(new Benchmark("searchEventsByName", 1000) {
+			String[] queries = new String[1000];
+
+			@Override
+			void beforeBatch() {
+				// the number part of a name, found inside many longer names too
+				for (int i = 0; i < queries.length; i++) {
+					String name = generator.nextName();
+					queries[i] = name.substring(name.indexOf(' ') + 1);
+				}
+			}
+
+			@Override
+			void operation(int i) {
+				eventsManager.searchEventsByName(queries[i], EventsManager.MAX_SEARCH_NAMES);
+			}
+		});
+
+		benchmarks.add(new Benchmark("searchNotes", 1000) {
+			String[] queries = new String[1000];
+			Random random = new Random(7);
+
+			@Override
+			void beforeBatch() {
+				// a word every event has together with a rare one, and an alternative
+				for (int i = 0; i < queries.length; i++) {
+					queries[i] = "event " + random.nextInt(1000) + " OR " + random.nextInt(1000);
+				}
+			}
+
+			@Override
+			void operation(int i) {
+				eventsManager.searchNotes(queries[i], Long.MIN_VALUE, Long.MAX_VALUE);
+			}
+		});
+
+		benchmarks.add(new Benchmark("printCalendarMonthYear", 12) {
+			int daysToMark = -1;
+
+			@Override
+			void beforeBatch() {
+				System.setOut(nullStream);
+				if (daysToMark < 0) {
+					daysToMark = eventsManager.listEvents(Calendar.JUNE, FIRST_YEAR + 10);
+				}
+			}
+
+			@Override
+			void operation(int i) {
+				EventsCalendar.printCalendarMonthYear(i, FIRST_YEAR + 10, daysToMark);
+			}
+
+			@Override
+			void afterBatch() {
+				System.setOut(console);
+			}
+		});
+		return benchmarks;
+	}
+
+	/*
+	 * runs warmup and measured iterations of a benchmark.
+	 * Only the operations of a batch are timed, its set up and clean up are not
+	 */
+	static Result run(Benchmark benchmark, int size, int warmup, int iterations, long iterationMillis) {
+		long totalOps = 0;
+		long totalNanos = 0;
+		long totalBytes = 0;
+		long gcCount = 0;
+		for (int iteration = 0; iteration < warmup + iterations; iteration++) {
+			boolean measured = iteration >= warmup;
+			long gcBefore = getGcCount();
+			long deadline = System.nanoTime() + iterationMillis * 1000000L;
+			while (System.nanoTime() < deadline) {
+				benchmark.beforeBatch();
+				long bytesBefore = Allocation.threadAllocatedBytes();
+				long start = System.nanoTime();
+				for (int i = 0; i < benchmark.batchSize; i++) {
+					benchmark.operation(i);
+				}
+				long elapsed = System.nanoTime() - start;
+				long bytes = Allocation.threadAllocatedBytes() - bytesBefore;
+				benchmark.afterBatch();
+				if (measured) {
+					totalOps += benchmark.batchSize;
+					totalNanos += elapsed;
+					totalBytes += bytes;
+				}
+			}
+			if (measured) {
+				gcCount += getGcCount() - gcBefore;
+			}
+		}
+		return new Result(benchmark.name, size, totalOps, totalNanos, totalBytes, gcCount);
+	}
+
+	static long getGcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	static int[] parseSizes(String value) {
+		String[] parts = value.split(",");
+		int[] sizes = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			sizes[i] = Integer.parseInt(parts[i].trim());
+		}
+		return sizes;
+	}
+
+	static Map<Event.Frequency, Integer> parseMix(String value) {
+		Map<Event.Frequency, Integer> mix = new LinkedHashMap<Event.Frequency, Integer>();
+		for (String part : value.split(",")) {
+			String[] pair = part.split(":");
+			mix.put(Event.Frequency.valueOf(pair[0].trim().toUpperCase(Locale.US)),
+					Integer.parseInt(pair[1].trim()));
+		}
+		return mix;
+	}
+
+	static Map<String, Result> readBaseline(String fileName) throws IOException {
+		Map<String, Result> baseline = new HashMap<String, Result>();
+		if (fileName == null) {
+			return baseline;
+		}
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Result result = Result.parse(line);
+				if (result != null) {
+					baseline.put(result.key(), result);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return baseline;
+	}
+
+	/*
+	 * A benchmarked operation. operation(i) is called batchSize times per batch
+	 * with i going from 0 to batchSize - 1
+	 */
+	static abstract class Benchmark {
+		final String name;
+		final int batchSize;
+
+		Benchmark(String name, int batchSize) {
+			this.name = name;
+			this.batchSize = batchSize;
+		}
+
+		void beforeBatch() {
+		}
+
+		abstract void operation(int i);
+
+		void afterBatch() {
+		}
+	}
+
+	/*
+	 * Generates random events and names with a fixed seed so runs are comparable
+	 */
+	static class EventGenerator {
+		private final Random random;
+		private final Event.Frequency[] frequencies;
+		private final int nameCount;
+		private final long firstMillis;
+		private final long lastMillis;
+
+		EventGenerator(Map<Event.Frequency, Integer> mix, int nameCount, long seed) {
+			this.random = new Random(seed);
+			this.nameCount = nameCount;
+			List<Event.Frequency> weighted = new ArrayList<Event.Frequency>();
+			for (Map.Entry<Event.Frequency, Integer> entry : mix.entrySet()) {
+				for (int i = 0; i < entry.getValue(); i++) {
+					weighted.add(entry.getKey());
+				}
+			}
+			this.frequencies = weighted.toArray(new Event.Frequency[weighted.size()]);
+			this.firstMillis = Utility.getMonthStartMillis(Calendar.JANUARY, FIRST_YEAR);
+			this.lastMillis = Utility.getMonthStartMillis(Calendar.JANUARY, LAST_YEAR + 1);
+		}
+
+		Event next() {
+			// whole minutes like the ones entered through the terminal
+			long minutes = (lastMillis - firstMillis) / 60000;
+			long millis = firstMillis + (long) (random.nextDouble() * minutes) * 60000;
+			Event.Frequency frequency = frequencies[random.nextInt(frequencies.length)];
+			return new Event(new Date(millis), nextName(), "notes for the event " + random.nextInt(1000),
+					random.nextInt(4) * 15, frequency, random.nextInt(5) * 30);
+		}
+
+		String nextName() {
+			return "Event " + random.nextInt(nameCount);
+		}
+	}
+
+	/*
+	 * Measurements of one benchmark at one store size
+	 */
+	static class Result {
+		static final String HEADER = String.format(Locale.US, "%-30s %9s %14s %12s %12s %12s %6s",
+				"benchmark", "size", "ops/s", "ns/op", "B/op", "MB/s alloc", "gcs");
+
+		final String name;
+		final int size;
+		final double opsPerSecond;
+		final double nanosPerOp;
+		final double bytesPerOp;
+		final double allocMbPerSecond;
+		final long gcCount;
+
+		Result(String name, int size, long ops, long nanos, long bytes, long gcCount) {
+			this(name, size, ops * 1e9 / nanos, (double) nanos / ops, (double) bytes / ops,
+					bytes / 1048576.0 / (nanos / 1e9), gcCount);
+		}
+
+		Result(String name, int size, double opsPerSecond, double nanosPerOp, double bytesPerOp,
+				double allocMbPerSecond, long gcCount) {
+			this.name = name;
+			this.size = size;
+			this.opsPerSecond = opsPerSecond;
+			this.nanosPerOp = nanosPerOp;
+			this.bytesPerOp = bytesPerOp;
+			this.allocMbPerSecond = allocMbPerSecond;
+			this.gcCount = gcCount;
+		}
+
+		String key() {
+			return name + "@" + size;
+		}
+
+		String format(Result baseline) {
+			String line = String.format(Locale.US, "%-30s %9d %14.1f %12.1f %12.1f %12.1f %6d",
+					name, size, opsPerSecond, nanosPerOp, bytesPerOp, allocMbPerSecond, gcCount);
+			if (baseline != null) {
+				line += String.format(Locale.US, "   (%+.1f%% ops/s, %+.1f B/op vs baseline)",
+						(opsPerSecond / baseline.opsPerSecond - 1) * 100, bytesPerOp - baseline.bytesPerOp);
+			}
+			return line;
+		}
+
+		/*
+		 * parses a line written by format, returns null for other lines
+		 */
+		static Result parse(String line) {
+			String[] fields = line.trim().split("\\s+");
+			if (line.startsWith("#") || fields.length < 7 || fields[0].equals("benchmark")) {
+				return null;
+			}
+			try {
+				return new Result(fields[0], Integer.parseInt(fields[1]), Double.parseDouble(fields[2]),
+						Double.parseDouble(fields[3]), Double.parseDouble(fields[4]),
+						Double.parseDouble(fields[5]), Long.parseLong(fields[6]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+
+	/*
+	 * Reads the bytes allocated by the current thread from the HotSpot thread bean
+	 */
+	static class Allocation {
+		private static final com.sun.management.ThreadMXBean threadBean =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		static long threadAllocatedBytes() {
+			return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+	}
+}
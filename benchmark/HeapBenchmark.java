@@ -0,0 +1,87 @@
+/**
+ * HeapBenchmark.java
+ * Measures the heap taken by a store of generated events. The events are generated with
+ * their own copies of their names and notes, like events parsed from a file, and the
+ * heap is measured after a full collection three times: with no events, with the
+ * events held in a list, and with the same events added to the store as well. Adding
+ * them makes the events share the names kept by EventStore.names and moves their notes
+ * out of the heap into EventStore.notes, so the store can take less heap than the
+ * events had taken on their own. The direct buffers holding the notes are reported
+ * separately.
+ *
+ * Settings are read from system properties:
+ *   sizes       comma separated numbers of events   (default 1000000)
+ *   names       distinct names, as a fraction of the events (default 0.01)
+ *   notesLength characters of notes, a different text for each event, or 0 for
+ *               short notes from a thousand texts (default 0)
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+
+public class HeapBenchmark {
+	// events added to the store under one write lock, like an import
+	private static final int BATCH_SIZE = 100000;
+
+	public static void main(String[] args) {
+		int[] sizes = EventsBenchmark.parseSizes(System.getProperty("sizes", "1000000"));
+		double names = Double.parseDouble(System.getProperty("names", "0.01"));
+		int notesLength = Integer.getInteger("notesLength", 0);
+
+		System.out.println(String.format(Locale.US, "%9s %10s %10s %12s %12s %14s %14s %12s",
+				"events", "names", "notes", "events MB", "store MB", "events B/ev", "store B/ev",
+				"off heap MB"));
+		for (int size : sizes) {
+			EventStore.initialize();
+			long empty = getHeapUsedAfterGc();
+			EventsBenchmark.EventGenerator generator = new EventsBenchmark.EventGenerator(
+					EventsBenchmark.parseMix("NONE:90,DAILY:1,WEEKLY:3,MONTHLY:3,YEARLY:3"),
+					Math.max(1, (int) (size * names)), 42);
+			List<Event> events = new ArrayList<Event>(size);
+			for (int i = 0; i < size; i++) {
+				Event event = generator.next();
+				if (notesLength > 0) {
+					event.setNotes(getLongNotes(event.getNotes(), i, notesLength));
+				}
+				events.add(event);
+			}
+			long withEvents = getHeapUsedAfterGc() - empty;
+
+			EventsManager eventsManager = new EventsManager();
+			for (int from = 0; from < size; from += BATCH_SIZE) {
+				eventsManager.addAllToMaps(events.subList(from, Math.min(size, from + BATCH_SIZE)));
+			}
+			long withStore = getHeapUsedAfterGc() - empty;
+			System.out.println(String.format(Locale.US, "%9d %10d %10d %12.1f %12.1f %14.1f %14.1f %12.1f",
+					size, EventStore.names.size(), EventStore.notes.size(), withEvents / 1048576.0,
+					withStore / 1048576.0, (double) withEvents / size, (double) withStore / size,
+					EventStore.notes.getAllocatedBytes() / 1048576.0));
+			events = null;
+			EventStore.initialize();
+		}
+	}
+
+	/*
+	 * returns notes of the given length starting with the event number, so every
+	 * event has its own text
+	 */
+	private static String getLongNotes(String notes, int number, int length) {
+		StringBuilder text = new StringBuilder(length);
+		text.append(number).append(' ');
+		while (text.length() < length) {
+			text.append(notes).append(". ");
+		}
+		text.setLength(length);
+		return text.toString();
+	}
+
+	private static long getHeapUsedAfterGc() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
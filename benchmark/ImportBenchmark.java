@@ -0,0 +1,147 @@
+/**
+ * ImportBenchmark.java
+ * Measures EventImporter on generated CSV and EventCodec (.evb) files. For each size
+ * the same generated events are written to both files, then each file is imported
+ * into an empty store a few times. It reports the file size, the import time and
+ * throughput, and the rejected rows (should be 0). For .evb files it also reports the
+ * rate at which the file is decoded alone, without adding the events to the store.
+ *
+ * Settings are read from system properties:
+ *   sizes       comma separated numbers of events   (default 100000,1000000)
+ *   threads     number of parsing threads            (default number of processors)
+ *   iterations  imports of each file                 (default 3)
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+
+public class ImportBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = EventsBenchmark.parseSizes(System.getProperty("sizes", "100000,1000000"));
+		int threads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+		int iterations = Integer.getInteger("iterations", 3);
+
+		System.out.println("# " + threads + " parsing threads, " + iterations + " imports per file");
+		System.out.println(String.format(Locale.US, "%6s %9s %10s %10s %14s %12s %10s",
+				"format", "events", "file MB", "ms", "events/s", "decode MB/s", "rejected"));
+		for (int size : sizes) {
+			List<Event> events = generate(size);
+			File csv = writeCsv(events);
+			File evb = writeEncoded(events);
+			events = null;
+			try {
+				runImports("csv", csv, threads, iterations);
+				runImports("evb", evb, threads, iterations);
+			} finally {
+				csv.delete();
+				evb.delete();
+			}
+		}
+	}
+
+	private static void runImports(String format, File file, int threads, int iterations) throws IOException {
+		byte[] bytes = format.equals("evb") ? Files.readAllBytes(file.toPath()) : null;
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			EventStore.initialize();
+			EventImporter.Result result = new EventImporter(new EventsManager(), threads).importFile(file);
+			double decodeRate = bytes == null ? Double.NaN : decodeMegabytesPerSecond(bytes);
+			System.out.println(String.format(Locale.US, "%6s %9d %10.1f %10d %14.1f %12.1f %10d",
+					format, result.getImported(), file.length() / 1048576.0, result.getElapsedNanos() / 1000000,
+					result.getEventsPerSecond(), decodeRate, result.getRejected()));
+		}
+	}
+
+	/*
+	 * decodes an encoded file held in memory, returns the rate in MB of file per second
+	 */
+	private static double decodeMegabytesPerSecond(byte[] bytes) throws IOException {
+		long start = System.nanoTime();
+		EventCodec.Decoder decoder = new EventCodec.Decoder(new ByteArrayInputStream(bytes), true);
+		int count = 0;
+		while (decoder.read() != null) {
+			count++;
+		}
+		long elapsed = System.nanoTime() - start;
+		if (count == 0) {
+			return 0;
+		}
+		return bytes.length / 1048576.0 / (elapsed / 1e9);
+	}
+
+	static List<Event> generate(int size) {
+		EventsBenchmark.EventGenerator generator = new EventsBenchmark.EventGenerator(
+				EventsBenchmark.parseMix("NONE:90,DAILY:1,WEEKLY:3,MONTHLY:3,YEARLY:3"),
+				Math.max(1, size / 10), 42);
+		List<Event> events = new ArrayList<Event>(size);
+		for (int i = 0; i < size; i++) {
+			events.add(generator.next());
+		}
+		return events;
+	}
+
+	/*
+	 * writes a CSV file of events, with a header and quoted notes
+	 */
+	static File writeCsv(List<Event> events) throws IOException {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy,HH:mm");
+		File file = File.createTempFile("events", ".csv");
+		file.deleteOnExit();
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+				StandardCharsets.UTF_8), 1 << 16);
+		try {
+			writer.write("date,time,name,notes,reminder,frequency,duration\n");
+			for (Event event : events) {
+				writer.write(dateFormat.format(event.getDate()) + "," + event.getName() + ",\""
+						+ event.getNotes().replace("\"", "\"\"") + "\"," + event.getReminder() + ","
+						+ event.getFrequency() + "," + event.getDuration() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	/*
+	 * writes an EventCodec file of events, by frequency in start order like an export
+	 */
+	static File writeEncoded(List<Event> events) throws IOException {
+		List<Event> sorted = new ArrayList<Event>(events);
+		Collections.sort(sorted, new Comparator<Event>() {
+			@Override
+			public int compare(Event event1, Event event2) {
+				int order = event1.getFrequency().compareTo(event2.getFrequency());
+				return order != 0 ? order : Long.compare(event1.getStartMillis(), event2.getStartMillis());
+			}
+		});
+		File file = File.createTempFile("events", ".evb");
+		file.deleteOnExit();
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		try {
+			EventCodec.Encoder encoder = new EventCodec.Encoder(output);
+			for (Event event : sorted) {
+				encoder.write(event);
+			}
+			encoder.finish();
+		} finally {
+			output.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * RecurrenceBenchmark.java
+ * Measures listing months of a store full of recurrences that have ended, like years
+ * of weekly meetings that ran for a few months each. The events are generated over the
+ * years of EventsBenchmark and a fraction of them is given a COUNT of 1 to 24
+ * occurrences. The months of the year after the last one are then listed with
+ * getMonthEvents, which only looks at the recurrences still active, and by walking
+ * every recurrence started before the end of the month and checking whether it occurs
+ * in it, which is what listing a month took before recurrences were kept by the time
+ * they end. It prints the time per month of both, the speed up and whether they
+ * listed the same events (should always be true).
+ *
+ * Settings are read from system properties:
+ *   sizes       comma separated numbers of events            (default 10000,100000,1000000)
+ *   ended       fraction of the events given an end          (default 0.95)
+ *   iterations  times the months are listed for each size    (default 5)
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+
+public class RecurrenceBenchmark {
+	private static final int BATCH_SIZE = 100000;
+
+	public static void main(String[] args) {
+		int[] sizes = EventsBenchmark.parseSizes(System.getProperty("sizes", "10000,100000,1000000"));
+		double ended = Double.parseDouble(System.getProperty("ended", "0.95"));
+		int iterations = Integer.getInteger("iterations", 5);
+		int year = EventsBenchmark.LAST_YEAR + 1;
+
+		System.out.println("# recurring events, " + ended + " of them ended, months of " + year);
+		System.out.println(String.format(Locale.US, "%9s %9s %14s %14s %10s %8s", "events", "listed",
+				"us/month", "scan us/month", "speed up", "same"));
+		for (int size : sizes) {
+			EventStore.initialize();
+			EventsManager eventsManager = new EventsManager();
+			EventsBenchmark.EventGenerator generator = new EventsBenchmark.EventGenerator(
+					EventsBenchmark.parseMix("DAILY:1,WEEKLY:3,MONTHLY:3,YEARLY:3"), Math.max(1, size / 10), 42);
+			Random random = new Random(7);
+			List<Event> batch = new ArrayList<Event>(BATCH_SIZE);
+			for (int i = 0; i < size; i++) {
+				Event event = generator.next();
+				if (random.nextDouble() < ended) {
+					event.setRecurrence(Long.MAX_VALUE, 1 + random.nextInt(24), event.getExceptionDays());
+				}
+				batch.add(event);
+				if (batch.size() == BATCH_SIZE || i == size - 1) {
+					eventsManager.addAllToMaps(batch);
+					batch.clear();
+				}
+			}
+
+			int listed = 0;
+			boolean same = true;
+			for (int month = 0; month < 12; month++) {
+				List<Event> events = getRecurring(eventsManager.getMonthEvents(month, year));
+				same &= events.equals(scan(month, year));
+				listed += events.size();
+			}
+			double micros = measure(eventsManager, year, iterations, false);
+			double scanMicros = measure(eventsManager, year, iterations, true);
+			System.out.println(String.format(Locale.US, "%9d %9d %14.1f %14.1f %10.1f %8s", size, listed / 12,
+					micros, scanMicros, scanMicros / micros, same));
+		}
+	}
+
+	/*
+	 * returns the average time to list a month in microseconds, after one untimed year
+	 */
+	private static double measure(EventsManager eventsManager, int year, int iterations, boolean scan) {
+		long start = 0;
+		int sink = 0;
+		for (int i = 0; i <= iterations; i++) {
+			if (i == 1) {
+				start = System.nanoTime();
+			}
+			for (int month = 0; month < 12; month++) {
+				sink += scan ? scan(month, year).size() : eventsManager.getMonthEvents(month, year).daily.size();
+			}
+		}
+		if (sink < 0) {
+			System.out.println(sink);
+		}
+		return (System.nanoTime() - start) / 1e3 / iterations / 12;
+	}
+
+	private static List<Event> getRecurring(EventsManager.MonthEvents monthEvents) {
+		List<Event> events = new ArrayList<Event>();
+		events.addAll(monthEvents.yearly);
+		events.addAll(monthEvents.monthly);
+		events.addAll(monthEvents.weekly);
+		events.addAll(monthEvents.daily);
+		return events;
+	}
+
+	/*
+	 * lists the recurring events occurring in a month by looking at every recurrence
+	 * started before its end
+	 */
+	private static List<Event> scan(final int month, final int year) {
+		return EventStore.read(new EventStore.Query<List<Event>>() {
+			@Override
+			public List<Event> run() {
+				long monthStart = Utility.getMonthStartMillis(month, year);
+				long nextMonthStart = Utility.getMonthStartMillis(month + 1, year);
+				List<Event> events = new ArrayList<Event>();
+				scan(EventStore.yearlyEvents.get(month), monthStart, nextMonthStart, events);
+				scan(EventStore.monthlyEvents, monthStart, nextMonthStart, events);
+				scan(EventStore.weeklyEvents, monthStart, nextMonthStart, events);
+				scan(EventStore.dailyEvents, monthStart, nextMonthStart, events);
+				return events;
+			}
+		});
+	}
+
+	private static void scan(EventTimeIndex index, long monthStart, long nextMonthStart, List<Event> events) {
+		for (Event event : index.startingBefore(nextMonthStart)) {
+			if (RecurrenceExpander.occursBetween(event, monthStart, nextMonthStart)) {
+				events.add(event);
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * ReportBenchmark.java
+ * Measures getMonthEvents over a long range of months, collected on the calling
+ * thread and split into fork-join tasks of a few parallel months sizes. It reports the
+ * time per report, the speed up against the single threaded report and whether the
+ * months came out the same (should always be true).
+ * The tasks run on the common pool, run with
+ * -Djava.util.concurrent.ForkJoinPool.common.parallelism=n to try other numbers of threads.
+ *
+ * Settings are read from system properties:
+ *   size        events in the store                          (default 100000)
+ *   mix         FREQUENCY:weight pairs for generated events     (default NONE:70,DAILY:1,WEEKLY:9,MONTHLY:10,YEARLY:10)
+ *   years       length of the report                          (default 50)
+ *   thresholds  comma separated parallel months to measure     (default 1,12,60)
+ *   iterations  reports measured for each setting              (default 5)
+ */
+
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+
+public class ReportBenchmark {
+
+	public static void main(String[] args) {
+		int size = Integer.getInteger("size", 100000);
+		String mix = System.getProperty("mix", "NONE:70,DAILY:1,WEEKLY:9,MONTHLY:10,YEARLY:10");
+		int months = Integer.getInteger("years", 50) * 12;
+		int[] thresholds = EventsBenchmark.parseSizes(System.getProperty("thresholds", "1,12,60"));
+		int iterations = Integer.getInteger("iterations", 5);
+
+		EventsManager eventsManager = new EventsManager();
+		EventsBenchmark.EventGenerator generator = new EventsBenchmark.EventGenerator(
+				EventsBenchmark.parseMix(mix), Math.max(1, size / 10), 42);
+		EventsBenchmark.populate(eventsManager, generator, size);
+
+		System.out.println("# " + size + " events, mix " + mix + ", " + months + " months, "
+				+ Runtime.getRuntime().availableProcessors() + " processors, pool parallelism "
+				+ ForkJoinPool.getCommonPoolParallelism());
+		System.out.println(String.format(Locale.US, "%16s %12s %10s %8s", "parallel months", "ms/report",
+				"speed up", "same"));
+		eventsManager.setParallelMonths(Integer.MAX_VALUE);
+		List<EventsManager.MonthEvents> expected = report(eventsManager, months);
+		double sequentialMillis = measure(eventsManager, months, iterations);
+		System.out.println(String.format(Locale.US, "%16s %12.1f %10.2f %8s", "none", sequentialMillis, 1.0, true));
+		for (int threshold : thresholds) {
+			eventsManager.setParallelMonths(threshold);
+			boolean same = isSame(expected, report(eventsManager, months));
+			double millis = measure(eventsManager, months, iterations);
+			System.out.println(String.format(Locale.US, "%16d %12.1f %10.2f %8s", threshold, millis,
+					sequentialMillis / millis, same));
+		}
+	}
+
+	private static List<EventsManager.MonthEvents> report(EventsManager eventsManager, int months) {
+		return eventsManager.getMonthEvents(Calendar.JANUARY, EventsBenchmark.FIRST_YEAR, months);
+	}
+
+	/*
+	 * returns the average time of a report in milliseconds, after one untimed report
+	 */
+	private static double measure(EventsManager eventsManager, int months, int iterations) {
+		report(eventsManager, months);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			report(eventsManager, months);
+		}
+		return (System.nanoTime() - start) / 1e6 / iterations;
+	}
+
+	private static boolean isSame(List<EventsManager.MonthEvents> expected, List<EventsManager.MonthEvents> actual) {
+		if (expected.size() != actual.size()) {
+			return false;
+		}
+		for (int i = 0; i < expected.size(); i++) {
+			EventsManager.MonthEvents month1 = expected.get(i);
+			EventsManager.MonthEvents month2 = actual.get(i);
+			if (month1.daysToMark != month2.daysToMark || !month1.nonRecurring.equals(month2.nonRecurring)
+					|| !month1.yearly.equals(month2.yearly) || !month1.monthly.equals(month2.monthly)
+					|| !month1.weekly.equals(month2.weekly) || !month1.daily.equals(month2.daily)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * RestartBenchmark.java
+ * Measures the restart of a store saved by EventPersistence. For each size the
+ * generated events are added to a store saved in a temporary directory, a snapshot is
+ * written and a number of updates are journaled after it. The saved events are then
+ * loaded into an empty store the way EventsManager.loadSavedEvents does on start up:
+ * the snapshot is read and the journal replayed on top of it. It prints the size of
+ * the files, the time to write the snapshot and the time to restart, and whether the
+ * restarted store has the same number of events (should always be true).
+ *
+ * Settings are read from system properties:
+ *   sizes       comma separated numbers of events   (default 100000,1000000)
+ *   journaled   updates journaled after the snapshot (default 10000)
+ *   iterations  restarts for each size              (default 3)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+
+public class RestartBenchmark {
+	private static final int BATCH_SIZE = 100000;
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = EventsBenchmark.parseSizes(System.getProperty("sizes", "100000,1000000"));
+		int journaled = Integer.getInteger("journaled", 10000);
+		int iterations = Integer.getInteger("iterations", 3);
+
+		System.out.println("# " + journaled + " updates journaled after the snapshot, best of "
+				+ iterations + " restarts");
+		System.out.println(String.format(Locale.US, "%9s %12s %12s %12s %12s %14s %8s", "events",
+				"snapshot MB", "journal MB", "snapshot ms", "restart ms", "events/s", "same"));
+		for (int size : sizes) {
+			File directory = Files.createTempDirectory("events-restart").toFile();
+			try {
+				EventStore.initialize();
+				EventsManager eventsManager = new EventsManager();
+				// an empty directory gets the test events and a first snapshot
+				eventsManager.loadSavedEvents(directory);
+				List<Event> events = generate(eventsManager, size);
+
+				long start = System.nanoTime();
+				eventsManager.saveAllEvents();
+				double snapshotMillis = (System.nanoTime() - start) / 1e6;
+
+				eventsManager.setAwaitEachChange(false);
+				Random random = new Random(7);
+				for (int i = 0; i < journaled; i++) {
+					Event event = events.get(random.nextInt(events.size()));
+					eventsManager.updateInMaps(event, new Date(event.getStartMillis() + Utility.DAY_MILLIS),
+							event.getName(), event.getNotes(), event.getReminder(), event.getFrequency(),
+							event.getDuration());
+				}
+				eventsManager.awaitChanges();
+				int saved = EventStore.handles.size();
+				events = null;
+
+				double restartMillis = Double.MAX_VALUE;
+				boolean same = true;
+				for (int i = 0; i < iterations; i++) {
+					EventStore.initialize();
+					EventsManager restarted = new EventsManager();
+					start = System.nanoTime();
+					restarted.loadSavedEvents(directory);
+					restartMillis = Math.min(restartMillis, (System.nanoTime() - start) / 1e6);
+					same &= EventStore.handles.size() == saved;
+				}
+				System.out.println(String.format(Locale.US, "%9d %12.1f %12.1f %12.1f %12.1f %14.0f %8s", size,
+						new File(directory, "events.snapshot").length() / 1048576.0,
+						new File(directory, "events.journal").length() / 1048576.0,
+						snapshotMillis, restartMillis, saved / restartMillis * 1000, same));
+			} finally {
+				for (File file : directory.listFiles()) {
+					file.delete();
+				}
+				directory.delete();
+			}
+		}
+	}
+
+	/*
+	 * adds generated events to the store a batch at a time, like an import,
+	 * and returns them
+	 */
+	private static List<Event> generate(EventsManager eventsManager, int size) {
+		EventsBenchmark.EventGenerator generator = new EventsBenchmark.EventGenerator(
+				EventsBenchmark.parseMix("NONE:90,DAILY:1,WEEKLY:3,MONTHLY:3,YEARLY:3"), Math.max(1, size / 10), 42);
+		List<Event> events = new ArrayList<Event>(size);
+		for (int from = 0; from < size; from += BATCH_SIZE) {
+			List<Event> batch = new ArrayList<Event>(BATCH_SIZE);
+			for (int i = from; i < Math.min(size, from + BATCH_SIZE); i++) {
+				batch.add(generator.next());
+			}
+			eventsManager.addAllToMaps(batch);
+			events.addAll(batch);
+		}
+		return events;
+	}
+}
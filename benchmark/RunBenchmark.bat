@@ -0,0 +1,10 @@
+javac -sourcepath ..\src EventsBenchmark.java ConcurrentReadBenchmark.java ImportBenchmark.java BatchBenchmark.java ReportBenchmark.java ServerLoadTest.java HeapBenchmark.java RecurrenceBenchmark.java RestartBenchmark.java
+java -Xmx4g -cp .;..\src EventsBenchmark
+java -Xmx4g -cp .;..\src ConcurrentReadBenchmark
+java -Xmx4g -cp .;..\src ImportBenchmark
+java -Xmx4g -cp .;..\src BatchBenchmark
+java -Xmx4g -cp .;..\src ReportBenchmark
+java -Xmx4g -cp .;..\src ServerLoadTest
+java -Xmx4g -cp .;..\src HeapBenchmark
+java -Xmx4g -cp .;..\src RecurrenceBenchmark
+java -Xmx4g -cp .;..\src RestartBenchmark
\ No newline at end of file
@@ -0,0 +1,216 @@
+/**
+ * ServerLoadTest.java
+ * Load test for EventServer. The server is started in this process on a store of
+ * generated events and a growing number of clients send requests over keep-alive
+ * connections for a fixed time: month listings, name searches, a week of occurrences,
+ * and adds followed by deletes. For each number of clients it prints the throughput,
+ * the latency percentiles and the failed requests, which should be 0.
+ *
+ * Settings are read from system properties:
+ *   size        events in the store                         (default 10000)
+ *   clients     comma separated numbers of clients           (default 1,16,256,1024,2048)
+ *   seconds     length of each run                           (default 10)
+ *   writes      percent of the requests adding an event      (default 5)
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class ServerLoadTest {
+	private static final long WEEK_MILLIS = 7 * Utility.DAY_MILLIS;
+	// the generated events start in these years
+	private static final long FIRST_MILLIS = Utility.getMonthStartMillis(Calendar.JANUARY, EventsBenchmark.FIRST_YEAR);
+	private static final long LAST_MILLIS = Utility.getMonthStartMillis(Calendar.JANUARY, EventsBenchmark.LAST_YEAR + 1);
+
+	public static void main(String[] args) throws Exception {
+		int size = Integer.getInteger("size", 10000);
+		int[] clientCounts = EventsBenchmark.parseSizes(System.getProperty("clients", "1,16,256,1024,2048"));
+		int seconds = Integer.getInteger("seconds", 10);
+		int writes = Integer.getInteger("writes", 5);
+		int maxClients = 0;
+		for (int clients : clientCounts) {
+			maxClients = Math.max(maxClients, clients);
+		}
+		// keep a connection per client open between requests
+		System.setProperty("http.maxConnections", String.valueOf(maxClients));
+
+		EventsManager eventsManager = new EventsManager();
+		EventsBenchmark.EventGenerator generator = new EventsBenchmark.EventGenerator(
+				EventsBenchmark.parseMix("NONE:90,DAILY:1,WEEKLY:3,MONTHLY:3,YEARLY:3"),
+				Math.max(1, size / 10), 42);
+		EventsBenchmark.populate(eventsManager, generator, size);
+		String[] names = new String[1000];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = generator.nextName();
+		}
+		EventServer server = new EventServer(eventsManager, 0);
+		server.start();
+		String baseUrl = "http://localhost:" + server.getPort();
+
+		System.out.println("# " + size + " events, " + writes + "% writes, " + seconds + " s per run");
+		System.out.println(String.format(Locale.US, "%8s %12s %10s %10s %10s %10s %8s",
+				"clients", "requests/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "failed"));
+		try {
+			for (int clients : clientCounts) {
+				run(baseUrl, clients, seconds * 1000L, writes, names);
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	/*
+	 * runs the clients for the given time and prints the results
+	 */
+	private static void run(final String baseUrl, int clients, long millis, final int writes,
+			final String[] names) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + millis;
+		final Client[] running = new Client[clients];
+		final CountDownLatch done = new CountDownLatch(clients);
+		final AtomicLong failed = new AtomicLong();
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			final Client client = new Client(baseUrl, writes, names, new Random(i));
+			running[i] = client;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (System.currentTimeMillis() < deadline) {
+							if (!client.sendRequest()) {
+								failed.incrementAndGet();
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "client-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		int count = 0;
+		for (Client client : running) {
+			count += client.latencyCount;
+		}
+		long[] latencies = new long[count];
+		count = 0;
+		for (Client client : running) {
+			System.arraycopy(client.latencies, 0, latencies, count, client.latencyCount);
+			count += client.latencyCount;
+		}
+		Arrays.sort(latencies);
+		System.out.println(String.format(Locale.US, "%8d %12.1f %10.2f %10.2f %10.2f %10.2f %8d",
+				clients, count * 1e9 / elapsed, percentile(latencies, 0.5), percentile(latencies, 0.99),
+				percentile(latencies, 0.999), count == 0 ? 0 : latencies[count - 1] / 1e6, failed.get()));
+	}
+
+	private static double percentile(long[] sortedNanos, double fraction) {
+		if (sortedNanos.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.min(sortedNanos.length - 1, Math.ceil(fraction * sortedNanos.length) - 1);
+		return sortedNanos[Math.max(0, index)] / 1e6;
+	}
+
+	/*
+	 * One client sending a request at a time, recording the latency of each
+	 */
+	private static class Client {
+		private final String baseUrl;
+		private final int writes;
+		private final String[] names;
+		private final Random random;
+		long[] latencies = new long[1024];
+		int latencyCount;
+
+		Client(String baseUrl, int writes, String[] names, Random random) {
+			this.baseUrl = baseUrl;
+			this.writes = writes;
+			this.names = names;
+			this.random = random;
+		}
+
+		/*
+		 * sends a random request, returns false if it failed
+		 */
+		boolean sendRequest() {
+			int kind = random.nextInt(100);
+			long start = System.nanoTime();
+			boolean ok;
+			try {
+				if (kind < writes) {
+					// add an event and delete it again, so the store keeps its size
+					String added = send("POST", "/events", "{\"date\":\"06/15/2010\",\"time\":\"10:00\","
+							+ "\"name\":\"load test\",\"notes\":\"added by the load test\"}", 201);
+					int idStart = added.indexOf("\"id\":") + 5;
+					String id = added.substring(idStart, added.indexOf(',', idStart));
+					send("DELETE", "/events/" + id, null, 200);
+				} else if (kind < writes + (100 - writes) / 3) {
+					int year = EventsBenchmark.FIRST_YEAR + random.nextInt(EventsBenchmark.LAST_YEAR
+							- EventsBenchmark.FIRST_YEAR + 1);
+					send("GET", "/months/" + year + "/" + (random.nextInt(12) + 1), null, 200);
+				} else if (kind < writes + 2 * (100 - writes) / 3) {
+					String name = names[random.nextInt(names.length)];
+					send("GET", "/events?name=" + name.replace(' ', '+'), null, 200);
+				} else {
+					long from = FIRST_MILLIS + (long) (random.nextDouble() * (LAST_MILLIS - FIRST_MILLIS));
+					send("GET", "/occurrences?from=" + from + "&to=" + (from + WEEK_MILLIS) + "&limit=100",
+							null, 200);
+				}
+				ok = true;
+			} catch (IOException e) {
+				ok = false;
+			}
+			if (latencyCount == latencies.length) {
+				latencies = Arrays.copyOf(latencies, latencyCount * 2);
+			}
+			latencies[latencyCount++] = System.nanoTime() - start;
+			return ok;
+		}
+
+		/*
+		 * sends a request and reads the whole answer, so the connection can be used again
+		 */
+		private String send(String method, String path, String body, int expectedStatus) throws IOException {
+			HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+			connection.setRequestMethod(method);
+			if (body != null) {
+				connection.setDoOutput(true);
+				OutputStream output = connection.getOutputStream();
+				output.write(body.getBytes(StandardCharsets.UTF_8));
+				output.close();
+			}
+			int status = connection.getResponseCode();
+			InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			ByteArrayOutputStream answer = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while (input != null && (count = input.read(buffer)) >= 0) {
+				answer.write(buffer, 0, count);
+			}
+			if (input != null) {
+				input.close();
+			}
+			if (status != expectedStatus) {
+				throw new IOException(method + " " + path + " answered " + status);
+			}
+			return new String(answer.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}
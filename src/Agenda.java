@@ -0,0 +1,241 @@
+/**
+ * Agenda.java
+ * Class to walk the occurrences of all the events in a time window in time order,
+ * one at a time, without collecting them first.
+ * The non-recurring events and each index of recurring events are sorted by start, so
+ * they are merged through a heap of sources ordered by their next start. Each recurring
+ * event gets its own source walking its occurrences with RecurrenceExpander: the events
+ * started before the window and not ended by then right away, the others once the merge
+ * reaches their start. The recurrences that ended before the window are not looked at.
+ * The memory used depends on the number of recurring events active so far, not on
+ * the length of the window.
+ * Occurrences at the same instant are ordered by event id. A Cursor remembers where an
+ * agenda stopped, so a long agenda can be read in pages.
+ * An agenda reads the indexes as it goes, so it is built and read under the EventStore
+ * read lock; EventsManager.getOccurrences reads one a page at a time
+ */
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.PrimitiveIterator;
+
+
+public class Agenda implements Iterator<Occurrence> {
+	private final long to;
+	// the occurrence the agenda starts after, see Cursor
+	private final long afterStart;
+	private final int afterId;
+	private final PriorityQueue<Source> sources = new PriorityQueue<Source>();
+	private Occurrence next;
+	private Occurrence last;
+
+	/*
+	 * an agenda of the occurrences in [from, to)
+	 */
+	public Agenda(long from, long to) {
+		this(from, to, Long.MIN_VALUE, Integer.MIN_VALUE);
+	}
+
+	/*
+	 * an agenda of the occurrences in [from, to) coming after the cursor
+	 */
+	public Agenda(long from, long to, Cursor after) {
+		this(Math.max(from, after.start), to, after.start, after.id);
+	}
+
+	private Agenda(long from, long to, long afterStart, int afterId) {
+		this.to = to;
+		this.afterStart = afterStart;
+		this.afterId = afterId;
+		if (from >= to) {
+			return;
+		}
+		addSource(new EventSource(EventStore.nonRecurringEvents, from, to, false));
+		addRecurringSources(EventStore.dailyEvents, from, to);
+		addRecurringSources(EventStore.weeklyEvents, from, to);
+		addRecurringSources(EventStore.monthlyEvents, from, to);
+		for (EventTimeIndex index : EventStore.yearlyEvents.values()) {
+			addRecurringSources(index, from, to);
+		}
+	}
+
+	/*
+	 * adds a source for each event of the index that started before from and has not
+	 * ended by then, they all may occur right away, and one for the events starting later
+	 */
+	private void addRecurringSources(EventTimeIndex index, long from, long to) {
+		for (Event event : index.activeBetween(from, from)) {
+			addSource(new OccurrenceSource(event, from, to));
+		}
+		addSource(new EventSource(index, from, to, true));
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (next == null && !sources.isEmpty()) {
+			Source source = sources.poll();
+			next = source.take(this);
+			if (next != null && next.getStartMillis() == afterStart && next.getEvent().getId() <= afterId) {
+				// already returned before the cursor
+				next = null;
+			}
+			addSource(source);
+		}
+		return next != null;
+	}
+
+	@Override
+	public Occurrence next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		last = next;
+		next = null;
+		return last;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/*
+	 * returns a cursor to continue after the last occurrence returned by next,
+	 * or after the cursor the agenda was started with if none was returned yet
+	 */
+	public Cursor getCursor() {
+		if (last == null) {
+			return new Cursor(afterStart, afterId);
+		}
+		return new Cursor(last.getStartMillis(), last.getEvent().getId());
+	}
+
+	/*
+	 * puts a source back in the heap if it has more occurrences
+	 */
+	private void addSource(Source source) {
+		if (source.start < to) {
+			sources.add(source);
+		}
+	}
+
+	/*
+	 * The position after an occurrence, the start and the event id of the occurrence.
+	 * Written as start:id, so it can be handed to a client and parsed back
+	 */
+	public static class Cursor {
+		private final long start;
+		private final int id;
+
+		public Cursor(long start, int id) {
+			this.start = start;
+			this.id = id;
+		}
+
+		/*
+		 * parses a cursor written by toString
+		 */
+		public static Cursor parse(String text) {
+			int colon = text.indexOf(':');
+			try {
+				return new Cursor(Long.parseLong(text.substring(0, colon)), Integer.parseInt(text.substring(colon + 1)));
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException("invalid cursor " + text);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return start + ":" + id;
+		}
+	}
+
+	/*
+	 * A sorted stream of occurrences in the merge. start and id are those of the next
+	 * occurrence of the source, or a lower bound of them
+	 */
+	private static abstract class Source implements Comparable<Source> {
+		long start;
+		int id;
+
+		/*
+		 * returns the next occurrence and moves to the one after it. A source may
+		 * return null and add other sources instead
+		 */
+		abstract Occurrence take(Agenda agenda);
+
+		@Override
+		public int compareTo(Source other) {
+			int result = Long.compare(start, other.start);
+			return result != 0 ? result : Integer.compare(id, other.id);
+		}
+	}
+
+	/*
+	 * The events of an index starting in [from, to), in start order. Non-recurring
+	 * events are occurrences themselves, a recurring event is handed to its own
+	 * OccurrenceSource
+	 */
+	private static class EventSource extends Source {
+		private final Iterator<Event> events;
+		private final long from;
+		private final long to;
+		private final boolean recurring;
+		private Event event;
+
+		EventSource(EventTimeIndex index, long from, long to, boolean recurring) {
+			this.events = index.between(from, to).iterator();
+			this.from = from;
+			this.to = to;
+			this.recurring = recurring;
+			moveToNextEvent();
+		}
+
+		@Override
+		Occurrence take(Agenda agenda) {
+			Event current = event;
+			long currentStart = start;
+			moveToNextEvent();
+			if (!recurring) {
+				return new Occurrence(current, currentStart);
+			}
+			agenda.addSource(new OccurrenceSource(current, from, to));
+			return null;
+		}
+
+		private void moveToNextEvent() {
+			if (!events.hasNext()) {
+				event = null;
+				start = Long.MAX_VALUE;
+				return;
+			}
+			event = events.next();
+			start = event.getStartMillis();
+			id = event.getId();
+		}
+	}
+
+	/*
+	 * The occurrences of one recurring event
+	 */
+	private static class OccurrenceSource extends Source {
+		private final Event event;
+		private final PrimitiveIterator.OfLong starts;
+
+		OccurrenceSource(Event event, long from, long to) {
+			this.event = event;
+			this.id = event.getId();
+			this.starts = RecurrenceExpander.occurrenceStarts(event.getStartMillis(), event.getFrequency(),
+					event.getLastStartMillis(), event.getExceptionDays(), from, to);
+			start = starts.hasNext() ? starts.nextLong() : Long.MAX_VALUE;
+		}
+
+		@Override
+		Occurrence take(Agenda agenda) {
+			Occurrence occurrence = new Occurrence(event, start);
+			start = starts.hasNext() ? starts.nextLong() : Long.MAX_VALUE;
+			return occurrence;
+		}
+	}
+}
@@ -0,0 +1,308 @@
+/**
+ * BatchCommands.java
+ * Class to run add/update/delete/list/search/agenda commands read from a stream, one per line,
+ * so the events can be kept in sync by a script instead of through the menu.
+ * Commands and results are CSV rows, quoted like the rows EventImporter reads:
+ *   add,date,time,name[,notes[,reminder[,frequency[,duration[,until[,count[,skipped]]]]]]]
+ *                          prints ok,line,id
+ *   update,id,date,time,name[,notes[,reminder[,frequency[,duration[,until[,count[,skipped]]]]]]]
+ *                          prints ok,line,id
+ *   delete,id              prints ok,line,id
+ *   list,month,year        the events occurring in a month (1-12)
+ *   search,text            the events whose name best matches the text
+ *   notes,query            the events whose notes match the query, see NotesIndex
+ *   agenda,first,last      the occurrences of the days from first to last date in time
+ *                          order, one row occurrence,id,date,time,name,notes,reminder,frequency,
+ *                          duration each with the date and time of the occurrence
+ * The text of search and notes is the rest of the line, commas included.
+ * The listing commands print a row event,id,date,time,name,notes,reminder,frequency,duration
+ * per event followed by ok,line,count. The rows of recurrences with an end or skipped
+ * days also have until,count,skipped, until being the date of the last occurrence.
+ * A command that fails prints error,line,message and the following commands still run. Blank lines and lines starting with # are skipped.
+ *
+ * Changes are not synced to disk one by one. The results are held back and written
+ * after the changes they report are on disk, every FLUSH_INTERVAL commands and
+ * whenever no more input is ready, so many changes share one sync. An agenda is read
+ * in pages of AGENDA_PAGE_SIZE occurrences, each under the read lock, and written out
+ * as it is read, so a multi-year agenda does not have to fit in memory and changes
+ * are not held back for the whole of it
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+
+
+public class BatchCommands {
+	// most commands run before the results are written
+	private static final int FLUSH_INTERVAL = 1024;
+	// most characters of results held while an agenda is read
+	private static final int FLUSH_SIZE = 64 * 1024;
+	// occurrences of an agenda read under one read lock
+	private static final int AGENDA_PAGE_SIZE = 1024;
+
+	private final EventsManager eventsManager;
+	private final BufferedReader input;
+	private final Writer output;
+	// the results not written yet
+	private final StringBuilder results = new StringBuilder(64 * 1024);
+	private int lineNumber;
+
+	/**
+	 * @param eventsManager
+	 * @param input the commands
+	 * @param output where the results are written
+	 */
+	public BatchCommands(EventsManager eventsManager, BufferedReader input, Writer output) {
+		this.eventsManager = eventsManager;
+		this.input = input;
+		this.output = output;
+	}
+
+	/*
+	 * runs the commands until the end of the input. returns the number of commands run
+	 */
+	public int run() throws IOException {
+		int commands = 0;
+		int unflushed = 0;
+		eventsManager.setAwaitEachChange(false);
+		try {
+			String line;
+			while ((line = input.readLine()) != null) {
+				lineNumber++;
+				if (!line.trim().isEmpty() && !line.startsWith("#")) {
+					runCommand(line);
+					commands++;
+					unflushed++;
+				}
+				if (unflushed >= FLUSH_INTERVAL || !input.ready()) {
+					flush();
+					unflushed = 0;
+				}
+			}
+			flush();
+		} finally {
+			eventsManager.setAwaitEachChange(true);
+			eventsManager.awaitChanges();
+		}
+		return commands;
+	}
+
+	/*
+	 * waits for the changes made so far to reach the disk, then writes their results
+	 */
+	private void flush() throws IOException {
+		eventsManager.awaitChanges();
+		output.append(results);
+		output.flush();
+		results.setLength(0);
+	}
+
+	/*
+	 * runs one command line, adding its result rows to results
+	 */
+	private void runCommand(String line) throws IOException {
+		int comma = line.indexOf(',');
+		String command = (comma < 0 ? line : line.substring(0, comma)).trim();
+		String arguments = comma < 0 ? "" : line.substring(comma + 1);
+		try {
+			switch (command) {
+			case "add":
+				add(arguments);
+				break;
+			case "update":
+				update(arguments);
+				break;
+			case "delete":
+				delete(arguments);
+				break;
+			case "list":
+				list(arguments);
+				break;
+			case "search":
+				printEvents(eventsManager.searchEventsByName(arguments, EventsManager.MAX_SEARCH_NAMES));
+				break;
+			case "notes":
+				printEvents(eventsManager.searchNotes(arguments, Long.MIN_VALUE, Long.MAX_VALUE));
+				break;
+			case "agenda":
+				agenda(arguments);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown command " + command);
+			}
+		} catch (IllegalArgumentException e) {
+			results.append("error,").append(lineNumber).append(',');
+			appendField(e.getMessage());
+			results.append('\n');
+		}
+	}
+
+	private void add(String arguments) {
+		Event event = EventImporter.parseCsvRecord(arguments, Event.reserveIds(1));
+		eventsManager.addToMaps(event);
+		printOk(event.getId());
+	}
+
+	private void update(String arguments) {
+		int comma = arguments.indexOf(',');
+		if (comma < 0) {
+			throw new IllegalArgumentException("missing date");
+		}
+		Event event = getEvent(arguments.substring(0, comma));
+		// parsed into a throwaway event with the same id, its values are copied over
+		Event values = EventImporter.parseCsvRecord(arguments.substring(comma + 1), event.getId());
+		if (!eventsManager.updateInMaps(event, values.getDate(), values.getName(), values.getNotes(),
+				values.getReminder(), values.getFrequency(), values.getDuration(),
+				values.getUntil(), values.getCount(), values.getExceptionDays())) {
+			throw new IllegalArgumentException("no event " + event.getId());
+		}
+		printOk(event.getId());
+	}
+
+	private void delete(String arguments) {
+		Event event = getEvent(arguments);
+		eventsManager.deleteFromMaps(event);
+		printOk(event.getId());
+	}
+
+	private void list(String arguments) {
+		List<String> fields = EventImporter.splitCsvFields(arguments);
+		if (fields.size() != 2) {
+			throw new IllegalArgumentException("expected month,year");
+		}
+		int month = parseInt(fields.get(0), "month");
+		int year = parseInt(fields.get(1), "year");
+		if (month < 1 || month > 12) {
+			throw new IllegalArgumentException("invalid month " + month);
+		}
+		EventsManager.MonthEvents monthEvents = eventsManager.getMonthEvents(month - 1, year);
+		int count = appendEvents(monthEvents.nonRecurring) + appendEvents(monthEvents.yearly)
+				+ appendEvents(monthEvents.monthly) + appendEvents(monthEvents.weekly)
+				+ appendEvents(monthEvents.daily);
+		printOk(count);
+	}
+
+	private void agenda(String arguments) throws IOException {
+		List<String> fields = EventImporter.splitCsvFields(arguments);
+		if (fields.size() != 2) {
+			throw new IllegalArgumentException("expected first,last");
+		}
+		long firstDay = EventImporter.parseEpochDay(fields.get(0));
+		long lastDay = EventImporter.parseEpochDay(fields.get(1));
+		if (lastDay < firstDay) {
+			throw new IllegalArgumentException("last date before first date");
+		}
+		long from = Utility.getMillis(firstDay, 0);
+		long to = Utility.getMillis(lastDay + 1, 0);
+		int count = 0;
+		Agenda.Cursor cursor = null;
+		List<Occurrence> page;
+		do {
+			page = eventsManager.getOccurrences(from, to, AGENDA_PAGE_SIZE, cursor);
+			for (Occurrence occurrence : page) {
+				long start = occurrence.getStartMillis();
+				appendEvent("occurrence,", occurrence.getEvent(), Utility.getEpochDay(start),
+						Utility.getMinuteOfDay(start));
+				if (results.length() >= FLUSH_SIZE) {
+					flush();
+				}
+			}
+			count += page.size();
+			if (!page.isEmpty()) {
+				Occurrence last = page.get(page.size() - 1);
+				cursor = new Agenda.Cursor(last.getStartMillis(), last.getEvent().getId());
+			}
+		} while (page.size() == AGENDA_PAGE_SIZE);
+		printOk(count);
+	}
+
+	private void printEvents(Collection<Event> events) {
+		printOk(appendEvents(events));
+	}
+
+	private void printOk(int value) {
+		results.append("ok,").append(lineNumber).append(',').append(value).append('\n');
+	}
+
+	/*
+	 * adds an event row for each of the events, returns the number of events
+	 */
+	private int appendEvents(Collection<Event> events) {
+		for (Event event : events) {
+			appendEvent("event,", event, event.getEpochDay(), event.getMinuteOfDay());
+		}
+		return events.size();
+	}
+
+	/*
+	 * adds a row for an event, starting at the given day and minute
+	 */
+	private void appendEvent(String kind, Event event, long epochDay, int minuteOfDay) {
+		results.append(kind).append(event.getId()).append(',');
+		Utility.appendDate(results, epochDay).append(',');
+		Utility.appendTime(results, minuteOfDay).append(',');
+		appendField(event.getName());
+		results.append(',');
+		appendField(event.getNotes());
+		results.append(',').append(event.getReminder()).append(',').append(event.getFrequency())
+				.append(',').append(event.getDuration());
+		if (event.getFrequency() != Event.Frequency.NONE
+				&& (event.getLastStartMillis() != Long.MAX_VALUE || event.getExceptionDays().length > 0)) {
+			results.append(',');
+			if (event.getUntil() != Long.MAX_VALUE) {
+				Utility.appendDate(results, Utility.getEpochDay(event.getLastStartMillis()));
+			}
+			results.append(',');
+			if (event.getCount() > 0) {
+				results.append(event.getCount());
+			}
+			results.append(',');
+			Utility.appendDates(results, event.getExceptionDays());
+		}
+		results.append('\n');
+	}
+
+	/*
+	 * adds a field, quoted if it has commas, quotes or line breaks
+	 */
+	private void appendField(String text) {
+		boolean quote = false;
+		for (int i = 0; i < text.length() && !quote; i++) {
+			char c = text.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			results.append(text);
+			return;
+		}
+		results.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"') {
+				results.append('"');
+			}
+			results.append(c);
+		}
+		results.append('"');
+	}
+
+	private static Event getEvent(String idText) {
+		int id = parseInt(idText, "id");
+		EventHandle handle = EventStore.handles.get(id);
+		if (handle == null) {
+			throw new IllegalArgumentException("no event " + id);
+		}
+		return handle.getEvent();
+	}
+
+	private static int parseInt(String text, String field) {
+		try {
+			return Integer.parseInt(text.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid " + field + " " + text);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * DayCounts.java
+ * Class to keep the number of occurrences of the events on every local day, updated
+ * as events are added and removed instead of expanding them when a month is shown.
+ * A recurring event adds one count where its period starts, and the count of a day
+ * is worked out from the events of the matching period that started by then:
+ *   daily    the daily events started on or before the day
+ *   weekly   the weekly events started on the same weekday, by the week of the day
+ *   monthly  the monthly events on the same day of the month, by the month of the day.
+ *            The last day of a month also has the events on the later days of the month
+ *   yearly   the yearly events on the same month and day, by the year of the day.
+ *            February 28 of a common year also has the events on February 29
+ * Each of these is a FenwickTree counting the events by the period they started in,
+ * so a change updates O(log n) counts and a day is looked up in O(log n), whatever
+ * the number of events.
+ * A recurrence with an end also takes its count back in the period after its last
+ * occurrence, and the days a recurrence skips are counted down in a tree by day
+ */
+
+import java.util.Calendar;
+
+
+public class DayCounts {
+	private static final int MAX_DAY_OF_MONTH = 31;
+
+	// by day
+	private final FenwickTree nonRecurring = new FenwickTree();
+	// by start day
+	private final FenwickTree daily = new FenwickTree();
+	// by weekday of the start, then by the week of the start
+	private final FenwickTree[] weekly = createTrees(7);
+	// by day of the month of the start, then by the month of the start
+	private final FenwickTree[] monthly = createTrees(MAX_DAY_OF_MONTH);
+	// by month and day of the month of the start, then by the year of the start
+	private final FenwickTree[] yearly = createTrees(12 * MAX_DAY_OF_MONTH);
+	// minus the occurrences left out on each day
+	private final FenwickTree exceptions = new FenwickTree();
+
+	/*
+	 * counts the occurrences of an event indexed with a handle
+	 */
+	public void add(EventHandle handle) {
+		change(handle, 1);
+	}
+
+	/*
+	 * takes back the occurrences of an event added with a handle
+	 */
+	public void remove(EventHandle handle) {
+		change(handle, -1);
+	}
+
+	private void change(EventHandle handle, int delta) {
+		long day = Utility.getEpochDay(handle.getStartMillis());
+		Event.Frequency frequency = handle.getFrequency();
+		if (frequency == Event.Frequency.NONE) {
+			nonRecurring.add(day, delta);
+			return;
+		}
+		FenwickTree tree = getTree(frequency, day);
+		tree.add(getPeriod(frequency, day), delta);
+		long lastDay = Long.MAX_VALUE;
+		if (handle.getLastStartMillis() != Long.MAX_VALUE) {
+			lastDay = Utility.getEpochDay(handle.getLastStartMillis());
+			tree.add(getPeriod(frequency, lastDay) + 1, -delta);
+		}
+		for (long exceptionDay : handle.getExceptionDays()) {
+			if (exceptionDay <= lastDay && RecurrenceExpander.isOccurrenceDay(day, frequency, exceptionDay)) {
+				exceptions.add(exceptionDay, -delta);
+			}
+		}
+	}
+
+	/*
+	 * returns the tree counting the recurrences of a frequency starting on a day
+	 */
+	private FenwickTree getTree(Event.Frequency frequency, long day) {
+		switch (frequency) {
+		case DAILY:
+			return daily;
+		case WEEKLY:
+			return weekly[Math.floorMod(day, 7)];
+		case MONTHLY:
+			return monthly[Utility.getDayOfMonth(day) - 1];
+		default:
+			return yearly[getDateIndex(Utility.getMonth(day), Utility.getDayOfMonth(day))];
+		}
+	}
+
+	/*
+	 * returns the position of the period holding a day in the trees of a frequency
+	 */
+	private static long getPeriod(Event.Frequency frequency, long day) {
+		switch (frequency) {
+		case DAILY:
+			return day;
+		case WEEKLY:
+			return Math.floorDiv(day, 7);
+		case MONTHLY:
+			return getMonthNumber(day);
+		default:
+			return Utility.getYear(day);
+		}
+	}
+
+	/*
+	 * returns the number of occurrences on a local day
+	 */
+	public int getCount(long day) {
+		int year = Utility.getYear(day);
+		int month = Utility.getMonth(day);
+		int dayOfMonth = Utility.getDayOfMonth(day);
+		int monthLength = Utility.getMonthLength(year, month);
+		long monthNumber = (long) year * 12 + month;
+		int count = nonRecurring.get(day) + exceptions.get(day) + daily.sumTo(day)
+				+ weekly[Math.floorMod(day, 7)].sumTo(Math.floorDiv(day, 7));
+		count += monthly[dayOfMonth - 1].sumTo(monthNumber);
+		if (dayOfMonth == monthLength) {
+			for (int later = dayOfMonth + 1; later <= MAX_DAY_OF_MONTH; later++) {
+				count += monthly[later - 1].sumTo(monthNumber);
+			}
+		}
+		count += yearly[getDateIndex(month, dayOfMonth)].sumTo(year);
+		if (month == Calendar.FEBRUARY && dayOfMonth == monthLength && monthLength == 28) {
+			count += yearly[getDateIndex(month, 29)].sumTo(year);
+		}
+		return count;
+	}
+
+	/*
+	 * puts the number of occurrences of the days from firstDay on into counts,
+	 * one day per element
+	 */
+	public void getCounts(long firstDay, int[] counts) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = getCount(firstDay + i);
+		}
+	}
+
+	/*
+	 * returns the days in [firstDay, endDay) having occurrences, bit i standing for
+	 * firstDay + i. The window is at most 32 days, like a calendar month
+	 */
+	public int getDays(long firstDay, long endDay) {
+		int days = 0;
+		for (long day = firstDay; day < endDay; day++) {
+			if (getCount(day) > 0) {
+				days |= 1 << (int) (day - firstDay);
+			}
+		}
+		return days;
+	}
+
+	private static long getMonthNumber(long day) {
+		return (long) Utility.getYear(day) * 12 + Utility.getMonth(day);
+	}
+
+	private static int getDateIndex(int month, int dayOfMonth) {
+		return month * MAX_DAY_OF_MONTH + dayOfMonth - 1;
+	}
+
+	private static FenwickTree[] createTrees(int count) {
+		FenwickTree[] trees = new FenwickTree[count];
+		for (int i = 0; i < count; i++) {
+			trees[i] = new FenwickTree();
+		}
+		return trees;
+	}
+}
@@ -0,0 +1,290 @@
+/**
+ * EndingTree.java
+ * Class to keep recurrences with an end so that those running in a window are found
+ * without visiting the ones that ended before it or start after it.
+ * Handles are kept in an AVL tree ordered by a key given with each handle and then by
+ * event id. Every node also keeps the latest start of a last occurrence and the
+ * earliest start in its subtree, so a lookup over a range of keys passes over each
+ * subtree holding no recurrence that starts before the window ends and occurs at or
+ * after it begins. A lookup visits O(log n) nodes besides the paths down to the k
+ * handles found, and returns the handles lazily in key order.
+ * The tree is changed under the EventStore write lock and read under its read lock
+ */
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+public class EndingTree {
+	private Node root;
+	private int size;
+	// set by insert and delete when they find the handle
+	private boolean found;
+
+	/*
+	 * adds a handle at a key. returns false if it is already there
+	 */
+	public boolean add(long key, EventHandle handle) {
+		found = false;
+		root = insert(root, new Node(key, handle));
+		if (found) {
+			return false;
+		}
+		size++;
+		return true;
+	}
+
+	/*
+	 * removes a handle added at a key. returns true if it was found
+	 */
+	public boolean remove(long key, EventHandle handle) {
+		found = false;
+		root = delete(root, key, handle.getId());
+		if (!found) {
+			return false;
+		}
+		size--;
+		return true;
+	}
+
+	/*
+	 * returns the number of handles in the tree
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return root == null;
+	}
+
+	/*
+	 * returns the handles at keys from firstKey to lastKey that start before to and
+	 * whose last occurrence starts at or after from, in key and then id order
+	 */
+	public Iterable<EventHandle> find(final long firstKey, final long lastKey, final long from, final long to) {
+		final Node top = root;
+		return new Iterable<EventHandle>() {
+			@Override
+			public Iterator<EventHandle> iterator() {
+				return new Finder(top, firstKey, lastKey, from, to);
+			}
+		};
+	}
+
+	private Node insert(Node node, Node added) {
+		if (node == null) {
+			return added;
+		}
+		int result = compare(added.key, added.id, node);
+		if (result < 0) {
+			node.left = insert(node.left, added);
+		} else if (result > 0) {
+			node.right = insert(node.right, added);
+		} else {
+			found = true;
+			return node;
+		}
+		return balance(node);
+	}
+
+	private Node delete(Node node, long key, int id) {
+		if (node == null) {
+			return null;
+		}
+		int result = compare(key, id, node);
+		if (result < 0) {
+			node.left = delete(node.left, key, id);
+		} else if (result > 0) {
+			node.right = delete(node.right, key, id);
+		} else {
+			found = true;
+			if (node.left == null) {
+				return node.right;
+			}
+			if (node.right == null) {
+				return node.left;
+			}
+			// the next node takes the place of the removed one
+			Node next = node.right;
+			while (next.left != null) {
+				next = next.left;
+			}
+			next.right = deleteFirst(node.right);
+			next.left = node.left;
+			node = next;
+		}
+		return balance(node);
+	}
+
+	private Node deleteFirst(Node node) {
+		if (node.left == null) {
+			return node.right;
+		}
+		node.left = deleteFirst(node.left);
+		return balance(node);
+	}
+
+	private static int compare(long key, int id, Node node) {
+		int result = Long.compare(key, node.key);
+		return result != 0 ? result : Integer.compare(id, node.id);
+	}
+
+	/*
+	 * updates a node whose subtrees changed and rotates it if their heights
+	 * differ by more than one. returns the node now at its place
+	 */
+	private static Node balance(Node node) {
+		int difference = height(node.left) - height(node.right);
+		if (difference > 1) {
+			if (height(node.left.left) < height(node.left.right)) {
+				node.left = rotateLeft(node.left);
+			}
+			return rotateRight(node);
+		}
+		if (difference < -1) {
+			if (height(node.right.right) < height(node.right.left)) {
+				node.right = rotateRight(node.right);
+			}
+			return rotateLeft(node);
+		}
+		update(node);
+		return node;
+	}
+
+	private static Node rotateRight(Node node) {
+		Node left = node.left;
+		node.left = left.right;
+		left.right = node;
+		update(node);
+		update(left);
+		return left;
+	}
+
+	private static Node rotateLeft(Node node) {
+		Node right = node.right;
+		node.right = right.left;
+		right.left = node;
+		update(node);
+		update(right);
+		return right;
+	}
+
+	private static void update(Node node) {
+		node.height = 1 + Math.max(height(node.left), height(node.right));
+		long maxLastStart = node.handle.getLastStartMillis();
+		long minStart = node.handle.getStartMillis();
+		if (node.left != null) {
+			maxLastStart = Math.max(maxLastStart, node.left.maxLastStart);
+			minStart = Math.min(minStart, node.left.minStart);
+		}
+		if (node.right != null) {
+			maxLastStart = Math.max(maxLastStart, node.right.maxLastStart);
+			minStart = Math.min(minStart, node.right.minStart);
+		}
+		node.maxLastStart = maxLastStart;
+		node.minStart = minStart;
+	}
+
+	private static int height(Node node) {
+		return node == null ? 0 : node.height;
+	}
+
+	/*
+	 * A handle in the tree, with the height, the latest last start and the earliest
+	 * start of its subtree
+	 */
+	private static class Node {
+		private final long key;
+		private final int id;
+		private final EventHandle handle;
+		private Node left;
+		private Node right;
+		private int height;
+		private long maxLastStart;
+		private long minStart;
+
+		Node(long key, EventHandle handle) {
+			this.key = key;
+			this.id = handle.getId();
+			this.handle = handle;
+			update(this);
+		}
+	}
+
+	/*
+	 * Walks the tree in order, keeping the nodes whose right subtrees are still to be
+	 * walked on a stack and going down only into subtrees that may hold a handle found
+	 */
+	private static class Finder implements Iterator<EventHandle> {
+		private final long firstKey;
+		private final long lastKey;
+		private final long from;
+		private final long to;
+		private final Node[] stack;
+		private int depth;
+		private EventHandle next;
+
+		Finder(Node root, long firstKey, long lastKey, long from, long to) {
+			this.firstKey = firstKey;
+			this.lastKey = lastKey;
+			this.from = from;
+			this.to = to;
+			this.stack = new Node[height(root)];
+			pushLeft(root);
+			next = findNext();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public EventHandle next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			EventHandle handle = next;
+			next = findNext();
+			return handle;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/*
+		 * pushes the nodes from a node down its left side, leaving out the nodes
+		 * before firstKey, which have their left subtrees before it too
+		 */
+		private void pushLeft(Node node) {
+			while (node != null && node.maxLastStart >= from && node.minStart < to) {
+				if (node.key < firstKey) {
+					node = node.right;
+				} else {
+					stack[depth++] = node;
+					node = node.left;
+				}
+			}
+		}
+
+		private EventHandle findNext() {
+			while (depth > 0) {
+				Node node = stack[--depth];
+				if (node.key > lastKey) {
+					// the rest of the nodes are after lastKey too
+					depth = 0;
+					return null;
+				}
+				pushLeft(node.right);
+				EventHandle handle = node.handle;
+				if (handle.getStartMillis() < to && handle.getLastStartMillis() >= from) {
+					return handle;
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -1,54 +1,72 @@
 /**
  * Event.java
  * Class to hold the event info.
- * Also contains data structures to hold all the events inserted by user
  */
 
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class Event {
+	// ids are handed out in creation order and never reused
+	private static final AtomicInteger nextId = new AtomicInteger(1);
+	
+	private final int id;
 	private Date date;
+	// the local day and time of the date, kept so that day, month and weekday
+	// checks are integer arithmetic instead of a Calendar per event
+	private long epochDay;
+	private int minuteOfDay;
 	private String name;
-	private String notes;
+	// null while the notes are kept off the heap by EventStore.notes under notesId
+	private volatile String notes;
+	private int notesId = -1;
+	// counts the moves of the notes between the heap and EventStore.notes, odd during
+	// one, so getNotes can tell that the id it read was released and used again
+	private volatile int notesVersion;
 	private int reminder;
 	private Frequency frequency;
+	// length in minutes, 0 for an event taking only the instant it starts at
+	private int duration;
+	// where a recurrence ends: at its last occurrence starting at or before until, and
+	// after count occurrences. Long.MAX_VALUE and 0 for a recurrence without an end
+	private long until = Long.MAX_VALUE;
+	private int count;
+	// the sorted local days on which an occurrence is left out
+	private long[] exceptionDays = RecurrenceExpander.NO_DAYS;
+	// the start of the last occurrence worked out from the above, Long.MAX_VALUE for none
+	private long lastStartMillis;
 	
 	public static enum Frequency {
 	    DAILY, WEEKLY, MONTHLY, YEARLY, NONE 
 	}
 	
-	public static Map<String, ArrayList<Event>> nameMap;
-	public static Map<String, ArrayList<Event>> nonRecurringEvents;
-	public static PriorityQueue<Event> dailyEvents;
-	public static PriorityQueue<Event> weeklyEvents;
-	public static PriorityQueue<Event> monthlyEvents;
-	public static Map<Integer, PriorityQueue<Event>> yearlyEvents;
+	/*
+	 * returns the id the next created event will get
+	 */
+	public static int getNextId() {
+		return nextId.get();
+	}
 	
 	/*
-	 * Initializes the data structures that hold the events inserted by user
-	 */
-	public static void initializeMaps() {
-		Comparator<Event> eventDateComparator = new EventDateComparator();
-		nameMap = new HashMap<String, ArrayList<Event>>();
-		nonRecurringEvents = new HashMap<String, ArrayList<Event>>();
-		dailyEvents = new PriorityQueue<Event>(1, eventDateComparator);
-		weeklyEvents = new PriorityQueue<Event>(1, eventDateComparator);
-		monthlyEvents = new PriorityQueue<Event>(1, eventDateComparator);
-		yearlyEvents = new HashMap<Integer, PriorityQueue<Event>>();		
-		
-		// Initialize yearly events
-		for( int month = Calendar.JANUARY; month <= Calendar.DECEMBER; month++) {
-			yearlyEvents.put(month, new PriorityQueue<Event>(1, eventDateComparator));
+	 * hands out count consecutive ids at once, returns the first of them.
+	 * Lets events created on several threads get ids in a known order
+	 */
+	public static int reserveIds(int count) {
+		return nextId.getAndAdd(count);
+	}
+
+	/*
+	 * makes sure no id below the given one is handed out again
+	 */
+	public static void reserveIdsBelow(int id) {
+		int current = nextId.get();
+		while (current < id && !nextId.compareAndSet(current, id)) {
+			current = nextId.get();
 		}
-		
 	}
+	
 	/**
 	 * @param date
 	 * @param name
@@ -59,24 +77,95 @@ public class Event {
 	public Event(Date date, String name, String notes, int reminder,
 			Frequency frequency) {
 		
-		this.date = date;
+		this(nextId.getAndIncrement(), date, name, notes, reminder, frequency);
+	} 
+	
+	/**
+	 * @param date
+	 * @param name
+	 * @param notes
+	 * @param reminder
+	 * @param frequency
+	 * @param duration in minutes
+	 */
+	public Event(Date date, String name, String notes, int reminder,
+			Frequency frequency, int duration) {
+		
+		this(nextId.getAndIncrement(), date, name, notes, reminder, frequency, duration);
+	} 
+	
+	/**
+	 * Creates an event with a known id, used when events are loaded back from disk
+	 * @param id
+	 * @param date
+	 * @param name
+	 * @param notes
+	 * @param reminder
+	 * @param frequency
+	 */
+	public Event(int id, Date date, String name, String notes, int reminder,
+			Frequency frequency) {
+		
+		this(id, date, name, notes, reminder, frequency, 0);
+	} 
+	
+	/**
+	 * Creates an event with a known id and a duration
+	 * @param id
+	 * @param date
+	 * @param name
+	 * @param notes
+	 * @param reminder
+	 * @param frequency
+	 * @param duration in minutes
+	 */
+	public Event(int id, Date date, String name, String notes, int reminder,
+			Frequency frequency, int duration) {
+		
+		this.id = id;
+		reserveIdsBelow(id + 1);
+		setDate(date);
 		this.name = name;
 		this.notes = notes;
 		this.reminder = reminder;
 		this.frequency = frequency;
+		this.duration = duration;
+		updateLastStart();
 	} 
 	
 	/*
-	 * Updates the event attributes
+	 * Updates the event attributes, keeping the duration
 	 */
 	public void update(Date date, String name, String notes, int reminder,
 			Frequency frequency) {
 		
-		this.date = date;
+		update(date, name, notes, reminder, frequency, duration);
+	}
+	
+	/*
+	 * Updates the event attributes, keeping where the recurrence ends and the days it skips
+	 */
+	public void update(Date date, String name, String notes, int reminder,
+			Frequency frequency, int duration) {
+		
+		update(date, name, notes, reminder, frequency, duration, until, count, exceptionDays);
+	}
+	
+	/*
+	 * Updates the event attributes
+	 */
+	public void update(Date date, String name, String notes, int reminder,
+			Frequency frequency, int duration, long until, int count, long[] exceptionDays) {
+		
+		// checked first, so an invalid count changes nothing
+		setRecurrence(until, count, exceptionDays);
+		setDate(date);
 		this.name = name;
 		this.notes = notes;
 		this.reminder = reminder;
 		this.frequency = frequency;
+		this.duration = duration;
+		updateLastStart();
 	}
 
 	/*
@@ -85,11 +174,25 @@ public class Event {
 	public void print() {
 		System.out.println("Name : " + this.name);
 		System.out.println("Date : " + this.date.toString());
+		if (duration > 0)
+			System.out.println("Duration : " + String.valueOf(duration) + " minutes");
 		System.out.println("Frequency : " + this.frequency);
+		if (frequency != Frequency.NONE && lastStartMillis != Long.MAX_VALUE)
+			System.out.println("Last : " + new Date(lastStartMillis).toString()
+					+ (count > 0 ? " (" + String.valueOf(count) + " times)" : ""));
+		if (frequency != Frequency.NONE && exceptionDays.length > 0)
+			System.out.println("Skipped : " + String.valueOf(exceptionDays.length) + " days");
 		System.out.println("Reminder : " + String.valueOf(reminder) + " minutes");
 		System.out.println("---");
 	}
 	
+	/**
+	 * @return the id
+	 */
+	public int getId() {
+		return id;
+	}
+
 	/**
 	 * @return the date
 	 */
@@ -97,6 +200,27 @@ public class Event {
 		return date;
 	}
 
+	/**
+	 * @return the start of the event in epoch millis
+	 */
+	public long getStartMillis() {
+		return date.getTime();
+	}
+
+	/**
+	 * @return the local day of the event, counted in days from 1970-01-01
+	 */
+	public long getEpochDay() {
+		return epochDay;
+	}
+
+	/**
+	 * @return the local time of the event in minutes since midnight
+	 */
+	public int getMinuteOfDay() {
+		return minuteOfDay;
+	}
+
 	/**
 	 * @return the name
 	 */
@@ -105,10 +229,25 @@ public class Event {
 	}
 
 	/**
-	 * @return the notes
+	 * @return the notes, decoded from EventStore.notes while the event is in the store
 	 */
 	public String getNotes() {
-		return notes;
+		while (true) {
+			int version = notesVersion;
+			String text = notes;
+			if (text != null) {
+				return text;
+			}
+			if ((version & 1) == 0) {
+				// the store may have released the id and given it to other notes
+				// meanwhile, the version has moved on then and the heap copy is back
+				text = EventStore.notes.get(notesId);
+				if (notesVersion == version) {
+					return text;
+				}
+			}
+			Thread.yield();
+		}
 	}
 
 	/**
@@ -125,11 +264,58 @@ public class Event {
 		return frequency;
 	}
 
+	/**
+	 * @return the duration in minutes
+	 */
+	public int getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return the instant the recurrence ends at, Long.MAX_VALUE if it has none
+	 */
+	public long getUntil() {
+		return until;
+	}
+
+	/**
+	 * @return the number of occurrences of the recurrence, 0 if it is not limited
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the sorted local days on which no occurrence takes place. The array is
+	 * shared, it must not be changed
+	 */
+	public long[] getExceptionDays() {
+		return exceptionDays;
+	}
+
+	/**
+	 * @return the start of the last occurrence in epoch millis, Long.MAX_VALUE for a
+	 * recurrence without an end, and the start for a non recurring event
+	 */
+	public long getLastStartMillis() {
+		return lastStartMillis;
+	}
+
+	/**
+	 * @return the end of the event in epoch millis, the start if it has no duration
+	 */
+	public long getEndMillis() {
+		return date.getTime() + duration * 60000L;
+	}
+
 	/**
 	 * @param date the date to set
 	 */
 	public void setDate(Date date) {
 		this.date = date;
+		this.epochDay = Utility.getEpochDay(date.getTime());
+		this.minuteOfDay = Utility.getMinuteOfDay(date.getTime());
+		updateLastStart();
 	}
 
 	/**
@@ -146,6 +332,29 @@ public class Event {
 		this.notes = notes;
 	}
 
+	/*
+	 * lets go of the heap copy of the notes, which EventStore.notes keeps under the
+	 * given id. The caller holds the EventStore write lock
+	 */
+	void storeNotes(int id) {
+		notesVersion++;
+		notesId = id;
+		notes = null;
+		notesVersion++;
+	}
+
+	/*
+	 * takes a heap copy of the notes back before the event leaves the store and its
+	 * id is released. The caller holds the EventStore write lock
+	 */
+	void loadNotes() {
+		if (notes == null) {
+			notesVersion++;
+			notes = EventStore.notes.get(notesId);
+			notesVersion++;
+		}
+	}
+
 	/**
 	 * @param reminder the reminder to set
 	 */
@@ -158,18 +367,75 @@ public class Event {
 	 */
 	public void setFrequency(Frequency frequency) {
 		this.frequency = frequency;
+		updateLastStart();
 	}
 
-		
-}
+	/*
+	 * returns true if an event can start at the instant: less than
+	 * RecurrenceExpander.MAX_UNTIL from 1970, after 6061 BC and before the year 10000.
+	 * The days the indexes count on then fit in the trees of DayCounts
+	 */
+	public static boolean isInDateRange(long millis) {
+		return millis > -RecurrenceExpander.MAX_UNTIL && millis < RecurrenceExpander.MAX_UNTIL;
+	}
 
-/*
- * Comparator class for Priority Queues to sort the events by date
- */
-class EventDateComparator implements Comparator<Event> {
-	@Override
-    public int compare(Event event1, Event event2) {
-		return event1.getDate().compareTo(event2.getDate());
-    }
-    
+	/*
+	 * checks the start and the skipped local days of an event before it is added or
+	 * updated, so an event the indexes cannot count is turned down before anything changes
+	 */
+	public static void checkDates(long startMillis, long[] exceptionDays) {
+		if (!isInDateRange(startMillis))
+			throw new IllegalArgumentException("date " + new Date(startMillis)
+					+ " out of range, events start after 6061 BC and before the year 10000");
+		long dayLimit = RecurrenceExpander.MAX_UNTIL / Utility.DAY_MILLIS;
+		for (long day : exceptionDays) {
+			if (day <= -dayLimit || day >= dayLimit)
+				throw new IllegalArgumentException("skipped day " + day
+						+ " out of range, days are after 6061 BC and before the year 10000");
+		}
+	}
+
+	/*
+	 * sets where the recurrence ends and the local days it skips.
+	 * until is the latest instant an occurrence may start at and count the number of
+	 * occurrences, the skipped ones included, Long.MAX_VALUE and 0 for no limit
+	 */
+	public void setRecurrence(long until, int count, long[] exceptionDays) {
+		if (count < 0 || count > RecurrenceExpander.MAX_COUNT)
+			throw new IllegalArgumentException("count must be between 0 and " + RecurrenceExpander.MAX_COUNT);
+		this.until = until >= RecurrenceExpander.MAX_UNTIL ? Long.MAX_VALUE
+				: Math.max(until, -RecurrenceExpander.MAX_UNTIL);
+		this.count = count;
+		if (exceptionDays.length == 0) {
+			this.exceptionDays = RecurrenceExpander.NO_DAYS;
+		} else if (exceptionDays != this.exceptionDays) {
+			long[] days = exceptionDays.clone();
+			Arrays.sort(days);
+			int distinct = 0;
+			for (long day : days) {
+				if (distinct == 0 || days[distinct - 1] != day)
+					days[distinct++] = day;
+			}
+			this.exceptionDays = distinct == days.length ? days : Arrays.copyOf(days, distinct);
+		}
+		updateLastStart();
+	}
+
+	/*
+	 * works out the start of the last occurrence again after a change
+	 */
+	private void updateLastStart() {
+		if (date == null || frequency == null)
+			return;
+		lastStartMillis = RecurrenceExpander.getLastStart(date.getTime(), frequency, until, count);
+	}
+
+	/**
+	 * @param duration the duration to set, in minutes
+	 */
+	public void setDuration(int duration) {
+		this.duration = duration;
+	}
+
+		
 }
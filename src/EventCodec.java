@@ -0,0 +1,422 @@
+/**
+ * EventCodec.java
+ * Class to write events to a compact binary stream and read them back, for moving
+ * calendars between processes and for the snapshots on disk.
+ * Version 2 of the format is, numbers being unsigned LEB128 varints unless noted:
+ *   stream  "EVB" version(byte) block* 0(byte)
+ *   block   frequency.ordinal() + 1 (byte) count length record{count}
+ *           length is the number of bytes of the records
+ *   record  id start reminder duration name notes [rule]
+ *   rule    count until exceptions, in the records of recurring events only.
+ *           count is 0 for none, until is 0 for none or the change from the start,
+ *           zig-zag encoded, plus 1
+ *   exceptions  the number of skipped days, then the first of them as the change
+ *           from the local day of the start, zig-zag encoded, and each of the others
+ *           as the change from the one before
+ *   start   the change from the start of the record before in the block, or from 0,
+ *           zig-zag encoded. In whole minutes with the low bit 0 when it is a whole
+ *           number of minutes, in millis with the low bit 1 otherwise
+ *   string  0 then the byte count and the UTF-8 bytes of a new string, which is added
+ *           to the dictionary, or i + 1 for the string at index i of the dictionary.
+ *           Names and notes share one dictionary, filled in the order strings appear
+ *           until it holds MAX_DICTIONARY_SIZE strings
+ * Events are grouped in blocks by frequency, and written in start order they take a
+ * byte or two for the start. A block is held in a buffer until it is full or the
+ * frequency changes, and read whole into a buffer, both reused for the next block
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class EventCodec {
+	public static final int VERSION = 2;
+	private static final byte[] MAGIC = { 'E', 'V', 'B' };
+	private static final int END = 0;
+	// bytes of records a block is written after
+	private static final int BLOCK_SIZE = 64 * 1024;
+	// strings after this many are written out each time
+	static final int MAX_DICTIONARY_SIZE = 1 << 20;
+	private static final long MINUTE_MILLIS = 60000;
+	private static final Event.Frequency[] FREQUENCIES = Event.Frequency.values();
+
+	/*
+	 * Writes events to a stream. Call finish once all the events are written
+	 */
+	public static class Encoder {
+		private final OutputStream output;
+		private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		// the records of the block being filled
+		private byte[] buffer = new byte[BLOCK_SIZE + 1024];
+		private int position;
+		private int count;
+		private Event.Frequency frequency;
+		private long previousStart;
+		private final byte[] header = new byte[1 + 2 * 5];
+		private long bytesWritten;
+
+		/**
+		 * @param output the stream the events are written to, not closed by the encoder
+		 */
+		public Encoder(OutputStream output) throws IOException {
+			this.output = output;
+			output.write(MAGIC);
+			output.write(VERSION);
+			bytesWritten = MAGIC.length + 1;
+		}
+
+		public void write(Event event) throws IOException {
+			if (event.getFrequency() != frequency || position >= BLOCK_SIZE) {
+				writeBlock();
+				frequency = event.getFrequency();
+			}
+			long start = event.getStartMillis();
+			long change = start - previousStart;
+			previousStart = start;
+			writeVarint(event.getId() & 0xffffffffL);
+			if (change % MINUTE_MILLIS == 0) {
+				writeVarint(zigZag(change / MINUTE_MILLIS) << 1);
+			} else {
+				writeVarint(zigZag(change) << 1 | 1);
+			}
+			writeVarint(event.getReminder() & 0xffffffffL);
+			writeVarint(event.getDuration() & 0xffffffffL);
+			writeString(event.getName());
+			writeString(event.getNotes());
+			if (frequency != Event.Frequency.NONE) {
+				writeRule(event);
+			}
+			count++;
+		}
+
+		/*
+		 * writes the events held back and the end of the stream, and flushes the stream
+		 */
+		public void finish() throws IOException {
+			writeBlock();
+			output.write(END);
+			bytesWritten++;
+			output.flush();
+		}
+
+		/*
+		 * returns the number of bytes written to the stream so far
+		 */
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		private void writeBlock() throws IOException {
+			if (count > 0) {
+				header[0] = (byte) (frequency.ordinal() + 1);
+				int length = putVarint(header, putVarint(header, 1, count), position);
+				output.write(header, 0, length);
+				output.write(buffer, 0, position);
+				bytesWritten += length + position;
+			}
+			position = 0;
+			count = 0;
+			previousStart = 0;
+		}
+
+		private void writeRule(Event event) {
+			writeVarint(event.getCount());
+			long until = event.getUntil();
+			writeVarint(until == Long.MAX_VALUE ? 0 : zigZag(until - event.getStartMillis()) + 1);
+			long[] days = event.getExceptionDays();
+			writeVarint(days.length);
+			long previousDay = event.getEpochDay();
+			for (int i = 0; i < days.length; i++) {
+				writeVarint(i == 0 ? zigZag(days[i] - previousDay) : days[i] - previousDay);
+				previousDay = days[i];
+			}
+		}
+
+		private void writeString(String text) {
+			Integer index = dictionary.get(text);
+			if (index != null) {
+				writeVarint(index + 1L);
+				return;
+			}
+			if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+				dictionary.put(text, dictionary.size());
+			}
+			writeVarint(0);
+			int length = getUtf8Length(text);
+			writeVarint(length);
+			ensureCapacity(length);
+			position = putUtf8(text, buffer, position);
+		}
+
+		private void writeVarint(long value) {
+			ensureCapacity(10);
+			position = putVarint(buffer, position, value);
+		}
+
+		private void ensureCapacity(int bytes) {
+			if (position + bytes > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+			}
+		}
+	}
+
+	/*
+	 * Reads the events of a stream written by an Encoder
+	 */
+	public static class Decoder {
+		private final InputStream input;
+		private final boolean keepIds;
+		// the strings in the order they appeared
+		private String[] dictionary = new String[1024];
+		private int dictionarySize;
+		// the records of the block being read
+		private byte[] buffer = new byte[BLOCK_SIZE + 1024];
+		private int position;
+		private int remaining;
+		private Event.Frequency frequency;
+		private long previousStart;
+		private boolean ended;
+
+		/**
+		 * @param input the stream to read, not closed by the decoder. Nothing is read
+		 * past the end of the events
+		 * @param keepIds true to give the events the ids they were written with, false
+		 * to give them new ids in the order they are read
+		 */
+		public Decoder(InputStream input, boolean keepIds) throws IOException {
+			this.input = input;
+			this.keepIds = keepIds;
+			for (byte expected : MAGIC) {
+				if (readByte() != expected) {
+					throw new IOException("Not an event stream");
+				}
+			}
+			int version = readByte();
+			if (version != VERSION) {
+				throw new IOException("Unsupported event stream version " + version);
+			}
+		}
+
+		/*
+		 * returns the next event, or null at the end of the stream
+		 */
+		public Event read() throws IOException {
+			while (remaining == 0) {
+				if (ended || !readBlock()) {
+					return null;
+				}
+			}
+			remaining--;
+			try {
+				int id = (int) getVarint();
+				long code = getVarint();
+				long change = (code & 1) == 0 ? unZigZag(code >>> 1) * MINUTE_MILLIS : unZigZag(code >>> 1);
+				long start = previousStart + change;
+				previousStart = start;
+				int reminder = (int) getVarint();
+				int duration = (int) getVarint();
+				String name = getString();
+				String notes = getString();
+				Event event = keepIds ? new Event(id, new Date(start), name, notes, reminder, frequency, duration)
+						: new Event(new Date(start), name, notes, reminder, frequency, duration);
+				if (frequency != Event.Frequency.NONE) {
+					readRule(event);
+				}
+				return event;
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new IOException("Event stream is corrupt", e);
+			}
+		}
+
+		private void readRule(Event event) throws IOException {
+			long count = getVarint();
+			long untilCode = getVarint();
+			long dayCount = getVarint();
+			// each skipped day takes at least a byte
+			if (count > RecurrenceExpander.MAX_COUNT || dayCount > buffer.length - position) {
+				throw new IOException("Event stream is corrupt, invalid recurrence");
+			}
+			long until = untilCode == 0 ? Long.MAX_VALUE : event.getStartMillis() + unZigZag(untilCode - 1);
+			long[] days = new long[(int) dayCount];
+			long day = event.getEpochDay();
+			for (int i = 0; i < days.length; i++) {
+				day += i == 0 ? unZigZag(getVarint()) : getVarint();
+				days[i] = day;
+			}
+			event.setRecurrence(until, (int) count, days);
+		}
+
+		/*
+		 * reads the next block into the buffer. returns false at the end of the stream
+		 */
+		private boolean readBlock() throws IOException {
+			int tag = readByte();
+			if (tag == END) {
+				ended = true;
+				return false;
+			}
+			if (tag > FREQUENCIES.length) {
+				throw new IOException("Event stream is corrupt, unknown frequency " + (tag - 1));
+			}
+			frequency = FREQUENCIES[tag - 1];
+			long count = readVarint();
+			long length = readVarint();
+			if (count > Integer.MAX_VALUE || length > Integer.MAX_VALUE) {
+				throw new IOException("Event stream is corrupt, block of " + length + " bytes");
+			}
+			if (length > buffer.length) {
+				buffer = new byte[(int) length];
+			}
+			int read = 0;
+			while (read < length) {
+				int bytes = input.read(buffer, read, (int) length - read);
+				if (bytes < 0) {
+					throw new EOFException("Event stream is truncated");
+				}
+				read += bytes;
+			}
+			// a corrupt block could otherwise be read past its end into the last one
+			Arrays.fill(buffer, (int) length, Math.min(buffer.length, (int) length + 10), (byte) 0x80);
+			position = 0;
+			remaining = (int) count;
+			previousStart = 0;
+			return true;
+		}
+
+		private String getString() throws IOException {
+			long code = getVarint();
+			if (code > 0) {
+				if (code > dictionarySize) {
+					throw new IOException("Event stream is corrupt, string " + code + " is not defined");
+				}
+				return dictionary[(int) code - 1];
+			}
+			long length = getVarint();
+			if (length > buffer.length - position) {
+				throw new IOException("Event stream is corrupt, string of " + length + " bytes");
+			}
+			String text = new String(buffer, position, (int) length, StandardCharsets.UTF_8);
+			position += length;
+			if (dictionarySize < MAX_DICTIONARY_SIZE) {
+				if (dictionarySize == dictionary.length) {
+					dictionary = Arrays.copyOf(dictionary, dictionarySize * 2);
+				}
+				dictionary[dictionarySize++] = text;
+			}
+			return text;
+		}
+
+		private long getVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = buffer[position++];
+				value |= (long) (b & 0x7f) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+			throw new IOException("Event stream is corrupt, varint too long");
+		}
+
+		private long readVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7f) << shift;
+				if (b < 0x80) {
+					return value;
+				}
+			}
+			throw new IOException("Event stream is corrupt, varint too long");
+		}
+
+		private int readByte() throws IOException {
+			int b = input.read();
+			if (b < 0) {
+				throw new EOFException("Event stream is truncated");
+			}
+			return b;
+		}
+	}
+
+	/*
+	 * writes a value as an unsigned varint at position, returns the position after it
+	 */
+	static int putVarint(byte[] bytes, int position, long value) {
+		while ((value & ~0x7fL) != 0) {
+			bytes[position++] = (byte) (value | 0x80);
+			value >>>= 7;
+		}
+		bytes[position++] = (byte) value;
+		return position;
+	}
+
+	// small negative and positive values both get small codes
+	static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static long unZigZag(long code) {
+		return (code >>> 1) ^ -(code & 1);
+	}
+
+	/*
+	 * returns the number of bytes of the UTF-8 encoding of a string, unpaired
+	 * surrogates being written as '?' like String.getBytes does
+	 */
+	static int getUtf8Length(String text) {
+		int length = text.length();
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c >= 0x800) {
+				if (Character.isHighSurrogate(c) && i + 1 < text.length()
+						&& Character.isLowSurrogate(text.charAt(i + 1))) {
+					// two chars, four bytes
+					length += 2;
+					i++;
+				} else if (!Character.isSurrogate(c)) {
+					length += 2;
+				}
+			} else if (c >= 0x80) {
+				length++;
+			}
+		}
+		return length;
+	}
+
+	/*
+	 * writes the UTF-8 encoding of a string at position, returns the position after it
+	 */
+	static int putUtf8(String text, byte[] bytes, int position) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				bytes[position++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[position++] = (byte) (0xc0 | c >> 6);
+				bytes[position++] = (byte) (0x80 | c & 0x3f);
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				bytes[position++] = (byte) (0xf0 | codePoint >> 18);
+				bytes[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+				bytes[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+				bytes[position++] = (byte) (0x80 | codePoint & 0x3f);
+			} else if (Character.isSurrogate(c)) {
+				bytes[position++] = '?';
+			} else {
+				bytes[position++] = (byte) (0xe0 | c >> 12);
+				bytes[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+				bytes[position++] = (byte) (0x80 | c & 0x3f);
+			}
+		}
+		return position;
+	}
+}
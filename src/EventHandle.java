@@ -0,0 +1,155 @@
+/**
+ * EventHandle.java
+ * Class to remember where an event is indexed.
+ * The data structures find an event by the start time, frequency, duration, end of
+ * recurrence, skipped days, name and notes it had when it was added. A handle keeps
+ * these values, so an event can be removed from every structure in O(log n) even if
+ * its fields have changed since.
+ * Handles do not change, re-indexing an event gives it a new handle.
+ * Handles are ordered by start time and then by event id, which is how the time
+ * indexes keep them.
+ * The name and notes are kept as ids in EventStore.names and EventStore.notes,
+ * acquired when the handle is made and released once it is taken out of the indexes
+ */
+
+
+public class EventHandle implements Comparable<EventHandle> {
+	private final Event event;
+	private final int id;
+	private final long startMillis;
+	private final Event.Frequency frequency;
+	private final int duration;
+	private final long lastStartMillis;
+	// the array of the event, which gets a new one when its days change
+	private final long[] exceptionDays;
+	private final int nameId;
+	private final int notesId;
+
+	/**
+	 * @param event the event, indexed with its current values
+	 */
+	public EventHandle(Event event) {
+		this.event = event;
+		this.id = event.getId();
+		this.startMillis = event.getDate().getTime();
+		this.frequency = event.getFrequency();
+		this.duration = event.getDuration();
+		this.lastStartMillis = event.getLastStartMillis();
+		this.exceptionDays = event.getExceptionDays();
+		this.nameId = EventStore.names.acquire(event.getName());
+		this.notesId = EventStore.notes.acquire(event.getNotes());
+	}
+
+	private EventHandle(long startMillis, long lastStartMillis, int id) {
+		this.event = null;
+		this.id = id;
+		this.startMillis = startMillis;
+		this.frequency = null;
+		this.duration = 0;
+		this.lastStartMillis = lastStartMillis;
+		this.exceptionDays = RecurrenceExpander.NO_DAYS;
+		this.nameId = -1;
+		this.notesId = -1;
+	}
+
+	/*
+	 * returns a handle ordered before all the handles starting at the given instant,
+	 * for looking up ranges of a time index
+	 */
+	static EventHandle startingAt(long startMillis) {
+		return new EventHandle(startMillis, 0, Integer.MIN_VALUE);
+	}
+
+	@Override
+	public int compareTo(EventHandle other) {
+		int result = Long.compare(startMillis, other.startMillis);
+		return result != 0 ? result : Integer.compare(id, other.id);
+	}
+
+	/**
+	 * @return the event
+	 */
+	public Event getEvent() {
+		return event;
+	}
+
+	/**
+	 * @return the id of the event
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return the start the event is indexed under, in epoch millis
+	 */
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * @return the frequency the event is indexed under
+	 */
+	public Event.Frequency getFrequency() {
+		return frequency;
+	}
+
+	/**
+	 * @return the duration in minutes the event is indexed under in the interval index
+	 */
+	public int getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return the start of the last occurrence the event is indexed under,
+	 * Long.MAX_VALUE for a recurrence without an end
+	 */
+	public long getLastStartMillis() {
+		return lastStartMillis;
+	}
+
+	/**
+	 * @return the sorted local days the event is indexed as skipping, not to be changed
+	 */
+	public long[] getExceptionDays() {
+		return exceptionDays;
+	}
+
+	/**
+	 * @return the id of the name the event is indexed under in EventStore.names
+	 */
+	public int getNameId() {
+		return nameId;
+	}
+
+	/**
+	 * @return the id of the notes the event is indexed under in EventStore.notes
+	 */
+	public int getNotesId() {
+		return notesId;
+	}
+
+	/**
+	 * @return the lower case name the event is indexed under in nameMap
+	 */
+	public String getNameKey() {
+		return EventStore.names.getKey(nameId);
+	}
+
+	/**
+	 * @return the notes the event is indexed under in the notes index
+	 */
+	public String getNotes() {
+		return EventStore.notes.get(notesId);
+	}
+
+	/*
+	 * releases the name and notes of the handle once it is out of every index.
+	 * The caller holds the EventStore write lock
+	 */
+	void release() {
+		EventStore.names.release(nameId);
+		EventStore.notes.release(notesId);
+	}
+}
@@ -0,0 +1,936 @@
+/**
+ * EventImporter.java
+ * Class to load many events at once from CSV, iCalendar (.ics) or EventCodec (.evb) files.
+ * The file is read as a stream of records, a CSV row or an ics VEVENT, and records
+ * are parsed in chunks on several threads with java.time formatters, which unlike
+ * SimpleDateFormat can be shared between threads. The parsed chunks are collected in
+ * file order, so events get their ids in the order of the file, and are added to the
+ * data structures in large batches through EventsManager.addAllToMaps.
+ * Records that cannot be parsed are counted and reported with their line number
+ *
+ * CSV rows are date,time,name[,notes[,reminder[,frequency[,duration[,until[,count[,skipped]]]]]]],
+ * for example
+ *   11/14/2014,13:00,Dentist,"Bring the forms, both of them",30,NONE,45
+ *   1/6/2014,9:30,Standup,,5,DAILY,15,12/19/2014,,11/27/2014 11/28/2014
+ * with the reminder and the duration in minutes. A recurrence ends on the until date,
+ * or after count occurrences, and skips the dates separated by spaces in skipped.
+ * Fields with commas, quotes or line breaks are quoted, quotes are doubled inside them.
+ * A first row starting with "date" is taken as a header.
+ * .evb files are decoded on the calling thread, which is faster than handing the
+ * bytes to other threads
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.ResolverStyle;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+public class EventImporter {
+	// records parsed by one task
+	private static final int CHUNK_SIZE = 4096;
+	// events added to the data structures under one write lock
+	private static final int BATCH_SIZE = 100000;
+	// rejected records reported with their reason, the others are only counted
+	private static final int MAX_ERRORS = 20;
+
+	private static final DateTimeFormatter CSV_DATE =
+			DateTimeFormatter.ofPattern("M/d/uuuu").withResolverStyle(ResolverStyle.STRICT);
+	private static final DateTimeFormatter CSV_TIME =
+			DateTimeFormatter.ofPattern("H:mm").withResolverStyle(ResolverStyle.STRICT);
+	private static final DateTimeFormatter ICS_DATE =
+			DateTimeFormatter.ofPattern("uuuuMMdd").withResolverStyle(ResolverStyle.STRICT);
+	private static final DateTimeFormatter ICS_DATE_TIME =
+			DateTimeFormatter.ofPattern("uuuuMMdd'T'HHmmss").withResolverStyle(ResolverStyle.STRICT);
+
+	private final EventsManager eventsManager;
+	private final int threads;
+
+	/**
+	 * @param eventsManager
+	 */
+	public EventImporter(EventsManager eventsManager) {
+		this(eventsManager, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param eventsManager
+	 * @param threads number of threads parsing records
+	 */
+	public EventImporter(EventsManager eventsManager, int threads) {
+		this.eventsManager = eventsManager;
+		this.threads = Math.max(1, threads);
+	}
+
+	/*
+	 * imports the events of a file, read as iCalendar if its name ends with .ics,
+	 * as EventCodec if it ends with .evb and as CSV otherwise
+	 */
+	public Result importFile(File file) throws IOException {
+		String fileName = file.getName().toLowerCase(Locale.US);
+		if (fileName.endsWith(".evb")) {
+			InputStream input = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+			try {
+				return importEncoded(input);
+			} finally {
+				input.close();
+			}
+		}
+		boolean ics = fileName.endsWith(".ics");
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+		try {
+			return importRecords(ics ? new IcsRecordReader(reader) : new CsvRecordReader(reader), ics);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/*
+	 * imports the events of a stream written by an EventCodec.Encoder, giving them new ids
+	 */
+	public Result importEncoded(InputStream input) throws IOException {
+		long start = System.nanoTime();
+		Result result = new Result();
+		List<Event> batch = new ArrayList<Event>();
+		try {
+			EventCodec.Decoder decoder = new EventCodec.Decoder(input, false);
+			int position = 0;
+			for (Event event = decoder.read(); event != null; event = decoder.read()) {
+				position++;
+				try {
+					Event.checkDates(event.getStartMillis(), event.getExceptionDays());
+				} catch (IllegalArgumentException e) {
+					result.rejected++;
+					if (result.errors.size() < MAX_ERRORS) {
+						result.errors.add("event " + position + ": " + e.getMessage());
+					}
+					continue;
+				}
+				batch.add(event);
+				if (batch.size() >= BATCH_SIZE) {
+					addBatch(batch, result);
+				}
+			}
+			addBatch(batch, result);
+		} finally {
+			if (result.imported > 0) {
+				eventsManager.saveAllEvents();
+			}
+		}
+		result.elapsedNanos = System.nanoTime() - start;
+		return result;
+	}
+
+	private Result importRecords(RecordReader records, boolean ics) throws IOException {
+		long start = System.nanoTime();
+		Result result = new Result();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "event-import");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// parsed chunks in file order, a few per thread so the threads never wait for the reader
+		Queue<Future<ParsedChunk>> pending = new ArrayDeque<Future<ParsedChunk>>();
+		List<Event> batch = new ArrayList<Event>();
+		try {
+			List<Record> chunk = new ArrayList<Record>(CHUNK_SIZE);
+			Record record;
+			while ((record = records.next()) != null) {
+				chunk.add(record);
+				if (chunk.size() == CHUNK_SIZE) {
+					pending.add(pool.submit(new ChunkParser(chunk, ics)));
+					chunk = new ArrayList<Record>(CHUNK_SIZE);
+					if (pending.size() > threads * 2) {
+						collect(pending.poll(), batch, result);
+					}
+				}
+			}
+			if (!chunk.isEmpty()) {
+				pending.add(pool.submit(new ChunkParser(chunk, ics)));
+			}
+			while (!pending.isEmpty()) {
+				collect(pending.poll(), batch, result);
+			}
+			addBatch(batch, result);
+		} finally {
+			pool.shutdownNow();
+			// imported events are not journaled one by one, they are saved together
+			if (result.imported > 0) {
+				eventsManager.saveAllEvents();
+			}
+		}
+		result.elapsedNanos = System.nanoTime() - start;
+		return result;
+	}
+
+	/*
+	 * waits for a parsed chunk and adds its events to the batch, adding the batch
+	 * to the data structures when it is full
+	 */
+	private void collect(Future<ParsedChunk> future, List<Event> batch, Result result) throws IOException {
+		ParsedChunk chunk;
+		try {
+			chunk = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Import interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not parse records", e.getCause());
+		}
+		result.rejected += chunk.rejected;
+		for (String error : chunk.errors) {
+			if (result.errors.size() < MAX_ERRORS) {
+				result.errors.add(error);
+			}
+		}
+		batch.addAll(chunk.events);
+		if (batch.size() >= BATCH_SIZE) {
+			addBatch(batch, result);
+		}
+	}
+
+	private void addBatch(List<Event> batch, Result result) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		eventsManager.addAllToMaps(batch);
+		result.imported += batch.size();
+		batch.clear();
+	}
+
+	/*
+	 * parses a CSV row: date,time,name[,notes[,reminder[,frequency[,duration[,until[,count[,skipped]]]]]]]
+	 */
+	static Event parseCsvRecord(String text, int id) {
+		List<String> fields = splitCsvFields(text);
+		if (fields.size() < 3 || fields.size() > 10) {
+			throw new IllegalArgumentException("expected 3 to 10 fields but found " + fields.size());
+		}
+		return createEvent(id, fields.get(0), fields.get(1), fields.get(2),
+				fields.size() > 3 ? fields.get(3) : null,
+				fields.size() > 4 ? fields.get(4) : null,
+				fields.size() > 5 ? fields.get(5) : null,
+				fields.size() > 6 ? fields.get(6) : null,
+				fields.size() > 7 ? fields.get(7) : null,
+				fields.size() > 8 ? fields.get(8) : null,
+				fields.size() > 9 ? fields.get(9) : null);
+	}
+
+	/*
+	 * creates an event from the text of its fields, formatted like in a CSV row.
+	 * notes, reminder, frequency and duration are optional and may be null or blank
+	 */
+	static Event createEvent(int id, String dateText, String timeText, String nameText,
+			String notes, String reminderText, String frequencyText, String durationText) {
+		return createEvent(id, dateText, timeText, nameText, notes, reminderText, frequencyText, durationText,
+				null, null, null);
+	}
+
+	/*
+	 * creates an event from the text of its fields, formatted like in a CSV row.
+	 * All but the date, time and name are optional and may be null or blank
+	 */
+	static Event createEvent(int id, String dateText, String timeText, String nameText,
+			String notes, String reminderText, String frequencyText, String durationText,
+			String untilText, String countText, String skippedText) {
+		if (dateText == null || timeText == null) {
+			throw new IllegalArgumentException("missing " + (dateText == null ? "date" : "time"));
+		}
+		LocalDate date = LocalDate.from(parse(dateText.trim(), CSV_DATE, "date"));
+		LocalTime time = LocalTime.from(parse(timeText.trim(), CSV_TIME, "time"));
+		String name = nameText == null ? "" : nameText.trim();
+		if (name.isEmpty()) {
+			throw new IllegalArgumentException("missing name");
+		}
+		int reminder = 0;
+		if (reminderText != null && !reminderText.trim().isEmpty()) {
+			reminder = parseReminder(reminderText.trim());
+		}
+		Event.Frequency frequency = Event.Frequency.NONE;
+		if (frequencyText != null && !frequencyText.trim().isEmpty()) {
+			frequency = parseFrequency(frequencyText.trim());
+		}
+		int duration = 0;
+		if (durationText != null && !durationText.trim().isEmpty()) {
+			duration = parseDuration(durationText.trim());
+		}
+		long until = Long.MAX_VALUE;
+		if (untilText != null && !untilText.trim().isEmpty()) {
+			// occurrences on the until date are still on
+			LocalDate untilDate = LocalDate.from(parse(untilText.trim(), CSV_DATE, "until"));
+			until = untilDate.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli() - 1;
+		}
+		int count = 0;
+		if (countText != null && !countText.trim().isEmpty()) {
+			count = parseCount(countText.trim());
+		}
+		long[] skipped = RecurrenceExpander.NO_DAYS;
+		if (skippedText != null && !skippedText.trim().isEmpty()) {
+			String[] dates = skippedText.trim().split("\\s+");
+			skipped = new long[dates.length];
+			for (int i = 0; i < dates.length; i++) {
+				skipped[i] = LocalDate.from(parse(dates[i], CSV_DATE, "skipped date")).toEpochDay();
+			}
+		}
+		long millis = LocalDateTime.of(date, time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		Event.checkDates(millis, skipped);
+		Event event = new Event(id, new Date(millis), name, notes == null ? "" : notes, reminder, frequency, duration);
+		event.setRecurrence(until, count, skipped);
+		return event;
+	}
+
+	/*
+	 * returns the epoch day of a date formatted like in a CSV row
+	 */
+	static long parseEpochDay(String dateText) {
+		return LocalDate.from(parse(dateText.trim(), CSV_DATE, "date")).toEpochDay();
+	}
+
+	/*
+	 * splits a CSV record into fields, removing the quotes around quoted fields
+	 */
+	static List<String> splitCsvFields(String text) {
+		List<String> fields = new ArrayList<String>(6);
+		int position = 0;
+		while (true) {
+			if (position < text.length() && text.charAt(position) == '"') {
+				StringBuilder field = new StringBuilder();
+				int i = position + 1;
+				while (true) {
+					int quote = text.indexOf('"', i);
+					if (quote < 0) {
+						throw new IllegalArgumentException("unterminated quoted field");
+					}
+					field.append(text, i, quote);
+					if (quote + 1 < text.length() && text.charAt(quote + 1) == '"') {
+						// a doubled quote stands for one quote
+						field.append('"');
+						i = quote + 2;
+					} else {
+						i = quote + 1;
+						break;
+					}
+				}
+				fields.add(field.toString());
+				if (i == text.length()) {
+					return fields;
+				}
+				if (text.charAt(i) != ',') {
+					throw new IllegalArgumentException("text after a quoted field");
+				}
+				position = i + 1;
+			} else {
+				int comma = text.indexOf(',', position);
+				if (comma < 0) {
+					fields.add(text.substring(position));
+					return fields;
+				}
+				fields.add(text.substring(position, comma));
+				position = comma + 1;
+			}
+		}
+	}
+
+	private static int parseReminder(String text) {
+		int reminder;
+		try {
+			reminder = Integer.parseInt(text);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid reminder " + text);
+		}
+		if (reminder < 0) {
+			throw new IllegalArgumentException("negative reminder " + text);
+		}
+		return reminder;
+	}
+
+	private static int parseDuration(String text) {
+		int duration;
+		try {
+			duration = Integer.parseInt(text);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid duration " + text);
+		}
+		if (duration < 0) {
+			throw new IllegalArgumentException("negative duration " + text);
+		}
+		return duration;
+	}
+
+	private static int parseCount(String text) {
+		int count;
+		try {
+			count = Integer.parseInt(text);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid count " + text);
+		}
+		if (count < 0 || count > RecurrenceExpander.MAX_COUNT) {
+			throw new IllegalArgumentException("count must be between 0 and " + RecurrenceExpander.MAX_COUNT);
+		}
+		return count;
+	}
+
+	private static Event.Frequency parseFrequency(String text) {
+		for (Event.Frequency frequency : Event.Frequency.values()) {
+			if (frequency.name().equalsIgnoreCase(text)) {
+				return frequency;
+			}
+		}
+		throw new IllegalArgumentException("invalid frequency " + text);
+	}
+
+	/*
+	 * parses the unfolded lines of a VEVENT. SUMMARY is the name, DESCRIPTION the
+	 * notes, the RRULE the frequency and end of the recurrence, EXDATE the days it
+	 * skips, DURATION or DTEND the duration and a VALARM triggered before the start
+	 * gives the reminder
+	 */
+	static Event parseIcsRecord(String text, int id) {
+		String[] lines = text.split("\n");
+		if (!lines[lines.length - 1].trim().equalsIgnoreCase("END:VEVENT")) {
+			throw new IllegalArgumentException("VEVENT has no END");
+		}
+		String name = null;
+		String notes = "";
+		Long start = null;
+		Long end = null;
+		String durationValue = null;
+		int reminder = 0;
+		Rule rule = null;
+		List<Long> skipped = new ArrayList<Long>();
+		// the component each line belongs to, VEVENT or one nested in it
+		List<String> components = new ArrayList<String>();
+		for (String line : lines) {
+			int colon = findValueStart(line);
+			if (colon < 0) {
+				throw new IllegalArgumentException("invalid content line " + line);
+			}
+			String value = line.substring(colon + 1);
+			String[] head = splitParameters(line.substring(0, colon));
+			String property = head[0].toUpperCase(Locale.US);
+			if (components.isEmpty() && !property.equals("BEGIN")) {
+				throw new IllegalArgumentException("content outside the VEVENT " + line);
+			}
+			if (property.equals("BEGIN")) {
+				components.add(value.trim().toUpperCase(Locale.US));
+				continue;
+			}
+			if (property.equals("END")) {
+				components.remove(components.size() - 1);
+				continue;
+			}
+			Map<String, String> parameters = getParameters(head);
+			String component = components.get(components.size() - 1);
+			if (component.equals("VALARM")) {
+				if (property.equals("TRIGGER") && !"DATE-TIME".equalsIgnoreCase(parameters.get("VALUE"))
+						&& !"END".equalsIgnoreCase(parameters.get("RELATED"))) {
+					reminder = Math.max(reminder, parseTrigger(value.trim()));
+				}
+			} else if (components.size() == 1) {
+				if (property.equals("SUMMARY")) {
+					name = unescapeText(value).trim();
+				} else if (property.equals("DESCRIPTION")) {
+					notes = unescapeText(value);
+				} else if (property.equals("DTSTART")) {
+					start = parseIcsTime(value.trim(), parameters, "DTSTART");
+				} else if (property.equals("DTEND")) {
+					end = parseIcsTime(value.trim(), parameters, "DTEND");
+				} else if (property.equals("DURATION")) {
+					durationValue = value.trim();
+				} else if (property.equals("RRULE")) {
+					rule = parseRule(value.trim());
+				} else if (property.equals("EXDATE")) {
+					for (String date : value.trim().split(",")) {
+						skipped.add(Utility.getEpochDay(parseIcsTime(date.trim(), parameters, "EXDATE")));
+					}
+				}
+			}
+		}
+		if (name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("missing SUMMARY");
+		}
+		if (start == null) {
+			throw new IllegalArgumentException("missing DTSTART");
+		}
+		long duration = 0;
+		if (durationValue != null) {
+			if (durationValue.startsWith("-")) {
+				throw new IllegalArgumentException("negative DURATION " + durationValue);
+			}
+			duration = parseDurationMinutes(durationValue.startsWith("+") ? durationValue.substring(1) : durationValue,
+					"DURATION");
+		} else if (end != null) {
+			if (end < start) {
+				throw new IllegalArgumentException("DTEND before DTSTART");
+			}
+			duration = (end - start) / 60000;
+		}
+		long[] days = new long[rule == null ? 0 : skipped.size()];
+		for (int i = 0; i < days.length; i++) {
+			days[i] = skipped.get(i);
+		}
+		Event.checkDates(start, days);
+		Event event = new Event(id, new Date(start), name, notes, reminder,
+				rule == null ? Event.Frequency.NONE : rule.frequency, (int) Math.min(duration, Integer.MAX_VALUE));
+		if (rule != null) {
+			event.setRecurrence(rule.until, rule.count, days);
+		}
+		return event;
+	}
+
+	/*
+	 * returns the index of the colon ending the property name and parameters,
+	 * skipping colons in quoted parameter values
+	 */
+	private static int findValueStart(String line) {
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (c == ':' && !quoted) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static String[] splitParameters(String head) {
+		List<String> parts = new ArrayList<String>();
+		boolean quoted = false;
+		int partStart = 0;
+		for (int i = 0; i < head.length(); i++) {
+			char c = head.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (c == ';' && !quoted) {
+				parts.add(head.substring(partStart, i));
+				partStart = i + 1;
+			}
+		}
+		parts.add(head.substring(partStart));
+		return parts.toArray(new String[parts.size()]);
+	}
+
+	private static Map<String, String> getParameters(String[] head) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		for (int i = 1; i < head.length; i++) {
+			int equals = head[i].indexOf('=');
+			if (equals > 0) {
+				String value = head[i].substring(equals + 1);
+				if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+					value = value.substring(1, value.length() - 1);
+				}
+				parameters.put(head[i].substring(0, equals).toUpperCase(Locale.US), value);
+			}
+		}
+		return parameters;
+	}
+
+	/*
+	 * returns the epoch millis of a DTSTART or DTEND value: a UTC time ending in Z, a time
+	 * in the zone named by TZID or the local zone, or a date starting at midnight
+	 */
+	private static long parseIcsTime(String value, Map<String, String> parameters, String field) {
+		ZoneId zone = ZoneId.systemDefault();
+		String zoneName = parameters.get("TZID");
+		if (zoneName != null) {
+			try {
+				zone = ZoneId.of(zoneName);
+			} catch (DateTimeException e) {
+				throw new IllegalArgumentException("unknown time zone " + zoneName);
+			}
+		}
+		if ("DATE".equalsIgnoreCase(parameters.get("VALUE")) || value.length() == 8) {
+			LocalDate date = LocalDate.from(parse(value, ICS_DATE, field));
+			return date.atStartOfDay(zone).toInstant().toEpochMilli();
+		}
+		if (value.endsWith("Z") || value.endsWith("z")) {
+			LocalDateTime dateTime = LocalDateTime.from(
+					parse(value.substring(0, value.length() - 1), ICS_DATE_TIME, field));
+			return dateTime.toInstant(ZoneOffset.UTC).toEpochMilli();
+		}
+		LocalDateTime dateTime = LocalDateTime.from(parse(value, ICS_DATE_TIME, field));
+		return dateTime.atZone(zone).toInstant().toEpochMilli();
+	}
+
+	/*
+	 * The frequency and end of a recurrence rule
+	 */
+	private static class Rule {
+		Event.Frequency frequency;
+		long until = Long.MAX_VALUE;
+		int count;
+	}
+
+	/*
+	 * returns the frequency, UNTIL and COUNT of a recurrence rule. Rules this calendar
+	 * cannot repeat exactly, like every other week, are rejected
+	 */
+	private static Rule parseRule(String text) {
+		Rule rule = new Rule();
+		Event.Frequency frequency = null;
+		for (String part : text.split(";")) {
+			int equals = part.indexOf('=');
+			String key = (equals < 0 ? part : part.substring(0, equals)).toUpperCase(Locale.US);
+			String value = equals < 0 ? "" : part.substring(equals + 1);
+			if (key.equals("FREQ")) {
+				frequency = parseFrequency(value);
+				if (frequency == Event.Frequency.NONE) {
+					throw new IllegalArgumentException("invalid frequency " + value);
+				}
+			} else if (key.equals("UNTIL")) {
+				rule.until = parseUntil(value);
+			} else if (key.equals("COUNT")) {
+				rule.count = parseCount(value);
+				if (rule.count == 0) {
+					throw new IllegalArgumentException("invalid COUNT " + value);
+				}
+			} else if (!(key.equals("WKST") || key.equals("INTERVAL") && value.equals("1"))) {
+				throw new IllegalArgumentException("unsupported recurrence rule part " + part);
+			}
+		}
+		if (frequency == null) {
+			throw new IllegalArgumentException("recurrence rule without FREQ");
+		}
+		rule.frequency = frequency;
+		return rule;
+	}
+
+	/*
+	 * returns the last instant of an UNTIL value: a date, which is included, or a
+	 * time in UTC or in the local zone
+	 */
+	private static long parseUntil(String value) {
+		if (value.length() == 8) {
+			LocalDate date = LocalDate.from(parse(value, ICS_DATE, "UNTIL"));
+			return date.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli() - 1;
+		}
+		return parseIcsTime(value, new HashMap<String, String>(), "UNTIL");
+	}
+
+	/*
+	 * returns the minutes before the start of an alarm trigger like -PT15M or -P1D,
+	 * 0 for triggers after the start
+	 */
+	private static int parseTrigger(String value) {
+		boolean beforeStart = value.startsWith("-");
+		String duration = value.startsWith("-") || value.startsWith("+") ? value.substring(1) : value;
+		long minutes = parseDurationMinutes(duration, "alarm trigger");
+		return beforeStart ? (int) Math.min(minutes, Integer.MAX_VALUE) : 0;
+	}
+
+	/*
+	 * returns the minutes of an unsigned ics duration like PT15M, P1D or P2W
+	 */
+	private static long parseDurationMinutes(String duration, String field) {
+		try {
+			int weeks = duration.toUpperCase(Locale.US).indexOf('W');
+			if (weeks > 0) {
+				return Long.parseLong(duration.substring(1, weeks)) * 7 * 24 * 60;
+			}
+			return Duration.parse(duration).toMinutes();
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("invalid " + field + " " + duration);
+		}
+	}
+
+	/*
+	 * undoes the escaping of ics text values
+	 */
+	private static String unescapeText(String value) {
+		if (value.indexOf('\\') < 0) {
+			return value;
+		}
+		StringBuilder text = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				char escaped = value.charAt(++i);
+				text.append(escaped == 'n' || escaped == 'N' ? '\n' : escaped);
+			} else {
+				text.append(c);
+			}
+		}
+		return text.toString();
+	}
+
+	private static TemporalAccessor parse(String text, DateTimeFormatter format, String field) {
+		try {
+			return format.parse(text);
+		} catch (DateTimeException e) {
+			throw new IllegalArgumentException("invalid " + field + " " + text);
+		}
+	}
+
+	/*
+	 * The outcome of an import
+	 */
+	public static class Result {
+		private int imported;
+		private int rejected;
+		private final List<String> errors = new ArrayList<String>();
+		private long elapsedNanos;
+
+		/**
+		 * @return the number of events imported
+		 */
+		public int getImported() {
+			return imported;
+		}
+
+		/**
+		 * @return the number of records that could not be imported
+		 */
+		public int getRejected() {
+			return rejected;
+		}
+
+		/**
+		 * @return why the first rejected records could not be imported, with their line
+		 */
+		public List<String> getErrors() {
+			return errors;
+		}
+
+		/**
+		 * @return the time the import took in nanoseconds
+		 */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * @return the number of events imported per second
+		 */
+		public double getEventsPerSecond() {
+			return elapsedNanos == 0 ? 0 : imported * 1e9 / elapsedNanos;
+		}
+	}
+
+	/*
+	 * A CSV row or ics VEVENT and the line it starts on
+	 */
+	private static class Record {
+		final int line;
+		final String text;
+
+		Record(int line, String text) {
+			this.line = line;
+			this.text = text;
+		}
+	}
+
+	private static class ParsedChunk {
+		final List<Event> events = new ArrayList<Event>();
+		final List<String> errors = new ArrayList<String>();
+		int rejected;
+	}
+
+	/*
+	 * Parses a chunk of records on a pool thread. The ids of the chunk are reserved
+	 * when it is created, so they follow the order of the file
+	 */
+	private static class ChunkParser implements Callable<ParsedChunk> {
+		private final List<Record> records;
+		private final boolean ics;
+		private final int firstId;
+
+		ChunkParser(List<Record> records, boolean ics) {
+			this.records = records;
+			this.ics = ics;
+			this.firstId = Event.reserveIds(records.size());
+		}
+
+		@Override
+		public ParsedChunk call() {
+			ParsedChunk chunk = new ParsedChunk();
+			for (int i = 0; i < records.size(); i++) {
+				Record record = records.get(i);
+				try {
+					chunk.events.add(ics ? parseIcsRecord(record.text, firstId + i)
+							: parseCsvRecord(record.text, firstId + i));
+				} catch (RuntimeException e) {
+					chunk.rejected++;
+					if (chunk.errors.size() < MAX_ERRORS) {
+						chunk.errors.add("line " + record.line + ": "
+								+ (e.getMessage() != null ? e.getMessage() : e.toString()));
+					}
+				}
+			}
+			return chunk;
+		}
+	}
+
+	private static interface RecordReader {
+		/*
+		 * returns the next record, null at the end of the file
+		 */
+		Record next() throws IOException;
+	}
+
+	/*
+	 * Reads CSV rows, a row goes on over line breaks inside quoted fields
+	 */
+	private static class CsvRecordReader implements RecordReader {
+		private final BufferedReader reader;
+		private int lineNumber;
+
+		CsvRecordReader(BufferedReader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		public Record next() throws IOException {
+			String line;
+			do {
+				line = reader.readLine();
+				if (line == null) {
+					return null;
+				}
+				lineNumber++;
+				if (lineNumber == 1) {
+					line = removeByteOrderMark(line);
+					if (line.toLowerCase(Locale.US).startsWith("date")) {
+						line = "";
+					}
+				}
+			} while (line.trim().isEmpty());
+			int firstLine = lineNumber;
+			if (countQuotes(line) % 2 == 0) {
+				return new Record(firstLine, line);
+			}
+			StringBuilder text = new StringBuilder(line);
+			int quotes = countQuotes(line);
+			while (quotes % 2 != 0 && (line = reader.readLine()) != null) {
+				lineNumber++;
+				text.append('\n').append(line);
+				quotes += countQuotes(line);
+			}
+			return new Record(firstLine, text.toString());
+		}
+
+		private static int countQuotes(String line) {
+			int count = 0;
+			for (int i = 0; i < line.length(); i++) {
+				if (line.charAt(i) == '"') {
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+
+	/*
+	 * Reads the VEVENTs of an ics file, with folded lines joined back together.
+	 * Everything outside the VEVENTs, like time zone definitions, is skipped
+	 */
+	private static class IcsRecordReader implements RecordReader {
+		private final BufferedReader reader;
+		private int lineNumber;
+		// the line following the last unfolded one and its number
+		private String nextLine;
+		private int nextLineNumber;
+		private int unfoldedLineNumber;
+
+		IcsRecordReader(BufferedReader reader) throws IOException {
+			this.reader = reader;
+			nextLine = reader.readLine();
+			if (nextLine != null) {
+				nextLine = removeByteOrderMark(nextLine);
+				nextLineNumber = ++lineNumber;
+			}
+		}
+
+		@Override
+		public Record next() throws IOException {
+			String line;
+			while ((line = readUnfoldedLine()) != null) {
+				if (line.trim().equalsIgnoreCase("BEGIN:VEVENT")) {
+					break;
+				}
+			}
+			if (line == null) {
+				return null;
+			}
+			int firstLine = unfoldedLineNumber;
+			StringBuilder text = new StringBuilder(line.trim());
+			int depth = 1;
+			while (depth > 0 && (line = readUnfoldedLine()) != null) {
+				String upper = line.toUpperCase(Locale.US);
+				if (upper.startsWith("BEGIN:")) {
+					depth++;
+				} else if (upper.startsWith("END:")) {
+					depth--;
+				}
+				text.append('\n').append(line);
+			}
+			return new Record(firstLine, text.toString());
+		}
+
+		/*
+		 * returns the next content line, joining the lines starting with a space or
+		 * tab to the one before
+		 */
+		private String readUnfoldedLine() throws IOException {
+			String line = nextLine;
+			if (line == null) {
+				return null;
+			}
+			unfoldedLineNumber = nextLineNumber;
+			StringBuilder unfolded = null;
+			while (true) {
+				nextLine = reader.readLine();
+				if (nextLine == null) {
+					break;
+				}
+				nextLineNumber = ++lineNumber;
+				if (nextLine.isEmpty() || (nextLine.charAt(0) != ' ' && nextLine.charAt(0) != '\t')) {
+					break;
+				}
+				if (unfolded == null) {
+					unfolded = new StringBuilder(line);
+				}
+				unfolded.append(nextLine, 1, nextLine.length());
+			}
+			return unfolded == null ? line : unfolded.toString();
+		}
+	}
+
+	private static String removeByteOrderMark(String line) {
+		return line.startsWith("\uFEFF") ? line.substring(1) : line;
+	}
+}
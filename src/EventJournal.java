@@ -0,0 +1,298 @@
+/**
+ * EventJournal.java
+ * Class to append records to a journal file.
+ * Each record is framed with its length and a checksum so that a record torn by a
+ * crash is detected on replay. Appends made while a sync is in progress are written
+ * and synced together by the next sync (group commit), and append only returns once
+ * its record is on disk
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+public class EventJournal {
+	private static final int MAGIC = 0x45564a31; // "EVJ1"
+	private static final int HEADER_SIZE = 4;
+	// a record longer than this is treated as garbage at the end of the file
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+	private final File journalFile;
+	// replaced when the records covered by a snapshot are discarded
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private final Thread syncThread;
+
+	// records appended but not yet handed to the sync thread
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private DataOutputStream pendingOutput = new DataOutputStream(pending);
+	private long appendedCount;
+	// the size of the file once every appended record is written
+	private long appendedSize;
+	private long durableCount;
+	private IOException syncFailure;
+	private boolean closed;
+
+	/*
+	 * opens the journal, creating it if needed.
+	 * The records already in the file are returned by readRecords()
+	 */
+	public EventJournal(File journalFile) throws IOException {
+		this.journalFile = journalFile;
+		file = new RandomAccessFile(journalFile, "rw");
+		channel = file.getChannel();
+		if (channel.size() < HEADER_SIZE) {
+			reset();
+		} else {
+			file.seek(0);
+			if (file.readInt() != MAGIC) {
+				throw new IOException("Not an event journal: " + journalFile);
+			}
+			channel.position(channel.size());
+			appendedSize = channel.size();
+		}
+
+		syncThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				syncLoop();
+			}
+		}, "event-journal-sync");
+		syncThread.setDaemon(true);
+		syncThread.start();
+	}
+
+	/*
+	 * reads the records in the journal in append order.
+	 * Reading stops at the first incomplete or corrupt record and the file is
+	 * cut there, so the next append follows the last good record
+	 */
+	public synchronized List<byte[]> readRecords() throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		long size = channel.size();
+		long position = HEADER_SIZE;
+		file.seek(position);
+		CRC32 crc = new CRC32();
+		while (position + 8 <= size) {
+			int length = file.readInt();
+			if (length < 0 || length > MAX_RECORD_SIZE || position + 8 + length > size) {
+				break;
+			}
+			byte[] record = new byte[length];
+			file.readFully(record);
+			int checksum = file.readInt();
+			crc.reset();
+			crc.update(record, 0, length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			records.add(record);
+			position += 8 + length;
+		}
+		if (position < size) {
+			channel.truncate(position);
+			channel.force(true);
+		}
+		channel.position(position);
+		appendedSize = position;
+		return records;
+	}
+
+	/*
+	 * appends a record and waits until it is synced to disk
+	 */
+	public void append(byte[] record) throws IOException {
+		awaitDurable(enqueue(record));
+	}
+
+	/*
+	 * appends a record without waiting for it to be synced.
+	 * returns the sequence number to pass to awaitDurable
+	 */
+	public synchronized long enqueue(byte[] record) throws IOException {
+		checkUsable();
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length);
+		pendingOutput.writeInt(record.length);
+		pendingOutput.write(record);
+		pendingOutput.writeInt((int) crc.getValue());
+		appendedSize += 8 + record.length;
+		notifyAll();
+		return ++appendedCount;
+	}
+
+	/*
+	 * empties the journal, called once its records are covered by a snapshot
+	 */
+	public synchronized void reset() throws IOException {
+		awaitDurable(appendedCount);
+		channel.truncate(0);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.flip();
+		channel.write(header, 0);
+		channel.force(true);
+		channel.position(HEADER_SIZE);
+		appendedSize = HEADER_SIZE;
+	}
+
+	/*
+	 * returns the size the file has once every record appended so far is written,
+	 * which is where the next record goes. Pass it to discardBefore
+	 */
+	public synchronized long getEnd() {
+		return appendedSize;
+	}
+
+	/*
+	 * removes the records before the given end, called once they are covered by a
+	 * snapshot. The records after it are copied to a new file that is then renamed
+	 * over the journal, so a crash leaves either the old journal or the new one
+	 */
+	public synchronized void discardBefore(long end) throws IOException {
+		awaitDurable(appendedCount);
+		if (end <= HEADER_SIZE) {
+			return;
+		}
+		ByteBuffer kept = ByteBuffer.allocate(HEADER_SIZE + (int) (channel.size() - end));
+		kept.putInt(MAGIC);
+		while (kept.hasRemaining()) {
+			if (channel.read(kept, end + kept.position() - HEADER_SIZE) < 0) {
+				throw new EOFException("Journal is shorter than " + end + " bytes: " + journalFile);
+			}
+		}
+		kept.flip();
+		File tempFile = new File(journalFile.getPath() + ".tmp");
+		RandomAccessFile tempOutput = new RandomAccessFile(tempFile, "rw");
+		try {
+			tempOutput.setLength(0);
+			FileChannel tempChannel = tempOutput.getChannel();
+			while (kept.hasRemaining()) {
+				tempChannel.write(kept);
+			}
+			tempChannel.force(true);
+		} finally {
+			tempOutput.close();
+		}
+		// some systems cannot rename over an open file
+		file.close();
+		try {
+			Files.move(tempFile.toPath(), journalFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			file = new RandomAccessFile(journalFile, "rw");
+			channel = file.getChannel();
+			channel.position(channel.size());
+			appendedSize = channel.size();
+		}
+	}
+
+	/*
+	 * returns the size of the journal file in bytes
+	 */
+	public synchronized long size() throws IOException {
+		return channel.size();
+	}
+
+	/*
+	 * syncs the outstanding records and closes the file
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			awaitDurable(appendedCount);
+			closed = true;
+			notifyAll();
+		}
+		try {
+			syncThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		file.close();
+	}
+
+	/*
+	 * waits until the record with the given sequence number is synced to disk
+	 */
+	public synchronized void awaitDurable(long sequence) throws IOException {
+		boolean interrupted = false;
+		while (durableCount < sequence && syncFailure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (syncFailure != null) {
+			throw new IOException("Journal sync failed", syncFailure);
+		}
+	}
+
+	private void checkUsable() throws IOException {
+		if (closed) {
+			throw new IOException("Journal is closed");
+		}
+		if (syncFailure != null) {
+			throw new IOException("Journal sync failed", syncFailure);
+		}
+	}
+
+	/*
+	 * writes and syncs everything appended since the previous sync, then repeats
+	 */
+	private void syncLoop() {
+		while (true) {
+			byte[] batch;
+			long batchEnd;
+			synchronized (this) {
+				while (pending.size() == 0 && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (pending.size() == 0) {
+					return;
+				}
+				batch = pending.toByteArray();
+				batchEnd = appendedCount;
+				pending.reset();
+			}
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(batch);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(false);
+			} catch (IOException e) {
+				synchronized (this) {
+					syncFailure = e;
+					notifyAll();
+				}
+				return;
+			}
+			synchronized (this) {
+				durableCount = batchEnd;
+				notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/**
+ * EventMetrics.java
+ * Class to measure an EventsManager: a LatencyHistogram of the time taken by each kind
+ * of operation, and the sizes of the data structures, read from them when asked for.
+ * The write operations are timed including the wait for their change to reach the disk.
+ * Reminders are timed in the sink, and their delay is how late they fired after the
+ * time they were due.
+ * The metrics are read through JMX once register is called, or as text with getSnapshot
+ */
+
+import java.lang.management.ManagementFactory;
+import java.text.DateFormatSymbols;
+import java.util.Calendar;
+import java.util.Locale;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+public class EventMetrics implements EventMetricsMXBean {
+	public static final String OBJECT_NAME = "EventsManager:type=Metrics";
+	private static final String[] MONTH_NAMES = DateFormatSymbols.getInstance(Locale.US).getMonths();
+
+	/*
+	 * The timed operations, with the names they are shown with
+	 */
+	public static enum Operation {
+		ADD("add"),
+		UPDATE("update"),
+		DELETE("delete"),
+		LIST_MONTH("list month"),
+		SEARCH_NAME("search name"),
+		SEARCH_NOTES("search notes"),
+		OCCURRENCES("occurrences"),
+		FREE_BUSY("free busy"),
+		CONFLICTS("conflicts"),
+		REMINDER("reminder"),
+		REMINDER_DELAY("reminder delay");
+
+		private final String label;
+
+		private Operation(String label) {
+			this.label = label;
+		}
+	}
+
+	private final EventsManager eventsManager;
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+
+	/**
+	 * @param eventsManager the manager whose pending reminders are counted
+	 */
+	public EventMetrics(EventsManager eventsManager) {
+		this.eventsManager = eventsManager;
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	/*
+	 * records an operation that started at startNanos, a value of System.nanoTime
+	 */
+	public void record(Operation operation, long startNanos) {
+		latencies[operation.ordinal()].recordSince(startNanos);
+	}
+
+	/*
+	 * records the duration of an operation
+	 */
+	public void recordNanos(Operation operation, long nanos) {
+		latencies[operation.ordinal()].record(nanos);
+	}
+
+	public LatencyHistogram.Snapshot getLatency(Operation operation) {
+		return latencies[operation.ordinal()].getSnapshot();
+	}
+
+	/*
+	 * makes the metrics readable over JMX under OBJECT_NAME
+	 */
+	public void register() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+	}
+
+	public void unregister() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getAddLatency() {
+		return getLatency(Operation.ADD);
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getUpdateLatency() {
+		return getLatency(Operation.UPDATE);
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getDeleteLatency() {
+		return getLatency(Operation.DELETE);
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getListMonthLatency() {
+		return getLatency(Operation.LIST_MONTH);
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getSearchNameLatency() {
+		return getLatency(Operation.SEARCH_NAME);
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getSearchNotesLatency() {
+		return getLatency(Operation.SEARCH_NOTES);
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getOccurrencesLatency() {
+		return getLatency(Operation.OCCURRENCES);
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getFreeBusyLatency() {
+		return getLatency(Operation.FREE_BUSY);
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getConflictsLatency() {
+		return getLatency(Operation.CONFLICTS);
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getReminderLatency() {
+		return getLatency(Operation.REMINDER);
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getReminderDelay() {
+		return getLatency(Operation.REMINDER_DELAY);
+	}
+
+	@Override
+	public int getEventCount() {
+		return EventStore.handles.size();
+	}
+
+	@Override
+	public int getNameCount() {
+		return EventStore.nameMap.size();
+	}
+
+	@Override
+	public int getNoteWordCount() {
+		return EventStore.notesIndex.getWordCount();
+	}
+
+	@Override
+	public int getDistinctNotesCount() {
+		return EventStore.notes.size();
+	}
+
+	@Override
+	public long getNotesOffHeapBytes() {
+		return EventStore.notes.getAllocatedBytes();
+	}
+
+	@Override
+	public int getNonRecurringEventCount() {
+		return EventStore.nonRecurringEvents.size();
+	}
+
+	@Override
+	public int getDailyEventCount() {
+		return EventStore.dailyEvents.size();
+	}
+
+	@Override
+	public int getWeeklyEventCount() {
+		return EventStore.weeklyEvents.size();
+	}
+
+	@Override
+	public int getMonthlyEventCount() {
+		return EventStore.monthlyEvents.size();
+	}
+
+	@Override
+	public int[] getYearlyEventCounts() {
+		int[] counts = new int[12];
+		for (int month = Calendar.JANUARY; month <= Calendar.DECEMBER; month++) {
+			counts[month] = EventStore.yearlyEvents.get(month).size();
+		}
+		return counts;
+	}
+
+	@Override
+	public int getIntervalCount() {
+		return EventStore.intervalIndex.size();
+	}
+
+	@Override
+	public int getPendingReminderCount() {
+		ReminderScheduler reminders = eventsManager.reminders;
+		return reminders == null ? 0 : reminders.size();
+	}
+
+	@Override
+	public long getHeapUsedBytes() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	@Override
+	public String getSnapshot() {
+		StringBuilder text = new StringBuilder(2048);
+		text.append(String.format(Locale.US, "%-16s %10s %10s %10s %10s %10s %10s %10s%n", "operation", "count",
+				"mean us", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"));
+		for (Operation operation : Operation.values()) {
+			LatencyHistogram.Snapshot latency = getLatency(operation);
+			text.append(String.format(Locale.US, "%-16s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+					operation.label, latency.getCount(), latency.getMeanNanos() / 1e3, latency.getP50Nanos() / 1e3,
+					latency.getP90Nanos() / 1e3, latency.getP99Nanos() / 1e3, latency.getP999Nanos() / 1e3,
+					latency.getMaxNanos() / 1e3));
+		}
+		appendSize(text, "events", getEventCount());
+		appendSize(text, "names", getNameCount());
+		appendSize(text, "note words", getNoteWordCount());
+		appendSize(text, "distinct notes", getDistinctNotesCount());
+		appendSize(text, "notes KB", getNotesOffHeapBytes() / 1024);
+		appendSize(text, "non-recurring", getNonRecurringEventCount());
+		appendSize(text, "daily", getDailyEventCount());
+		appendSize(text, "weekly", getWeeklyEventCount());
+		appendSize(text, "monthly", getMonthlyEventCount());
+		int[] yearly = getYearlyEventCounts();
+		for (int month = Calendar.JANUARY; month <= Calendar.DECEMBER; month++) {
+			appendSize(text, "yearly " + MONTH_NAMES[month], yearly[month]);
+		}
+		appendSize(text, "intervals", getIntervalCount());
+		appendSize(text, "reminders", getPendingReminderCount());
+		appendSize(text, "heap used KB", getHeapUsedBytes() / 1024);
+		return text.toString();
+	}
+
+	private static void appendSize(StringBuilder text, String name, long size) {
+		text.append(String.format(Locale.US, "%-16s %10d%n", name, size));
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram latency : latencies) {
+			latency.reset();
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * EventMetricsMXBean.java
+ * The metrics of an EventsManager as seen over JMX, under EventMetrics.OBJECT_NAME.
+ * Latencies are composite values with the count, mean, percentiles and maximum in
+ * nanoseconds, see LatencyHistogram.Snapshot. Sizes are read when asked for
+ */
+
+
+public interface EventMetricsMXBean {
+
+	LatencyHistogram.Snapshot getAddLatency();
+
+	LatencyHistogram.Snapshot getUpdateLatency();
+
+	LatencyHistogram.Snapshot getDeleteLatency();
+
+	LatencyHistogram.Snapshot getListMonthLatency();
+
+	LatencyHistogram.Snapshot getSearchNameLatency();
+
+	LatencyHistogram.Snapshot getSearchNotesLatency();
+
+	LatencyHistogram.Snapshot getOccurrencesLatency();
+
+	LatencyHistogram.Snapshot getFreeBusyLatency();
+
+	LatencyHistogram.Snapshot getConflictsLatency();
+
+	LatencyHistogram.Snapshot getReminderLatency();
+
+	LatencyHistogram.Snapshot getReminderDelay();
+
+	int getEventCount();
+
+	int getNameCount();
+
+	int getNoteWordCount();
+
+	// distinct notes texts, each kept once by EventStore.notes
+	int getDistinctNotesCount();
+
+	// the direct buffers holding the notes, outside the heap
+	long getNotesOffHeapBytes();
+
+	int getNonRecurringEventCount();
+
+	int getDailyEventCount();
+
+	int getWeeklyEventCount();
+
+	int getMonthlyEventCount();
+
+	// the yearly events of each month, January first
+	int[] getYearlyEventCounts();
+
+	// the events in the interval index, which is all of them
+	int getIntervalCount();
+
+	int getPendingReminderCount();
+
+	long getHeapUsedBytes();
+
+	// all of the above as text, one line per operation or size
+	String getSnapshot();
+
+	void reset();
+}
@@ -0,0 +1,314 @@
+/**
+ * EventPersistence.java
+ * Class to save the events to disk and load them back on start up.
+ * Every add, update and delete is appended to a journal. From time to time a snapshot
+ * of all the events is written and the journal records it covers are dropped, so start
+ * up only loads the latest snapshot and replays the changes made after it.
+ * Snapshots hold the events in the EventCodec format, journal records one event each
+ * in fixed width fields, followed by the end and the skipped days of a recurrence
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+
+public class EventPersistence {
+	private static final int SNAPSHOT_MAGIC = 0x45565333; // "EVS3"
+	private static final int BUFFER_SIZE = 64 * 1024;
+	public static final int DEFAULT_SNAPSHOT_INTERVAL = 100000;
+	// events of a snapshot indexed under one write lock on start up
+	private static final int LOAD_BATCH_SIZE = 100000;
+
+	public static enum Change {
+		ADD, UPDATE, DELETE
+	}
+
+	private final File snapshotFile;
+	private final File journalFile;
+	private final EventsManager eventsManager;
+	// number of journal records after which a new snapshot is written
+	private final int snapshotInterval;
+	private EventJournal journal;
+	private final AtomicInteger recordsSinceSnapshot = new AtomicInteger();
+
+	/**
+	 * @param directory the directory holding the snapshot and journal files
+	 * @param eventsManager
+	 * @param snapshotInterval
+	 */
+	public EventPersistence(File directory, EventsManager eventsManager, int snapshotInterval) {
+		this.snapshotFile = new File(directory, "events.snapshot");
+		this.journalFile = new File(directory, "events.journal");
+		this.eventsManager = eventsManager;
+		this.snapshotInterval = snapshotInterval;
+		directory.mkdirs();
+	}
+
+	/*
+	 * loads the latest snapshot into the maps and replays the journal on top of it.
+	 * returns false if nothing had been saved yet
+	 */
+	public boolean recover() throws IOException {
+		boolean foundSavedState = false;
+		if (snapshotFile.exists()) {
+			readSnapshot();
+			foundSavedState = true;
+		}
+
+		journal = new EventJournal(journalFile);
+		List<byte[]> records = journal.readRecords();
+		for (byte[] record : records) {
+			replay(record);
+		}
+		recordsSinceSnapshot.set(records.size());
+		return foundSavedState || !records.isEmpty();
+	}
+
+	/*
+	 * appends a change to the journal without waiting for it to reach the disk.
+	 * Called while holding the EventStore write lock, so the journal order is the
+	 * order the changes were made in. returns the sequence number for awaitDurable
+	 */
+	public long append(Change change, Event event) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeByte(change.ordinal());
+		if (change == Change.DELETE) {
+			output.writeInt(event.getId());
+		} else {
+			writeEvent(output, event);
+		}
+		output.flush();
+		recordsSinceSnapshot.incrementAndGet();
+		return journal.enqueue(bytes.toByteArray());
+	}
+
+	/*
+	 * waits until an appended change is on disk, then writes a new snapshot if
+	 * enough changes have piled up since the last one.
+	 * Must not be called while holding the EventStore write lock
+	 */
+	public void awaitDurable(long sequence) throws IOException {
+		journal.awaitDurable(sequence);
+		if (recordsSinceSnapshot.get() >= snapshotInterval) {
+			writeSnapshot();
+		}
+	}
+
+	/*
+	 * writes all the events to a new snapshot and drops the journal records it covers.
+	 * The events are encoded into memory under the read lock, so writers wait for
+	 * the encoding only and not for the file to be written and synced. Changes made
+	 * meanwhile stay in the journal
+	 */
+	public synchronized void writeSnapshot() throws IOException {
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream(BUFFER_SIZE);
+		long journalEnd;
+		int coveredRecords;
+		long stamp = EventStore.lockRead();
+		try {
+			encodeSnapshot(snapshot);
+			// no change can be journaled until the lock is released
+			journalEnd = journal.getEnd();
+			coveredRecords = recordsSinceSnapshot.get();
+		} finally {
+			EventStore.unlockRead(stamp);
+		}
+		writeSnapshotFile(snapshot);
+		// replaying the journal over the new snapshot would give the same events,
+		// so a crash before this point is harmless
+		journal.discardBefore(journalEnd);
+		recordsSinceSnapshot.addAndGet(-coveredRecords);
+	}
+
+	/*
+	 * writes the snapshot of the events in the maps, the caller holds the read lock
+	 */
+	private static void encodeSnapshot(ByteArrayOutputStream snapshot) throws IOException {
+		CheckedOutputStream checked = new CheckedOutputStream(snapshot, new CRC32());
+		DataOutputStream output = new DataOutputStream(checked);
+		output.writeInt(SNAPSHOT_MAGIC);
+		output.writeInt(Event.getNextId());
+		output.writeInt(EventStore.handles.size());
+		// events are written index by index in start order, so loading the
+		// snapshot inserts into each index in ascending key order, and the
+		// encoder only has to write the small gaps between their starts
+		EventCodec.Encoder encoder = new EventCodec.Encoder(output);
+		writeEvents(encoder, EventStore.nonRecurringEvents);
+		writeEvents(encoder, EventStore.dailyEvents);
+		writeEvents(encoder, EventStore.weeklyEvents);
+		writeEvents(encoder, EventStore.monthlyEvents);
+		for (EventTimeIndex yearlyIndex : EventStore.yearlyEvents.values()) {
+			writeEvents(encoder, yearlyIndex);
+		}
+		encoder.finish();
+		output.writeInt((int) checked.getChecksum().getValue());
+		output.flush();
+	}
+
+	/*
+	 * writes the snapshot to a temporary file first and renames it over the old
+	 * one, so a crash leaves either the old or the new snapshot in place
+	 */
+	private void writeSnapshotFile(ByteArrayOutputStream snapshot) throws IOException {
+		File tempFile = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream fileOutput = new FileOutputStream(tempFile);
+		try {
+			snapshot.writeTo(fileOutput);
+			fileOutput.getFD().sync();
+		} finally {
+			fileOutput.close();
+		}
+		Files.move(tempFile.toPath(), snapshotFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * writes a final snapshot and closes the journal
+	 */
+	public void close() throws IOException {
+		writeSnapshot();
+		journal.close();
+	}
+
+	private void readSnapshot() throws IOException {
+		CheckedInputStream checked = new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(snapshotFile), BUFFER_SIZE), new CRC32());
+		DataInputStream input = new DataInputStream(checked);
+		try {
+			int magic = input.readInt();
+			if (magic != SNAPSHOT_MAGIC) {
+				throw new IOException("Not an event snapshot: " + snapshotFile);
+			}
+			int nextId = input.readInt();
+			int count = input.readInt();
+			List<Event> events = new ArrayList<Event>(count);
+			EventCodec.Decoder decoder = new EventCodec.Decoder(input, true);
+			for (Event event = decoder.read(); event != null; event = decoder.read()) {
+				events.add(event);
+			}
+			if (events.size() != count) {
+				throw new IOException("Snapshot is corrupt: " + snapshotFile);
+			}
+			int checksum = (int) checked.getChecksum().getValue();
+			if (input.readInt() != checksum) {
+				throw new IOException("Snapshot is corrupt: " + snapshotFile);
+			}
+			// indexed a batch at a time, each added under one write lock. The batches
+			// are taken in id order, so the postings of the notes index are appended to
+			Collections.sort(events, new Comparator<Event>() {
+				@Override
+				public int compare(Event event1, Event event2) {
+					return Integer.compare(event1.getId(), event2.getId());
+				}
+			});
+			for (int from = 0; from < events.size(); from += LOAD_BATCH_SIZE) {
+				eventsManager.addAllToMaps(events.subList(from, Math.min(events.size(), from + LOAD_BATCH_SIZE)));
+			}
+			Event.reserveIdsBelow(nextId);
+		} catch (EOFException e) {
+			throw new IOException("Snapshot is truncated: " + snapshotFile, e);
+		} finally {
+			input.close();
+		}
+	}
+
+	/*
+	 * applies a journal record to the maps.
+	 * Records carry the whole event, so replaying a record twice is harmless
+	 */
+	private void replay(byte[] record) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+		Change change = Change.values()[input.readByte()];
+		if (change == Change.DELETE) {
+			EventHandle existing = EventStore.handles.get(input.readInt());
+			if (existing != null) {
+				eventsManager.deleteFromMaps(existing.getEvent());
+			}
+		} else {
+			Event event = readEvent(input);
+			EventHandle existing = EventStore.handles.get(event.getId());
+			if (existing != null) {
+				eventsManager.deleteFromMaps(existing.getEvent());
+			}
+			eventsManager.addToMaps(event);
+		}
+	}
+
+	private static void writeEvents(EventCodec.Encoder encoder, EventTimeIndex index) throws IOException {
+		for (Event event : index.startingBefore(Long.MAX_VALUE)) {
+			encoder.write(event);
+		}
+	}
+
+	private static void writeEvent(DataOutput output, Event event) throws IOException {
+		output.writeInt(event.getId());
+		output.writeLong(event.getDate().getTime());
+		writeString(output, event.getName());
+		writeString(output, event.getNotes());
+		output.writeInt(event.getReminder());
+		output.writeByte(event.getFrequency().ordinal());
+		output.writeInt(event.getDuration());
+		output.writeLong(event.getUntil());
+		output.writeInt(event.getCount());
+		long[] exceptionDays = event.getExceptionDays();
+		output.writeInt(exceptionDays.length);
+		for (long day : exceptionDays) {
+			output.writeLong(day);
+		}
+	}
+
+	private static Event readEvent(DataInput input) throws IOException {
+		int id = input.readInt();
+		Date date = new Date(input.readLong());
+		String name = readString(input);
+		String notes = readString(input);
+		int reminder = input.readInt();
+		Event.Frequency frequency = Event.Frequency.values()[input.readByte()];
+		int duration = input.readInt();
+		Event event = new Event(id, date, name, notes, reminder, frequency, duration);
+		long until = input.readLong();
+		int count = input.readInt();
+		long[] exceptionDays = new long[input.readInt()];
+		for (int i = 0; i < exceptionDays.length; i++) {
+			exceptionDays[i] = input.readLong();
+		}
+		event.setRecurrence(until, count, exceptionDays);
+		return event;
+	}
+
+	// strings are written as a byte count and UTF-8 bytes so notes are not limited to 64KB
+	private static void writeString(DataOutput output, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(DataInput input) throws IOException {
+		byte[] bytes = new byte[input.readInt()];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,627 @@
+/**
+ * EventServer.java
+ * Class to serve the events as JSON over HTTP on localhost, so other programs can
+ * query and change them without the terminal menu. Requests are handled on a virtual
+ * thread each when the JVM has them (Java 21 and later), otherwise on a thread pool.
+ * The handlers go through the same EventsManager methods as the menu, so they can run
+ * concurrently with each other and with the reminders.
+ *
+ *   GET    /events/{id}                     an event
+ *   GET    /events?name=text                the events whose name best matches the text
+ *   GET    /events?notes=query              the events whose notes match the query
+ *   POST   /events                          adds an event, answers 201 with the event
+ *   PUT    /events/{id}                     replaces the values of an event
+ *   DELETE /events/{id}                     deletes an event
+ *   GET    /months/{year}/{month}           the events occurring in a month (1-12) and
+ *                                           the days they occur on, like listEvents
+ *   GET    /occurrences?from=ms&to=ms[&limit=n][&after=cursor]
+ *                                           the occurrences in [from, to) in time order.
+ *                                           The next page starts after=start:id of the
+ *                                           last occurrence of a page
+ *   GET    /busy?from=ms&to=ms              the occurrences taking up part of [from, to),
+ *                                           events without a duration take up no time
+ *   GET    /free?from=ms&to=ms[&minutes=n]  the free windows in [from, to) of at least n
+ *                                           minutes, as {"start":ms,"end":ms}
+ *   GET    /events/{id}/conflicts?from=ms&to=ms
+ *                                           the occurrences of other events overlapping
+ *                                           the occurrences of an event in [from, to)
+ *   GET    /metrics                         the latencies of the operations and the sizes
+ *                                           of the data structures as text, see EventMetrics
+ *
+ * Events are sent as {"id":1,"name":"a","notes":"bb","date":"04/04/2014","time":"13:00",
+ * "start":1396616400000,"reminder":30,"frequency":"DAILY","duration":45}, and a recurrence
+ * with an end or skipped days also has "until":"12/19/2014", the date of its last
+ * occurrence, "count":10 and "skipped":"11/27/2014 11/28/2014". POST and PUT take an
+ * object with date, time, name and optionally notes, reminder, frequency, duration,
+ * until, count and skipped, formatted like the fields of an imported CSV row.
+ * Occurrences are sent with the id, name, date, time, start and end of each. Errors are sent as {"error":"message"}
+ * The range of /busy, /free and /conflicts is at most 366 days long, a longer one is
+ * answered with 400
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+public class EventServer {
+	public static final int DEFAULT_PORT = 8080;
+	// connections waiting to be accepted
+	private static final int BACKLOG = 4096;
+	// threads handling requests when there are no virtual threads
+	private static final int POOL_THREADS = 256;
+	private static final int DEFAULT_OCCURRENCE_LIMIT = 1000;
+	private static final int MAX_OCCURRENCE_LIMIT = 100000;
+	// longest range of /busy, /free and /conflicts, which answer in one page
+	private static final long MAX_RANGE_MILLIS = 366 * Utility.DAY_MILLIS;
+
+	static {
+		// the server writes the headers and the body of an answer separately. Without
+		// this the body waits for the client to acknowledge the headers, about 40 ms
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private final EventsManager eventsManager;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	/**
+	 * @param eventsManager
+	 * @param port the port to listen on, 0 for any free port
+	 */
+	public EventServer(EventsManager eventsManager, int port) throws IOException {
+		this.eventsManager = eventsManager;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+		this.executor = createExecutor();
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				EventServer.this.handle(exchange);
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/*
+	 * stops accepting requests, waits a little for the running ones to finish
+	 */
+	public void stop() {
+		server.stop(1);
+		executor.shutdown();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * returns the port the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/*
+	 * returns an executor running every task on a new virtual thread when the JVM has
+	 * them, otherwise a fixed pool of daemon threads
+	 */
+	static ExecutorService createExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			return Executors.newFixedThreadPool(POOL_THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "event-server-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (exchange.getRequestURI().getPath().equals("/metrics") && exchange.getRequestMethod().equals("GET")) {
+				send(exchange, 200, eventsManager.metrics.getSnapshot(), "text/plain; charset=utf-8");
+				return;
+			}
+			StringBuilder body = new StringBuilder(256);
+			int status = route(exchange, body);
+			send(exchange, status, body);
+		} catch (IllegalArgumentException e) {
+			send(exchange, 400, error(e.getMessage()));
+		} catch (RuntimeException e) {
+			send(exchange, 500, error(e.toString()));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/*
+	 * runs a request, appending the JSON answer to body. returns the status code
+	 */
+	private int route(HttpExchange exchange, StringBuilder body) throws IOException {
+		String method = exchange.getRequestMethod();
+		String[] path = exchange.getRequestURI().getPath().split("/");
+		Map<String, String> parameters = getParameters(exchange.getRequestURI().getRawQuery());
+
+		if (path.length == 2 && path[1].equals("events")) {
+			if (method.equals("GET")) {
+				if (parameters.containsKey("name")) {
+					appendEvents(body, eventsManager.searchEventsByName(parameters.get("name"),
+							EventsManager.MAX_SEARCH_NAMES));
+				} else if (parameters.containsKey("notes")) {
+					appendEvents(body, eventsManager.searchNotes(parameters.get("notes"),
+							Long.MIN_VALUE, Long.MAX_VALUE));
+				} else {
+					throw new IllegalArgumentException("expected a name or notes parameter");
+				}
+				return 200;
+			}
+			if (method.equals("POST")) {
+				Event event = createEvent(Event.reserveIds(1), readBody(exchange));
+				eventsManager.addToMaps(event);
+				appendEvent(body, event);
+				return 201;
+			}
+			return methodNotAllowed(body);
+		}
+		if (path.length == 3 && path[1].equals("events")) {
+			Event event = getEvent(parseInt(path[2], "id"));
+			if (event == null) {
+				body.append(error("no event " + path[2]));
+				return 404;
+			}
+			if (method.equals("GET")) {
+				appendEvent(body, event);
+				return 200;
+			}
+			if (method.equals("PUT")) {
+				Event values = createEvent(event.getId(), readBody(exchange));
+				if (!eventsManager.updateInMaps(event, values.getDate(), values.getName(), values.getNotes(),
+						values.getReminder(), values.getFrequency(), values.getDuration(),
+						values.getUntil(), values.getCount(), values.getExceptionDays())) {
+					// deleted since it was looked up
+					body.append(error("no event " + path[2]));
+					return 404;
+				}
+				appendEvent(body, event);
+				return 200;
+			}
+			if (method.equals("DELETE")) {
+				eventsManager.deleteFromMaps(event);
+				appendEvent(body, event);
+				return 200;
+			}
+			return methodNotAllowed(body);
+		}
+		if (path.length == 4 && path[1].equals("events") && path[3].equals("conflicts")) {
+			if (!method.equals("GET")) {
+				return methodNotAllowed(body);
+			}
+			Event event = getEvent(parseInt(path[2], "id"));
+			if (event == null) {
+				body.append(error("no event " + path[2]));
+				return 404;
+			}
+			long[] range = parseRange(parameters);
+			appendOccurrences(body, eventsManager.getConflicts(event, range[0], range[1]));
+			return 200;
+		}
+		if (path.length == 2 && path[1].equals("busy")) {
+			if (!method.equals("GET")) {
+				return methodNotAllowed(body);
+			}
+			long[] range = parseRange(parameters);
+			appendOccurrences(body, eventsManager.getBusy(range[0], range[1]));
+			return 200;
+		}
+		if (path.length == 2 && path[1].equals("free")) {
+			if (!method.equals("GET")) {
+				return methodNotAllowed(body);
+			}
+			long[] range = parseRange(parameters);
+			int minutes = parameters.containsKey("minutes") ? parseInt(parameters.get("minutes"), "minutes") : 0;
+			if (minutes < 0) {
+				throw new IllegalArgumentException("negative minutes " + minutes);
+			}
+			appendSlots(body, eventsManager.getFreeSlots(range[0], range[1], minutes));
+			return 200;
+		}
+		if (path.length == 4 && path[1].equals("months")) {
+			if (!method.equals("GET")) {
+				return methodNotAllowed(body);
+			}
+			int year = parseInt(path[2], "year");
+			int month = parseInt(path[3], "month");
+			if (month < 1 || month > 12) {
+				throw new IllegalArgumentException("invalid month " + month);
+			}
+			appendMonth(body, eventsManager.getMonthEvents(month - 1, year));
+			return 200;
+		}
+		if (path.length == 2 && path[1].equals("occurrences")) {
+			if (!method.equals("GET")) {
+				return methodNotAllowed(body);
+			}
+			long from = parseLong(parameters.get("from"), "from");
+			long to = parseLong(parameters.get("to"), "to");
+			int limit = parameters.containsKey("limit") ? parseInt(parameters.get("limit"), "limit")
+					: DEFAULT_OCCURRENCE_LIMIT;
+			if (limit < 1 || limit > MAX_OCCURRENCE_LIMIT) {
+				throw new IllegalArgumentException("limit must be between 1 and " + MAX_OCCURRENCE_LIMIT);
+			}
+			Agenda.Cursor after = parameters.containsKey("after") ? Agenda.Cursor.parse(parameters.get("after")) : null;
+			appendOccurrences(body, eventsManager.getOccurrences(from, to, limit, after));
+			return 200;
+		}
+		body.append(error("not found"));
+		return 404;
+	}
+
+	private static int methodNotAllowed(StringBuilder body) {
+		body.append(error("method not allowed"));
+		return 405;
+	}
+
+	private static void send(HttpExchange exchange, int status, CharSequence body) throws IOException {
+		send(exchange, status, body, "application/json; charset=utf-8");
+	}
+
+	private static void send(HttpExchange exchange, int status, CharSequence body, String contentType)
+			throws IOException {
+		byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream output = exchange.getResponseBody();
+		output.write(bytes);
+		output.close();
+	}
+
+	private static Event getEvent(int id) {
+		EventHandle handle = EventStore.handles.get(id);
+		return handle == null ? null : handle.getEvent();
+	}
+
+	/*
+	 * creates an event from the fields of a JSON object
+	 */
+	private static Event createEvent(int id, String json) {
+		Map<String, String> fields = parseObject(json);
+		return EventImporter.createEvent(id, fields.get("date"), fields.get("time"), fields.get("name"),
+				fields.get("notes"), fields.get("reminder"), fields.get("frequency"), fields.get("duration"),
+				fields.get("until"), fields.get("count"), fields.get("skipped"));
+	}
+
+	private static String readBody(HttpExchange exchange) throws IOException {
+		InputStream input = exchange.getRequestBody();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = input.read(buffer)) >= 0) {
+			bytes.write(buffer, 0, count);
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * returns the decoded parameters of a query string
+	 */
+	private static Map<String, String> getParameters(String query) throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if (query == null) {
+			return parameters;
+		}
+		for (String parameter : query.split("&")) {
+			int equals = parameter.indexOf('=');
+			if (equals > 0) {
+				parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+						URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+			}
+		}
+		return parameters;
+	}
+
+	/*
+	 * returns the from and to parameters of a query answered in one page. The range
+	 * is limited to MAX_RANGE_MILLIS so one request cannot expand years of occurrences
+	 * while it holds the read lock
+	 */
+	private static long[] parseRange(Map<String, String> parameters) {
+		long from = parseLong(parameters.get("from"), "from");
+		long to = parseLong(parameters.get("to"), "to");
+		// a difference that overflows is negative
+		if (to > from && (to - from < 0 || to - from > MAX_RANGE_MILLIS)) {
+			throw new IllegalArgumentException("the range from " + from + " to " + to + " is longer than "
+					+ MAX_RANGE_MILLIS / Utility.DAY_MILLIS + " days");
+		}
+		return new long[] { from, to };
+	}
+
+	private static int parseInt(String text, String field) {
+		try {
+			return Integer.parseInt(text);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid " + field + " " + text);
+		}
+	}
+
+	private static long parseLong(String text, String field) {
+		if (text == null) {
+			throw new IllegalArgumentException("missing " + field);
+		}
+		try {
+			return Long.parseLong(text);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid " + field + " " + text);
+		}
+	}
+
+	/*
+	 * parses a JSON object of strings, numbers, booleans and nulls into the text of
+	 * its values. Nested objects and arrays are not needed by any request
+	 */
+	static Map<String, String> parseObject(String json) {
+		Map<String, String> fields = new HashMap<String, String>();
+		int[] position = { skipSpace(json, 0) };
+		expect(json, position, '{');
+		if (peek(json, position) == '}') {
+			position[0]++;
+		} else {
+			while (true) {
+				String name = parseString(json, position);
+				expect(json, position, ':');
+				fields.put(name, peek(json, position) == '"' ? parseString(json, position) : parseLiteral(json, position));
+				if (peek(json, position) == ',') {
+					position[0]++;
+					continue;
+				}
+				expect(json, position, '}');
+				break;
+			}
+		}
+		if (skipSpace(json, position[0]) != json.length()) {
+			throw new IllegalArgumentException("text after the JSON object");
+		}
+		return fields;
+	}
+
+	private static char peek(String json, int[] position) {
+		position[0] = skipSpace(json, position[0]);
+		if (position[0] == json.length()) {
+			throw new IllegalArgumentException("unexpected end of JSON");
+		}
+		return json.charAt(position[0]);
+	}
+
+	private static void expect(String json, int[] position, char c) {
+		if (peek(json, position) != c) {
+			throw new IllegalArgumentException("expected '" + c + "' at " + position[0] + " of the JSON");
+		}
+		position[0]++;
+	}
+
+	private static int skipSpace(String json, int position) {
+		while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+			position++;
+		}
+		return position;
+	}
+
+	private static String parseString(String json, int[] position) {
+		expect(json, position, '"');
+		StringBuilder text = new StringBuilder();
+		int i = position[0];
+		while (true) {
+			if (i >= json.length()) {
+				throw new IllegalArgumentException("unterminated JSON string");
+			}
+			char c = json.charAt(i++);
+			if (c == '"') {
+				break;
+			}
+			if (c == '\\') {
+				if (i >= json.length()) {
+					throw new IllegalArgumentException("unterminated JSON string");
+				}
+				char escaped = json.charAt(i++);
+				switch (escaped) {
+				case 'b': c = '\b'; break;
+				case 'f': c = '\f'; break;
+				case 'n': c = '\n'; break;
+				case 'r': c = '\r'; break;
+				case 't': c = '\t'; break;
+				case 'u':
+					if (i + 4 > json.length()) {
+						throw new IllegalArgumentException("invalid JSON escape");
+					}
+					c = (char) parseHex(json.substring(i, i + 4));
+					i += 4;
+					break;
+				default: c = escaped;
+				}
+			}
+			text.append(c);
+		}
+		position[0] = i;
+		return text.toString();
+	}
+
+	private static int parseHex(String text) {
+		try {
+			return Integer.parseInt(text, 16);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid JSON escape \\u" + text);
+		}
+	}
+
+	/*
+	 * returns a number, true, false or null as its text, null for null
+	 */
+	private static String parseLiteral(String json, int[] position) {
+		int start = skipSpace(json, position[0]);
+		int end = start;
+		while (end < json.length() && ",}] \t\r\n".indexOf(json.charAt(end)) < 0) {
+			end++;
+		}
+		if (end == start) {
+			throw new IllegalArgumentException("missing JSON value at " + start);
+		}
+		position[0] = end;
+		String literal = json.substring(start, end);
+		return literal.equals("null") ? null : literal;
+	}
+
+	private static void appendEvents(StringBuilder body, Collection<Event> events) {
+		body.append('[');
+		boolean first = true;
+		for (Event event : events) {
+			if (!first) {
+				body.append(',');
+			}
+			appendEvent(body, event);
+			first = false;
+		}
+		body.append(']');
+	}
+
+	private static void appendEvent(StringBuilder body, Event event) {
+		body.append("{\"id\":").append(event.getId()).append(",\"name\":");
+		appendString(body, event.getName());
+		body.append(",\"notes\":");
+		appendString(body, event.getNotes());
+		body.append(",\"date\":\"");
+		Utility.appendDate(body, event.getEpochDay()).append("\",\"time\":\"");
+		Utility.appendTime(body, event.getMinuteOfDay()).append("\",\"start\":").append(event.getStartMillis())
+				.append(",\"reminder\":").append(event.getReminder())
+				.append(",\"frequency\":\"").append(event.getFrequency())
+				.append("\",\"duration\":").append(event.getDuration());
+		if (event.getFrequency() != Event.Frequency.NONE) {
+			if (event.getUntil() != Long.MAX_VALUE) {
+				body.append(",\"until\":\"");
+				Utility.appendDate(body, Utility.getEpochDay(event.getLastStartMillis())).append('"');
+			}
+			if (event.getCount() > 0) {
+				body.append(",\"count\":").append(event.getCount());
+			}
+			if (event.getExceptionDays().length > 0) {
+				body.append(",\"skipped\":\"");
+				Utility.appendDates(body, event.getExceptionDays()).append('"');
+			}
+		}
+		body.append('}');
+	}
+
+	private static void appendMonth(StringBuilder body, EventsManager.MonthEvents monthEvents) {
+		body.append("{\"days\":[");
+		int days = monthEvents.daysToMark;
+		boolean first = true;
+		for (int day = 1; days != 0; day++, days >>>= 1) {
+			if ((days & 1) != 0) {
+				if (!first) {
+					body.append(',');
+				}
+				body.append(day);
+				first = false;
+			}
+		}
+		body.append("],\"nonRecurring\":");
+		appendEvents(body, monthEvents.nonRecurring);
+		body.append(",\"yearly\":");
+		appendEvents(body, monthEvents.yearly);
+		body.append(",\"monthly\":");
+		appendEvents(body, monthEvents.monthly);
+		body.append(",\"weekly\":");
+		appendEvents(body, monthEvents.weekly);
+		body.append(",\"daily\":");
+		appendEvents(body, monthEvents.daily);
+		body.append('}');
+	}
+
+	private static void appendOccurrences(StringBuilder body, List<Occurrence> occurrences) {
+		body.append('[');
+		for (int i = 0; i < occurrences.size(); i++) {
+			Occurrence occurrence = occurrences.get(i);
+			long start = occurrence.getStartMillis();
+			if (i > 0) {
+				body.append(',');
+			}
+			body.append("{\"id\":").append(occurrence.getEvent().getId()).append(",\"name\":");
+			appendString(body, occurrence.getEvent().getName());
+			body.append(",\"date\":\"");
+			Utility.appendDate(body, Utility.getEpochDay(start)).append("\",\"time\":\"");
+			Utility.appendTime(body, Utility.getMinuteOfDay(start)).append("\",\"start\":").append(start)
+					.append(",\"end\":").append(occurrence.getEndMillis()).append('}');
+		}
+		body.append(']');
+	}
+
+	private static void appendSlots(StringBuilder body, List<IntervalIndex.Slot> slots) {
+		body.append('[');
+		for (int i = 0; i < slots.size(); i++) {
+			if (i > 0) {
+				body.append(',');
+			}
+			body.append("{\"start\":").append(slots.get(i).getStartMillis())
+					.append(",\"end\":").append(slots.get(i).getEndMillis()).append('}');
+		}
+		body.append(']');
+	}
+
+	private static String error(String message) {
+		StringBuilder body = new StringBuilder("{\"error\":");
+		appendString(body, message == null ? "" : message);
+		return body.append('}').toString();
+	}
+
+	private static void appendString(StringBuilder body, String text) {
+		body.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '"': body.append("\\\""); break;
+			case '\\': body.append("\\\\"); break;
+			case '\n': body.append("\\n"); break;
+			case '\r': body.append("\\r"); break;
+			case '\t': body.append("\\t"); break;
+			default:
+				if (c < 0x20) {
+					body.append(String.format("\\u%04x", (int) c));
+				} else {
+					body.append(c);
+				}
+			}
+		}
+		body.append('"');
+	}
+}
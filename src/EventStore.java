@@ -0,0 +1,119 @@
+/**
+ * EventStore.java
+ * Class to hold the data structures with all the events inserted by user.
+ * The structures are concurrent so they can be read while they are being changed.
+ * Writers take the write lock, so an add, update or delete changes every structure
+ * before the next one starts. Queries take the read lock, so they run alongside each
+ * other but never see a write half done
+ */
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+
+
+public class EventStore {
+	private static final StampedLock lock = new StampedLock();
+
+	// event id to the handle the event is indexed with
+	public static ConcurrentMap<Integer, EventHandle> handles;
+	// lower case name to the events having it, by id
+	public static ConcurrentMap<String, NavigableMap<Integer, Event>> nameMap;
+	// the keys of nameMap, searchable by any part of the name
+	public static NameIndex nameIndex;
+	// one copy of each distinct name, with its lower case key
+	public static StringDictionary names;
+	// one copy of each distinct notes text, off the heap
+	public static NotesStore notes;
+	// the words of the notes
+	public static NotesIndex notesIndex;
+	public static EventTimeIndex nonRecurringEvents;
+	public static EventTimeIndex dailyEvents;
+	public static EventTimeIndex weeklyEvents;
+	public static EventTimeIndex monthlyEvents;
+	public static Map<Integer, EventTimeIndex> yearlyEvents;
+	// the number of occurrences on each day, for marking days
+	public static DayCounts dayCounts;
+	// the time taken up by the events, for free/busy and conflicts
+	public static IntervalIndex intervalIndex;
+
+	/*
+	 * A query over the data structures, run by read()
+	 */
+	public static interface Query<T> {
+		T run();
+	}
+
+	/*
+	 * Initializes the data structures that hold the events inserted by user
+	 */
+	public static void initialize() {
+		long stamp = lock.writeLock();
+		try {
+			handles = new ConcurrentHashMap<Integer, EventHandle>();
+			nameMap = new ConcurrentHashMap<String, NavigableMap<Integer, Event>>();
+			nameIndex = new NameIndex();
+			names = new StringDictionary(true);
+			notes = new NotesStore();
+			notesIndex = new NotesIndex();
+			nonRecurringEvents = new EventTimeIndex();
+			dailyEvents = new EventTimeIndex();
+			weeklyEvents = new EventTimeIndex();
+			monthlyEvents = new EventTimeIndex();
+			dayCounts = new DayCounts();
+			intervalIndex = new IntervalIndex();
+
+			// Initialize yearly events
+			Map<Integer, EventTimeIndex> yearlyIndexes = new HashMap<Integer, EventTimeIndex>();
+			for (int month = Calendar.JANUARY; month <= Calendar.DECEMBER; month++) {
+				yearlyIndexes.put(month, new EventTimeIndex());
+			}
+			yearlyEvents = Collections.unmodifiableMap(yearlyIndexes);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/*
+	 * runs a query against a consistent state of the data structures, holding the
+	 * read lock so writers wait until it is done. Queries are not run optimistically:
+	 * writers change structures like the posting lists and the Fenwick trees in
+	 * place, and a query reading them mid write could loop or allocate without end
+	 * before its result was thrown away
+	 */
+	public static <T> T read(Query<T> query) {
+		long stamp = lock.readLock();
+		try {
+			return query.run();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * blocks writers until unlockRead is called, for long reads like snapshots
+	 */
+	public static long lockRead() {
+		return lock.readLock();
+	}
+
+	public static void unlockRead(long stamp) {
+		lock.unlockRead(stamp);
+	}
+
+	/*
+	 * gives the caller exclusive access for changing the data structures
+	 */
+	public static long lockWrite() {
+		return lock.writeLock();
+	}
+
+	public static void unlockWrite(long stamp) {
+		lock.unlockWrite(stamp);
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ * EventTimeIndex.java
+ * Class to index events by their start time.
+ * Events are kept in a sorted set of handles ordered by start time and id, so that the
+ * events between any two instants can be found without looking at the other events,
+ * and an event is added or removed in O(log n) through its handle.
+ * Recurring events are also kept apart: the recurrences without an end in a sorted set
+ * by start, the others in an EndingTree by start, so the recurrences occurring in a
+ * window are found without looking at the ones that ended before it or start after it,
+ * however many of them have piled up.
+ * Changes are made under the EventStore write lock. The events by start can be read
+ * while they are changed, the recurrences with an end only under the read lock
+ */
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+
+public class EventTimeIndex {
+	private NavigableSet<EventHandle> handles;
+	// the recurrences without an end, and those with one keyed by start
+	private NavigableSet<EventHandle> endless;
+	private EndingTree ending;
+	// the set has no constant time size
+	private volatile int size;
+
+	public EventTimeIndex() {
+		handles = new ConcurrentSkipListSet<EventHandle>();
+		endless = new ConcurrentSkipListSet<EventHandle>();
+		ending = new EndingTree();
+		size = 0;
+	}
+
+	/*
+	 * adds an event to the index under the start time of its handle
+	 */
+	public void add(EventHandle handle) {
+		if (handles.add(handle)) {
+			size++;
+			if (handle.getFrequency() == Event.Frequency.NONE) {
+				return;
+			}
+			if (handle.getLastStartMillis() == Long.MAX_VALUE) {
+				endless.add(handle);
+			} else {
+				ending.add(handle.getStartMillis(), handle);
+			}
+		}
+	}
+
+	/*
+	 * removes an event from the index
+	 * returns true if the event was found
+	 */
+	public boolean remove(EventHandle handle) {
+		if (!handles.remove(handle)) {
+			return false;
+		}
+		size--;
+		if (handle.getFrequency() == Event.Frequency.NONE) {
+			return true;
+		}
+		if (handle.getLastStartMillis() == Long.MAX_VALUE) {
+			endless.remove(handle);
+		} else {
+			ending.remove(handle.getStartMillis(), handle);
+		}
+		return true;
+	}
+
+	/*
+	 * returns the events starting in [from, to) in start time order
+	 */
+	public Iterable<Event> between(long from, long to) {
+		if (from >= to) {
+			return Collections.emptyList();
+		}
+		return new EventIterable(handles.subSet(EventHandle.startingAt(from), true,
+				EventHandle.startingAt(to), false));
+	}
+
+	/*
+	 * returns the events starting before the given instant in start time order
+	 */
+	public Iterable<Event> startingBefore(long to) {
+		return new EventIterable(handles.headSet(EventHandle.startingAt(to), false));
+	}
+
+	/*
+	 * returns the recurring events starting before to whose last occurrence starts at
+	 * or after from, in start time order. The recurrences that ended before from and
+	 * those starting at or after to are not looked at. Called under the EventStore
+	 * read lock
+	 */
+	public Iterable<Event> activeBetween(long from, long to) {
+		Iterable<EventHandle> started = endless.headSet(EventHandle.startingAt(to), false);
+		if (ending.isEmpty()) {
+			return new EventIterable(started);
+		}
+		return new MergedEventIterable(started, ending.find(Long.MIN_VALUE, Long.MAX_VALUE, from, to));
+	}
+
+	/*
+	 * returns the number of events in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * Iterates over the events of a range of handles without copying them
+	 */
+	private static class EventIterable implements Iterable<Event> {
+		private final Iterable<EventHandle> handles;
+
+		EventIterable(Iterable<EventHandle> handles) {
+			this.handles = handles;
+		}
+
+		@Override
+		public Iterator<Event> iterator() {
+			final Iterator<EventHandle> handleIterator = handles.iterator();
+			return new Iterator<Event>() {
+				@Override
+				public boolean hasNext() {
+					return handleIterator.hasNext();
+				}
+
+				@Override
+				public Event next() {
+					return handleIterator.next().getEvent();
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/*
+	 * Iterates over the events of two ranges of handles sorted by start, in start order
+	 */
+	private static class MergedEventIterable implements Iterable<Event> {
+		private final Iterable<EventHandle> handles1;
+		private final Iterable<EventHandle> handles2;
+
+		MergedEventIterable(Iterable<EventHandle> handles1, Iterable<EventHandle> handles2) {
+			this.handles1 = handles1;
+			this.handles2 = handles2;
+		}
+
+		@Override
+		public Iterator<Event> iterator() {
+			final Iterator<EventHandle> iterator1 = handles1.iterator();
+			final Iterator<EventHandle> iterator2 = handles2.iterator();
+			return new Iterator<Event>() {
+				private EventHandle next1 = iterator1.hasNext() ? iterator1.next() : null;
+				private EventHandle next2 = iterator2.hasNext() ? iterator2.next() : null;
+
+				@Override
+				public boolean hasNext() {
+					return next1 != null || next2 != null;
+				}
+
+				@Override
+				public Event next() {
+					if (next1 == null && next2 == null) {
+						throw new NoSuchElementException();
+					}
+					EventHandle handle;
+					if (next2 == null || next1 != null && next1.compareTo(next2) < 0) {
+						handle = next1;
+						next1 = iterator1.hasNext() ? iterator1.next() : null;
+					} else {
+						handle = next2;
+						next2 = iterator2.hasNext() ? iterator2.next() : null;
+					}
+					return handle.getEvent();
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+}
@@ -1,76 +1,108 @@
 /**
  * EventsCalendar.java
  * Class to print the calendar month on terminal given the month and year.
- * Also marks the days with a '*' besides it given by the list daysToMark
+ * Also marks the days with a '*' besides it given by the day mask daysToMark,
+ * where bit i stands for day i + 1 of the month.
+ * A month is rendered into one string that is printed with a single write, and the
+ * strings are cached so paging back and forth through months renders each only once
  */
 
-import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.text.DateFormatSymbols;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
-public class EventsCalendar {	
+public class EventsCalendar {
+	// number of rendered months kept, least recently printed ones are dropped first
+	private static final int CACHE_SIZE = 256;
+	private static final String[] MONTH_NAMES = DateFormatSymbols.getInstance(Locale.US).getMonths();
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	// guarded by the class lock, like the buffer the months are rendered in
+	private static final Map<Long, String> renderedMonths = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+	private static final StringBuilder buffer = new StringBuilder(256);
 
 	/*
 	 * prints a calendar month based on month / year info
 	 */
-	public static void printCalendarMonthYear(int month, int year, ArrayList<Integer> daysToMark) {
-		Calendar cal = new GregorianCalendar();		
+	public static void printCalendarMonthYear(int month, int year, int daysToMark) {
+		System.out.print(getCalendarMonthYear(month, year, daysToMark));
+	}
 
-		cal.clear();
-		cal.set(year, month, 1);
+	/*
+	 * returns the calendar month as printed by printCalendarMonthYear, from the cache
+	 * when the same month was rendered before with the same marked days
+	 */
+	public static synchronized String getCalendarMonthYear(int month, int year, int daysToMark) {
+		int monthLength = Utility.getMonthLength(year, month);
+		// days past the end of the month can't be marked
+		daysToMark &= (int) ((1L << monthLength) - 1);
+		Long key = ((long) year * 12 + month) << 32 | (daysToMark & 0xFFFFFFFFL);
+		String rendered = renderedMonths.get(key);
+		if (rendered == null) {
+			buffer.setLength(0);
 
-		// calendar header
-		System.out.println("\n"
-				+ cal.getDisplayName(Calendar.MONTH, Calendar.LONG,
-						Locale.US) + " " + cal.get(Calendar.YEAR));
+			// calendar header
+			buffer.append(LINE_SEPARATOR).append(MONTH_NAMES[month]).append(' ').append(year)
+					.append(LINE_SEPARATOR);
 
-		int firstWeekdayOfMonth = cal.get(Calendar.DAY_OF_WEEK);
-		
-		int numberOfMonthDays = cal.getActualMaximum(Calendar.DAY_OF_MONTH);
+			int firstWeekdayOfMonth = Utility.getDayOfWeek(Utility.getMonthStartDay(month, year));
 
-		// print calendar month based on the weekday of the first
-		// day of the month and the number of days in month
-		printCalendar(numberOfMonthDays, firstWeekdayOfMonth, daysToMark);
+			// print calendar month based on the weekday of the first
+			// day of the month and the number of days in month
+			renderCalendar(monthLength, firstWeekdayOfMonth, daysToMark);
+			rendered = buffer.toString();
+			renderedMonths.put(key, rendered);
+		}
+		return rendered;
 	}
 
 	/*
-	 * 	prints calendar month based on the weekday of the first
+	 * 	renders calendar month based on the weekday of the first
 	 *  day of the month and the number of days in month
 	 */
-	private static void printCalendar(int numberOfMonthDays, 
-			int firstWeekdayOfMonth, ArrayList<Integer> daysToMark) {		
-		
+	private static void renderCalendar(int numberOfMonthDays,
+			int firstWeekdayOfMonth, int daysToMark) {
+
 		int weekdayIndex = 0;
 
-		System.out.println("Su   Mo   Tu   We   Th   Fr   Sa");
+		buffer.append("Su   Mo   Tu   We   Th   Fr   Sa").append(LINE_SEPARATOR);
 
-		// print space for weekdays before the first day of month
+		// space for weekdays before the first day of month
 		for (int day = 1; day < firstWeekdayOfMonth; day++) {
-			System.out.print("     ");
+			buffer.append("     ");
 			weekdayIndex++;
 		}
 
-		// print the days of month in tabular format.
+		// the days of month in tabular format.
 		for (int day = 1; day <= numberOfMonthDays; day++) {
-			// print day
-			System.out.printf("%1$2d", day);
-			// Mark the day with a '*' besides it if it is in the daysToMark list
-			if(daysToMark.contains(day))
-				System.out.print("*");
+			// day, right aligned in two columns
+			if (day < 10)
+				buffer.append(' ');
+			buffer.append(day);
+			// Mark the day with a '*' besides it if its bit is set in daysToMark
+			if((daysToMark & 1 << (day - 1)) != 0)
+				buffer.append('*');
 			else
-				System.out.print(" ");
-			
+				buffer.append(' ');
+
 			weekdayIndex++;
 			// If last weekday go to next line
 			if (weekdayIndex == 7) {
 				weekdayIndex = 0;
-				System.out.println();
-			} else {				
-				System.out.print("  ");
+				buffer.append(LINE_SEPARATOR);
+			} else {
+				buffer.append("  ");
 			}
 		}
 
-		System.out.println();
+		buffer.append(LINE_SEPARATOR);
 	}
-}
\ No newline at end of file
+}
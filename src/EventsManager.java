@@ -5,32 +5,288 @@
  * 
  */
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.Calendar;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RecursiveAction;
+
+import javax.management.JMException;
 
 
 public class EventsManager {
 
-	static BufferedReader bufferedReader;
+	// saves the changes to disk, null when running without persistence
+	EventPersistence persistence;
+	// when false the write methods don't wait for their changes to reach the disk,
+	// awaitChanges waits for all of them at once. Guarded by this
+	private boolean awaitEachChange = true;
+	private long unawaitedSequence = -1;
+	// fires the reminders of the events, null when reminders are off
+	ReminderScheduler reminders;
+	// the time taken by the operations and the sizes of the data structures
+	final EventMetrics metrics = new EventMetrics(this);
+	// number of different names listed by a search
+	static final int MAX_SEARCH_NAMES = 10;
+	// days of a new event checked for events taking up the same time
+	static final int CONFLICT_CHECK_DAYS = 28;
+	// conflicts listed when adding an event
+	static final int MAX_LISTED_CONFLICTS = 10;
+	// months a task of a range of months handles itself instead of splitting them further
+	static final int DEFAULT_PARALLEL_MONTHS = 12;
+	// ranges of more months are split into tasks run in parallel, see getMonthEvents
+	private volatile int parallelMonths = DEFAULT_PARALLEL_MONTHS;
+	
 	public static void main(String[] args) {
-		bufferedReader = new BufferedReader(new InputStreamReader(System.in));
-		
 		EventsManager eventsManager = new EventsManager();
 		// initialize the data structures to hold the inserted events
-		Event.initializeMaps();
-		// insert event data for testing
-		eventsManager.init();
+		EventStore.initialize();
+		// load the saved events, or insert event data for testing on the first run
+		eventsManager.loadSavedEvents(new File(System.getProperty("events.dataDir", "data")));
+		try {
+			eventsManager.metrics.register();
+		} catch (JMException e) {
+			System.err.println("Could not register the metrics: " + e.getMessage());
+		}
+		if(args.length > 0 && args[0].equals("--batch")) {
+			// run the commands of a file, or of the standard input, instead of the menu
+			runBatch(eventsManager, args.length > 1 ? args[1] : null);
+			eventsManager.closePersistence();
+			printMetrics(eventsManager);
+			return;
+		}
+		if(args.length > 1 && args[0].equals("--export")) {
+			// write all the events to an EventCodec file, which can be imported again
+			eventsManager.exportEvents(new File(args[1]));
+			eventsManager.closePersistence();
+			return;
+		}
+		if(args.length > 0 && args[0].equals("--serve")) {
+			// answer HTTP requests on localhost until the process is stopped
+			serve(eventsManager, args.length > 1 ? Integer.parseInt(args[1]) : EventServer.DEFAULT_PORT);
+			return;
+		}
+		eventsManager.startReminders(new ReminderScheduler.Sink() {
+			@Override
+			public void remind(Occurrence occurrence) {
+				System.out.println("\nReminder : " + occurrence.getEvent().getName() + " at "
+						+ occurrence.getDate().toString());
+			}
+		});
 		// display main menu and get Menu option from user
 		eventsManager.readMenuOptionsFromUser();
+		eventsManager.stopReminders();
+		eventsManager.closePersistence();
+		printMetrics(eventsManager);
+	}
+	
+	/*
+	 * prints the metrics to the standard error when run with -Devents.metrics=true
+	 */
+	private static void printMetrics(EventsManager eventsManager) {
+		if(Boolean.getBoolean("events.metrics"))
+			System.err.print(eventsManager.metrics.getSnapshot());
+	}
+	
+	/*
+	 * runs the batch commands of a file, see BatchCommands, writing the results
+	 * to the standard output. fileName is null to read the standard input
+	 */
+	private static void runBatch(EventsManager eventsManager, String fileName) {
+		try {
+			BufferedReader input = fileName == null ? Utility.getTerminalReader()
+					: new BufferedReader(new InputStreamReader(new FileInputStream(fileName),
+							StandardCharsets.UTF_8));
+			try {
+				Writer output = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+				new BatchCommands(eventsManager, input, output).run();
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not run batch commands: " + e.getMessage());
+		}
+	}
+	
+	/*
+	 * starts an EventServer on the given port. It keeps running after main returns,
+	 * the events are saved when the process is stopped
+	 */
+	private static void serve(final EventsManager eventsManager, int port) {
+		final EventServer server;
+		try {
+			server = new EventServer(eventsManager, port);
+		} catch (IOException e) {
+			System.err.println("Could not start the server: " + e.getMessage());
+			eventsManager.closePersistence();
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				server.stop();
+				eventsManager.closePersistence();
+			}
+		});
+		server.start();
+		System.out.println("Serving events on http://localhost:" + server.getPort() + "/");
+	}
+	
+	/*
+	 * loads the events saved in the data directory and keeps saving changes there.
+	 * The test data is inserted when nothing has been saved yet
+	 */
+	public void loadSavedEvents(File dataDirectory) {
+		EventPersistence loadedPersistence =
+				new EventPersistence(dataDirectory, this, EventPersistence.DEFAULT_SNAPSHOT_INTERVAL);
+		try {
+			// changes are journaled once persistence is set, replayed events are not
+			boolean foundSavedEvents = loadedPersistence.recover();
+			if(!foundSavedEvents)
+				init();
+			persistence = loadedPersistence;
+			if(!foundSavedEvents)
+				persistence.writeSnapshot();
+		} catch (IOException e) {
+			System.out.println("Could not load saved events, changes will not be saved: " + e.getMessage());
+			persistence = null;
+		}
+	}
+	
+	/*
+	 * writes a final snapshot of the events and closes the journal
+	 */
+	public void closePersistence() {
+		if(persistence == null)
+			return;
+		try {
+			persistence.close();
+		} catch (IOException e) {
+			System.out.println("Could not save events: " + e.getMessage());
+		}
+		persistence = null;
+	}
+	
+	/*
+	 * schedules the reminders of all the events and keeps them scheduled as events
+	 * are added, updated and deleted. The sink is called from the reminder thread
+	 */
+	public void startReminders(final ReminderScheduler.Sink sink) {
+		ReminderScheduler.Sink timedSink = new ReminderScheduler.Sink() {
+			@Override
+			public void remind(Occurrence occurrence) {
+				Event event = occurrence.getEvent();
+				long dueMillis = occurrence.getStartMillis() - event.getReminder() * 60000L;
+				metrics.recordNanos(EventMetrics.Operation.REMINDER_DELAY,
+						(System.currentTimeMillis() - dueMillis) * 1000000L);
+				long startNanos = System.nanoTime();
+				try {
+					sink.remind(occurrence);
+				} finally {
+					metrics.record(EventMetrics.Operation.REMINDER, startNanos);
+				}
+			}
+		};
+		ReminderScheduler scheduler = new ReminderScheduler(timedSink,
+				ReminderScheduler.DEFAULT_TICK_MILLIS, System.currentTimeMillis());
+		long stamp = EventStore.lockWrite();
+		try {
+			for (EventHandle handle : EventStore.handles.values()) {
+				scheduler.schedule(handle.getEvent());
+			}
+			reminders = scheduler;
+		} finally {
+			EventStore.unlockWrite(stamp);
+		}
+		scheduler.start();
+	}
+	
+	public void stopReminders() {
+		if(reminders == null)
+			return;
+		reminders.stop();
+		reminders = null;
+	}
+	
+	/*
+	 * queues an added, updated or deleted event for the journal. Called while holding
+	 * the write lock so the journal has the changes in the order they were made.
+	 * returns the sequence number to pass to awaitJournal
+	 */
+	private long journalChange(EventPersistence.Change change, Event event) {
+		if(persistence == null)
+			return -1;
+		try {
+			return persistence.append(change, event);
+		} catch (IOException e) {
+			System.out.println("Could not save the change: " + e.getMessage());
+			return -1;
+		}
+	}
+	
+	/*
+	 * waits until a journaled change is on disk, called after releasing the write lock.
+	 * Only remembers the change when changes are awaited together
+	 */
+	private void awaitJournal(long sequence) {
+		if(persistence == null || sequence < 0)
+			return;
+		synchronized(this) {
+			if(!awaitEachChange) {
+				unawaitedSequence = Math.max(unawaitedSequence, sequence);
+				return;
+			}
+		}
+		waitForJournal(sequence);
+	}
+	
+	/*
+	 * sets whether the write methods wait for each change to reach the disk. When
+	 * they don't, awaitChanges has to be called before reporting the changes as saved
+	 */
+	public synchronized void setAwaitEachChange(boolean awaitEachChange) {
+		this.awaitEachChange = awaitEachChange;
+	}
+	
+	/*
+	 * waits until all the changes made so far are on disk, so many changes are
+	 * synced together
+	 */
+	public void awaitChanges() {
+		long sequence;
+		synchronized(this) {
+			sequence = unawaitedSequence;
+			unawaitedSequence = -1;
+		}
+		if(persistence != null && sequence >= 0)
+			waitForJournal(sequence);
+	}
+	
+	private void waitForJournal(long sequence) {
+		try {
+			persistence.awaitDurable(sequence);
+		} catch (IOException e) {
+			System.out.println("Could not save the change: " + e.getMessage());
+		}
 	}
 	
 	/*
@@ -47,7 +303,9 @@ public class EventsManager {
   		System.out.println("|        3. Delete Event                                  |");
   		System.out.println("|        4. Browse Calendar                               |");
   		System.out.println("|        5. Search Event                                  |");
-  		System.out.println("|        6. EXIT                                          |");
+  		System.out.println("|        6. Search Notes                                  |");
+  		System.out.println("|        7. Import Events                                 |");
+  		System.out.println("|        8. EXIT                                          |");
   		System.out.println("===========================================================");
 	}
 	
@@ -58,10 +316,10 @@ public class EventsManager {
 		
 		int userInput = 0;
 		
-		while(userInput != 6) {
+		while(userInput != 8) {
 			displayMenu();			
 			
-			userInput = Utility.getIntegerFromTerminal("Enter option (1-6): ");
+			userInput = Utility.getIntegerFromTerminal("Enter option (1-8): ");
 			
 			switch(userInput) {
 			case 1:				
@@ -79,7 +337,13 @@ public class EventsManager {
 			case 5:
 				searchEvent();
 				break;
-			case 6:				
+			case 6:
+				searchNotes();
+				break;
+			case 7:
+				importEvents();
+				break;
+			case 8:				
 				break;
 			default:
 				System.out.println("Invalid Input");
@@ -109,8 +373,32 @@ public class EventsManager {
 		} else {
 			frequency = Event.Frequency.NONE;
 		}
+		int duration = Utility.getIntegerFromTerminal("Enter event duration in minutes (0 for none): ",
+				0, Integer.MAX_VALUE);
 		
-		Event event = new Event(eventDate, eventName, eventNotes, reminder, frequency);
+		Event event = new Event(eventDate, eventName, eventNotes, reminder, frequency, duration);
+		if (isRecurring && frequency != Event.Frequency.NONE
+				&& Utility.getYesNoInputFromUser("Does the event stop recurring? (yes/no): ")) {
+			long[] end = getRecurrenceEndFromUser();
+			event.setRecurrence(end[0], (int) end[1], event.getExceptionDays());
+		}
+		// warn about the events taking up the same time, over the first weeks of a recurring event
+		List<Occurrence> conflicts = getConflicts(event, event.getStartMillis(),
+				event.getStartMillis() + CONFLICT_CHECK_DAYS * Utility.DAY_MILLIS);
+		if (!conflicts.isEmpty()) {
+			System.out.println("\nThis event overlaps:");
+			for (int i = 0; i < conflicts.size() && i < MAX_LISTED_CONFLICTS; i++) {
+				Occurrence conflict = conflicts.get(i);
+				System.out.println("  " + conflict.getDate() + "  " + conflict.getEvent().getName());
+			}
+			if (conflicts.size() > MAX_LISTED_CONFLICTS)
+				System.out.println("  and " + (conflicts.size() - MAX_LISTED_CONFLICTS) + " more");
+			if (!Utility.getYesNoInputFromUser("Add it anyway? (yes/no): ")) {
+				System.out.println("\nEvent not added");
+				Utility.pressEnterToContinue();
+				return;
+			}
+		}
 		System.out.println("\nEvent Created Successfully");
 		
 		// add the event to relevant data structures
@@ -119,60 +407,189 @@ public class EventsManager {
 		Utility.pressEnterToContinue();				
 	}
 	/*
-	 * adds an event to the relevant data structures
+	 * adds an event to the relevant data structures.
+	 * An event that is already in them is indexed again with its current values
 	 */
 	public void addToMaps(Event event) {
-		// Add to nameMap
-		String eventName = event.getName();
-		if (Event.nameMap.containsKey(eventName.toLowerCase())) {
-			Event.nameMap.get(eventName.toLowerCase()).add(event);
-		} else {
-			ArrayList<Event> eventList = new ArrayList<Event>();
-			eventList.add(event);
-			Event.nameMap.put(eventName.toLowerCase(), eventList);
+		// checked before anything changes
+		Event.checkDates(event.getStartMillis(), event.getExceptionDays());
+		long startNanos = System.nanoTime();
+		long sequence;
+		long stamp = EventStore.lockWrite();
+		try {
+			EventHandle handle = new EventHandle(event);
+			EventHandle existing = EventStore.handles.put(event.getId(), handle);
+			if(existing != null)
+				deleteFromIndexes(existing);
+			addToIndexes(handle);
+			if(reminders != null)
+				reminders.schedule(event);
+			sequence = journalChange(EventPersistence.Change.ADD, event);
+		} finally {
+			EventStore.unlockWrite(stamp);
 		}
-		
-		// Add event to the frequency map/queue according to the frequency of the event
-		addToFrequencyMaps(event);
+		awaitJournal(sequence);
+		metrics.record(EventMetrics.Operation.ADD, startNanos);
 	}
 	
 	/*
-	 * Adds event to the frequency map/queue according to the frequency of the event
+	 * adds many events in one pass. The events are sorted by start once, so the
+	 * time indexes are filled in order, and by id, so the notes postings are
+	 * appended to. Names are grouped through nameMap, which costs less than
+	 * sorting the names.
+	 * The events are not journaled, call saveAllEvents once they are all added
 	 */
-	public void addToFrequencyMaps(Event event) {
-		
-		Calendar eventDate = new GregorianCalendar();
-		eventDate.setTime(event.getDate());		
+	public void addAllToMaps(List<Event> events) {
+		// one event out of range turns down the batch before any is added
+		for (Event event : events) {
+			Event.checkDates(event.getStartMillis(), event.getExceptionDays());
+		}
+		EventHandle[] byStart = new EventHandle[events.size()];
+		for (int i = 0; i < byStart.length; i++) {
+			byStart[i] = new EventHandle(events.get(i));
+		}
+		EventHandle[] byId = byStart.clone();
+		Arrays.sort(byStart);
+		// usually sorted already, events are imported in id order
+		Arrays.sort(byId, new Comparator<EventHandle>() {
+			@Override
+			public int compare(EventHandle handle1, EventHandle handle2) {
+				return Integer.compare(handle1.getId(), handle2.getId());
+			}
+		});
 		
-		Event.Frequency eventFrequency = event.getFrequency();
-		switch(eventFrequency) {
+		long stamp = EventStore.lockWrite();
+		try {
+			for (EventHandle handle : byId) {
+				EventHandle existing = EventStore.handles.put(handle.getId(), handle);
+				if(existing != null)
+					deleteFromIndexes(existing);
+				shareStrings(handle);
+				addToNameMap(handle);
+				EventStore.notesIndex.add(handle.getId(), handle.getNotes());
+			}
+			for (EventHandle handle : byStart) {
+				addToTimeIndexes(handle);
+				if(reminders != null)
+					reminders.schedule(handle.getEvent());
+			}
+		} finally {
+			EventStore.unlockWrite(stamp);
+		}
+	}
+	
+	/*
+	 * saves all the events at once, after changes that were not journaled
+	 */
+	public void saveAllEvents() {
+		if(persistence == null)
+			return;
+		try {
+			persistence.writeSnapshot();
+		} catch (IOException e) {
+			System.out.println("Could not save events: " + e.getMessage());
+		}
+	}
+	
+	/*
+	 * adds an event to the indexes under the values of its handle,
+	 * the caller holds the write lock
+	 */
+	private void addToIndexes(EventHandle handle) {
+		shareStrings(handle);
+		addToNameMap(handle);
+		EventStore.notesIndex.add(handle.getId(), handle.getNotes());
+		addToTimeIndexes(handle);
+	}
+	
+	/*
+	 * removes an event from the indexes it was added to with its handle,
+	 * whatever its values are now. The caller holds the write lock
+	 */
+	private void deleteFromIndexes(EventHandle handle) {
+		deleteFromNameMap(handle);
+		EventStore.notesIndex.remove(handle.getId(), handle.getNotes());
+		deleteFromTimeIndexes(handle);
+		// an event out of the store keeps its notes on the heap again
+		handle.getEvent().loadNotes();
+		handle.release();
+	}
+	
+	/*
+	 * makes the event of a handle hold the dictionary copy of its name and the id
+	 * of its notes in EventStore.notes, so its own copies can be collected.
+	 * The caller holds the write lock
+	 */
+	private static void shareStrings(EventHandle handle) {
+		Event event = handle.getEvent();
+		event.setName(EventStore.names.get(handle.getNameId()));
+		event.storeNotes(handle.getNotesId());
+	}
+	
+	/*
+	 * adds an event to the indexes by time: the frequency map/queue matching the
+	 * frequency of the event, the day counts and the interval index.
+	 * The caller holds the write lock
+	 */
+	private void addToTimeIndexes(EventHandle handle) {
+		getFrequencyMap(handle).add(handle);
+		EventStore.dayCounts.add(handle);
+		EventStore.intervalIndex.add(handle);
+	}
+	
+	/*
+	 * removes an event from the indexes by time, the caller holds the write lock
+	 */
+	private void deleteFromTimeIndexes(EventHandle handle) {
+		getFrequencyMap(handle).remove(handle);
+		EventStore.dayCounts.remove(handle);
+		EventStore.intervalIndex.remove(handle);
+	}
+	
+	/*
+	 * adds an event to nameMap, the caller holds the write lock
+	 */
+	private void addToNameMap(EventHandle handle) {
+		String key = handle.getNameKey();
+		NavigableMap<Integer, Event> events = EventStore.nameMap.get(key);
+		if (events == null) {
+			events = new ConcurrentSkipListMap<Integer, Event>();
+			EventStore.nameMap.put(key, events);
+			EventStore.nameIndex.add(key);
+		}
+		events.put(handle.getId(), handle.getEvent());
+	}
+	
+	/*
+	 * removes an event from nameMap, the caller holds the write lock
+	 */
+	private void deleteFromNameMap(EventHandle handle) {
+		String key = handle.getNameKey();
+		NavigableMap<Integer, Event> events = EventStore.nameMap.get(key);
+		if(events != null) {
+			events.remove(handle.getId());
+			if(events.isEmpty()) {
+				EventStore.nameMap.remove(key);
+				EventStore.nameIndex.remove(key);
+			}
+		}
+	}
+	
+	/*
+	 * returns the frequency map/queue an event is indexed in
+	 */
+	private EventTimeIndex getFrequencyMap(EventHandle handle) {
+		switch(handle.getFrequency()) {
 		case DAILY:
-			Event.dailyEvents.add(event);
-			break;
+			return EventStore.dailyEvents;
 		case WEEKLY:
-			Event.weeklyEvents.add(event);
-			break;
+			return EventStore.weeklyEvents;
 		case MONTHLY:
-			Event.monthlyEvents.add(event);
-			break;
+			return EventStore.monthlyEvents;
 		case YEARLY:
-			Event.yearlyEvents.get(eventDate.get(Calendar.MONTH)).add(event);
-			break;
-		case NONE:
-			String key = Utility.makeMonthYearKey
-					(eventDate.get(Calendar.MONTH), eventDate.get(Calendar.YEAR));
-			if (Event.nonRecurringEvents.containsKey(key)) {
-				Event.nonRecurringEvents.get(key).add(event);
-			}
-			else {
-				ArrayList<Event> eventList = new ArrayList<Event>();
-				eventList.add(event);
-				Event.nonRecurringEvents.put(key, eventList);
-			}
-			
+			return EventStore.yearlyEvents.get(Utility.getMonth(Utility.getEpochDay(handle.getStartMillis())));
 		default:
-			break;
-		
+			return EventStore.nonRecurringEvents;
 		}
 	}
 	
@@ -232,9 +649,7 @@ public class EventsManager {
 						Utility.getYesNoInputFromUser("Are you sure you want to delete? (yes/no): ");
 				if(userConfirmation) {
 					Event event = eventList.get(0);
-					String eventName = event.getName();
-					Event.nameMap.remove(eventName.toLowerCase());
-					deleteEventFromFrequencyMaps(event);
+					deleteFromMaps(event);
 					System.out.println("Event Deleted.");
 					
 				} 
@@ -246,8 +661,7 @@ public class EventsManager {
 							("Select the event to delete (1-" + String.valueOf(eventCount) + "): ");
 					if (deleteIndex >= 1 && deleteIndex <= eventCount) {
 						Event event = eventList.get(deleteIndex-1);
-						eventList.remove(deleteIndex-1);
-						deleteEventFromFrequencyMaps(event);
+						deleteFromMaps(event);
 						validInput = true;
 						System.out.println("Event Deleted.");
 					}
@@ -258,40 +672,88 @@ public class EventsManager {
 	}
 	
 	/*
-	 * deletes an event from frequency maps/queues according
-	 * to the frequency of the event
+	 * deletes an event from all the data structures
 	 */
-	public void deleteEventFromFrequencyMaps(Event event) {		
-		Calendar eventDate = new GregorianCalendar();
-		eventDate.setTime(event.getDate());
-		Event.Frequency eventFrequency = event.getFrequency();
-		switch(eventFrequency) {
-		case DAILY:
-			Event.dailyEvents.remove(event);
-			break;
-		case WEEKLY:
-			Event.weeklyEvents.remove(event);
-			break;
-		case MONTHLY:
-			Event.monthlyEvents.remove(event);
-			break;
-		case YEARLY:
-			Event.yearlyEvents.get(eventDate.get(Calendar.MONTH)).remove(event);
-			break;
-		case NONE:
-			String key = Utility.makeMonthYearKey
-					(eventDate.get(Calendar.MONTH), eventDate.get(Calendar.YEAR));
-			Event.nonRecurringEvents.get(key).remove(event);			
-		default:
-			break;
-		
+	public void deleteFromMaps(Event event) {
+		long startNanos = System.nanoTime();
+		long sequence;
+		long stamp = EventStore.lockWrite();
+		try {
+			EventHandle handle = EventStore.handles.remove(event.getId());
+			if(handle != null)
+				deleteFromIndexes(handle);
+			if(reminders != null)
+				reminders.cancel(event);
+			sequence = journalChange(EventPersistence.Change.DELETE, event);
+		} finally {
+			EventStore.unlockWrite(stamp);
 		}
+		awaitJournal(sequence);
+		metrics.record(EventMetrics.Operation.DELETE, startNanos);
+	}
+	
+	/*
+	 * changes the attributes of an event and moves it to the data structures
+	 * matching its new name, date, notes and frequency in one step.
+	 * The duration is kept. returns false if the event was deleted
+	 */
+	public boolean updateInMaps(Event event, Date date, String name, String notes, int reminder,
+			Event.Frequency frequency) {
+		return updateInMaps(event, date, name, notes, reminder, frequency, event.getDuration());
+	}
+	
+	/*
+	 * changes the attributes of an event and moves it to the data structures
+	 * matching its new name, date, notes, frequency and duration in one step.
+	 * The end of the recurrence and the days it skips are kept. returns false if the
+	 * event was deleted
+	 */
+	public boolean updateInMaps(Event event, Date date, String name, String notes, int reminder,
+			Event.Frequency frequency, int duration) {
+		return updateInMaps(event, date, name, notes, reminder, frequency, duration,
+				event.getUntil(), event.getCount(), event.getExceptionDays());
+	}
+	
+	/*
+	 * changes the attributes of an event, the end of its recurrence and the days it
+	 * skips, see Event.setRecurrence, and moves it to the data structures matching
+	 * them in one step.
+	 * returns false, changing nothing, if the event is no longer in the store, so an
+	 * update that races a delete does not put the deleted event back
+	 */
+	public boolean updateInMaps(Event event, Date date, String name, String notes, int reminder,
+			Event.Frequency frequency, int duration, long until, int count, long[] exceptionDays) {
+		// checked before the event is taken out of the data structures
+		if (count < 0 || count > RecurrenceExpander.MAX_COUNT)
+			throw new IllegalArgumentException("count must be between 0 and " + RecurrenceExpander.MAX_COUNT);
+		Event.checkDates(date.getTime(), exceptionDays);
+		long startNanos = System.nanoTime();
+		long sequence;
+		long stamp = EventStore.lockWrite();
+		try {
+			EventHandle existing = EventStore.handles.get(event.getId());
+			if(existing == null)
+				return false;
+			deleteFromIndexes(existing);
+			event.update(date, name, notes, reminder, frequency, duration, until, count, exceptionDays);
+			EventHandle handle = new EventHandle(event);
+			EventStore.handles.put(event.getId(), handle);
+			addToIndexes(handle);
+			if(reminders != null)
+				reminders.schedule(event);
+			sequence = journalChange(EventPersistence.Change.UPDATE, event);
+		} finally {
+			EventStore.unlockWrite(stamp);
+		}
+		awaitJournal(sequence);
+		metrics.record(EventMetrics.Operation.UPDATE, startNanos);
+		return true;
 	}
 	
 	/*
 	 * Enables the user to browse the calendar by displaying a calendar month and events
 	 * occurring in that month. User can go to next or previous month or can go to a
-	 * particular month of his choice
+	 * particular month of his choice, from 1583, the first whole Gregorian year, to 9999
 	 */
 	public void browseCalendar() {
 		System.out.println("\n");
@@ -310,20 +772,23 @@ public class EventsManager {
 			System.out.println("-----------------------------------------------------------");
 			System.out.println("-----------------Events this month-------------------------");
 			System.out.println("-----------------------------------------------------------");
-			ArrayList<Integer> daysToMark = listEvents(month, year);
+			int daysToMark = listEvents(month, year);
 			EventsCalendar.printCalendarMonthYear(month, year, daysToMark);
 			System.out.print("\n\nEnter option ('n' for next month, 'p' for previous month,\n"
 					+ "  'g' to goto particular month and year, 'x' for exit): ");
 			
 			
 			try {
-				user_input = bufferedReader.readLine();
+				user_input = Utility.getTerminalReader().readLine();
 			} catch (IOException e) {				
 				e.printStackTrace();
 			}
 			
 			switch(user_input) {
 			case "n":				
+				if (month == Calendar.DECEMBER && year == Utility.LAST_YEAR) {
+					break;
+				}
 				if (month == Calendar.DECEMBER) {
 					month = Calendar.JANUARY;
 					year += 1;
@@ -332,6 +797,9 @@ public class EventsManager {
 				}
 				break;
 			case "p":
+				if (month == Calendar.JANUARY && year == Utility.FIRST_GREGORIAN_YEAR) {
+					break;
+				}
 				if (month == Calendar.JANUARY) {
 					month = Calendar.DECEMBER;
 					year -= 1;
@@ -341,7 +809,8 @@ public class EventsManager {
 				break;
 			case "g":
 				month = Utility.getIntegerFromTerminal("Enter month number (1-12): ", 1, 12) - 1;
-				year = Utility.getIntegerFromTerminal("Enter year (1-9999): ", 1, 9999);
+				year = Utility.getIntegerFromTerminal("Enter year (" + Utility.FIRST_GREGORIAN_YEAR + "-"
+						+ Utility.LAST_YEAR + "): ", Utility.FIRST_GREGORIAN_YEAR, Utility.LAST_YEAR);
 			default:
 				break;
 			}
@@ -353,100 +822,147 @@ public class EventsManager {
 	
 	/*
 	 * displays events occurring in a particular calendar month
-	 * returns a list containing the days on which the events are occurring 
-	 */
-	public ArrayList<Integer> listEvents(int month, int year) {
-		// List non recurring events
-		ArrayList<Integer> daysToMark = new ArrayList<Integer>();
-		boolean showHeader = true;
-		String key = Utility.makeMonthYearKey(month, year);
-		if(Event.nonRecurringEvents.containsKey(key)) {
-			ArrayList<Event> nonRecurringEventsList = Event.nonRecurringEvents.get(key);
-			
-			for(Event event : nonRecurringEventsList) {
-				daysToMark.add(Utility.getEventDayOfMonth(event));
-				if(showHeader) {
-					System.out.println("------ Non-recurring Events -------");
-					showHeader = false;
-				}
-				event.print();
-			}
-		}
-		
-		// List yearly events
-		showHeader = true;	
-		for(Event event : Event.yearlyEvents.get(month)) {
-			if(eventOccursInCalendarMonth(event, month, year)) {
-				daysToMark.add(Utility.getEventDayOfMonth(event));
-				if(showHeader) {
-					System.out.println("------ Yearly Events --------");
-					showHeader = false;
-				}
-				event.print();
-			}
-			else
-				break;
+	 * returns the days on which the events are occurring, bit i for day i + 1
+	 */
+	public int listEvents(int month, int year) {
+		MonthEvents monthEvents = getMonthEvents(month, year);
+		printEvents("------ Non-recurring Events -------", monthEvents.nonRecurring);
+		printEvents("------ Yearly Events --------", monthEvents.yearly);
+		printEvents("------ Monthly Events -------", monthEvents.monthly);
+		printEvents("------ Weekly Events --------", monthEvents.weekly);
+		printEvents("------ Daily Events ---------", monthEvents.daily);
+		return monthEvents.daysToMark;
+	}
+	
+	/*
+	 * prints a list of events under a header, nothing if the list is empty
+	 */
+	private void printEvents(String header, List<Event> events) {
+		if(events.isEmpty())
+			return;
+		System.out.println(header);
+		for(Event event : events) {
+			event.print();
 		}
-		
-		// List monthly events
-		showHeader = true;		
-		for(Event event : Event.monthlyEvents) {
-			if(eventOccursInCalendarMonth(event, month, year)) {
-				daysToMark.add(Utility.getEventDayOfMonth(event));
-				if(showHeader) {
-					System.out.println("------ Monthly Events -------");
-					showHeader = false;
-				}
-				event.print();
+	}
+	
+	/*
+	 * collects the events occurring in a particular calendar month and the days
+	 * on which they occur, from a consistent state of the data structures.
+	 * The days are looked up in the day counts, so the events are not expanded
+	 * and apart from the result no objects are created per event
+	 */
+	public MonthEvents getMonthEvents(final int month, final int year) {
+		long startNanos = System.nanoTime();
+		MonthEvents monthEvents = EventStore.read(new EventStore.Query<MonthEvents>() {
+			@Override
+			public MonthEvents run() {
+				return collectMonthEvents(month, year);
 			}
-			else
-				break;				
-		}		
-
-		// List weekly events
-		showHeader = true;	
-		for(Event event : Event.weeklyEvents) {
-			if(eventOccursInCalendarMonth(event, month, year)) { 
-				if(showHeader) {
-					System.out.println("------ Weekly Events --------");
-					showHeader = false;
-				}
-				event.print();
+		});
+		metrics.record(EventMetrics.Operation.LIST_MONTH, startNanos);
+		return monthEvents;
+	}
+	
+	/*
+	 * collects the events of count months in a row, starting with month of year, like
+	 * getMonthEvents does for each of them, from one consistent state of the data structures.
+	 * Every month is worked out on its own, so ranges longer than the parallel months
+	 * are split into fork-join tasks run on the common pool and the months are put
+	 * back in order. Shorter ranges are collected on the calling thread
+	 */
+	public List<MonthEvents> getMonthEvents(final int month, final int year, final int count) {
+		if (count < 0)
+			throw new IllegalArgumentException("negative number of months " + count);
+		final int threshold = parallelMonths;
+		return EventStore.read(new EventStore.Query<List<MonthEvents>>() {
+			@Override
+			public List<MonthEvents> run() {
+				MonthEvents[] months = new MonthEvents[count];
+				new MonthRangeTask(year * 12 + month, months, 0, count, threshold).invoke();
+				return Arrays.asList(months);
 			}
-			else
-				break;
+		});
+	}
+	
+	/*
+	 * sets the number of months a range of months can have before getMonthEvents
+	 * splits it into parallel tasks, Integer.MAX_VALUE to never split
+	 */
+	public void setParallelMonths(int parallelMonths) {
+		if (parallelMonths < 1)
+			throw new IllegalArgumentException("parallel months must be at least 1");
+		this.parallelMonths = parallelMonths;
+	}
+	
+	/*
+	 * collects the events occurring in a month and their days, the caller holds the read lock
+	 */
+	private MonthEvents collectMonthEvents(int month, int year) {
+		long firstDay = Utility.getMonthStartDay(month, year);
+		long endDay = Utility.getMonthStartDay(month + 1, year);
+		long monthStart = Utility.getMillis(firstDay, 0);
+		long nextMonthStart = Utility.getMillis(endDay, 0);
+		MonthEvents monthEvents = new MonthEvents();
+		// non recurring events
+		for(Event event : EventStore.nonRecurringEvents.between(monthStart, nextMonthStart)) {
+			monthEvents.nonRecurring.add(event);
 		}
-
-		// List daily events	
-		showHeader = true;	
-		for(Event event : Event.dailyEvents) {
-			if(eventOccursInCalendarMonth(event, month, year)) {
-				if(showHeader) {
-					System.out.println("------ Daily Events ---------");
-					showHeader = false;
-				}
-				event.print();
-			}
-			else
-				break;
+		// Recurring events occur in every month from their start to their last occurrence,
+		// so the events starting before the end of the month and not ended before its
+		// start are the ones to list, but for those skipping all their days in the month
+		collectRecurringEvents(EventStore.yearlyEvents.get(month), monthStart, nextMonthStart, monthEvents.yearly);
+		collectRecurringEvents(EventStore.monthlyEvents, monthStart, nextMonthStart, monthEvents.monthly);
+		collectRecurringEvents(EventStore.weeklyEvents, monthStart, nextMonthStart, monthEvents.weekly);
+		collectRecurringEvents(EventStore.dailyEvents, monthStart, nextMonthStart, monthEvents.daily);
+		monthEvents.daysToMark = EventStore.dayCounts.getDays(firstDay, endDay);
+		return monthEvents;
+	}
+	
+	/*
+	 * adds the recurring events of an index occurring in the month to events
+	 */
+	private void collectRecurringEvents(EventTimeIndex index, long monthStart, long nextMonthStart,
+			List<Event> events) {
+		for(Event event : index.activeBetween(monthStart, nextMonthStart)) {
+			if(event.getExceptionDays().length == 0
+					|| RecurrenceExpander.occursBetween(event, monthStart, nextMonthStart))
+				events.add(event);
 		}
-		return daysToMark;
-		
 	}
 	
 	/*
-	 * determines if a given event occurs in a particular calendar month
+	 * returns the number of occurrences of the events on each day in [firstDay, endDay),
+	 * one element per day, from a consistent state of the data structures.
+	 * Each day is looked up in the day counts in O(log n)
+	 */
+	public int[] getDayCounts(final long firstDay, final long endDay) {
+		if (endDay < firstDay)
+			throw new IllegalArgumentException("end day before first day");
+		return EventStore.read(new EventStore.Query<int[]>() {
+			@Override
+			public int[] run() {
+				int[] counts = new int[(int) (endDay - firstDay)];
+				EventStore.dayCounts.getCounts(firstDay, counts);
+				return counts;
+			}
+		});
+	}
+	
+	/*
+	 * returns the day in [firstDay, endDay) with the most occurrences, the earliest
+	 * of them on a tie
 	 */
-	public boolean eventOccursInCalendarMonth(Event event, int month, int year) {
-		Calendar eventDate = new GregorianCalendar();
-		eventDate.setTime(event.getDate());
-		if(eventDate.get(Calendar.YEAR) > year) {
-			return false;
-		} else if (eventDate.get(Calendar.YEAR) == year) {
-			return eventDate.get(Calendar.MONTH) <= month;
+	public long getBusiestDay(long firstDay, long endDay) {
+		if (endDay <= firstDay)
+			throw new IllegalArgumentException("no days between " + firstDay + " and " + endDay);
+		int[] counts = getDayCounts(firstDay, endDay);
+		int busiest = 0;
+		for (int i = 1; i < counts.length; i++) {
+			if (counts[i] > counts[busiest])
+				busiest = i;
 		}
-		return true;
-		
+		return firstDay + busiest;
 	}
 	
 	/*
@@ -466,15 +982,250 @@ public class EventsManager {
 	}
 	
 	/*
-	 * lists all the events having the event name entered by user
+	 * writes all the events to a file in the EventCodec format, in start order by
+	 * frequency like the snapshots
+	 */
+	public void exportEvents(File file) {
+		long start = System.nanoTime();
+		long stamp = EventStore.lockRead();
+		try {
+			OutputStream output = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+			try {
+				EventCodec.Encoder encoder = new EventCodec.Encoder(output);
+				exportEvents(encoder, EventStore.nonRecurringEvents);
+				exportEvents(encoder, EventStore.dailyEvents);
+				exportEvents(encoder, EventStore.weeklyEvents);
+				exportEvents(encoder, EventStore.monthlyEvents);
+				for (EventTimeIndex yearlyIndex : EventStore.yearlyEvents.values()) {
+					exportEvents(encoder, yearlyIndex);
+				}
+				encoder.finish();
+				System.out.println(String.format("Exported %d events to %s, %d bytes in %d ms",
+						EventStore.handles.size(), file, encoder.getBytesWritten(),
+						(System.nanoTime() - start) / 1000000));
+			} finally {
+				output.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not export events: " + e.getMessage());
+		} finally {
+			EventStore.unlockRead(stamp);
+		}
+	}
+	
+	private static void exportEvents(EventCodec.Encoder encoder, EventTimeIndex index) throws IOException {
+		for (Event event : index.startingBefore(Long.MAX_VALUE)) {
+			encoder.write(event);
+		}
+	}
+	
+	/*
+	 * imports the events of a CSV, iCalendar or EventCodec file named by user
+	 */
+	public void importEvents() {
+		System.out.println("\n");
+		System.out.println("===========================================================");
+  		System.out.println("|   Import Events Module                                  |");
+  		System.out.println("===========================================================");
+  		System.out.println("CSV rows are date,time,name[,notes[,reminder[,frequency[,duration[,until[,count[,skipped]]]]]]]");
+  		System.out.println("Example: 11/14/2014,13:00,Dentist,Bring the forms,30,NONE,45");
+		String fileName = Utility.getStringFromTerminal("Enter the path of a .csv, .ics or .evb file: ");
+		try {
+			EventImporter.Result result = new EventImporter(this).importFile(new File(fileName));
+			System.out.println(String.format("Imported %d events in %d ms (%.0f events/s), %d rejected",
+					result.getImported(), result.getElapsedNanos() / 1000000,
+					result.getEventsPerSecond(), result.getRejected()));
+			for (String error : result.getErrors()) {
+				System.out.println("  " + error);
+			}
+			if (result.getRejected() > result.getErrors().size()) {
+				System.out.println("  ... and " + (result.getRejected() - result.getErrors().size()) + " more");
+			}
+		} catch (IOException e) {
+			System.out.println("Could not import events: " + e.getMessage());
+		}
+		Utility.pressEnterToContinue();
+	}
+	
+	/*
+	 * Searches the notes of the events for the words entered by user,
+	 * optionally only the events occurring between two dates
+	 */
+	public void searchNotes() {
+		System.out.println("\n");
+		System.out.println("===========================================================");
+  		System.out.println("|   Search Notes Module                                   |");
+  		System.out.println("===========================================================");
+		boolean continueSearch = true;
+		while(continueSearch) {
+			String query = Utility.getStringFromTerminal("Enter words to find (use OR between alternatives): ");
+			long from = Long.MIN_VALUE;
+			long to = Long.MAX_VALUE;
+			if(Utility.getYesNoInputFromUser("Only events between two dates? (yes/no): ")) {
+				from = Utility.getDateAndTimeFromUser("Enter start date (MM/dd/yyyy): ",
+						"Enter start time (HH:mm): ").getTime();
+				to = Utility.getDateAndTimeFromUser("Enter end date (MM/dd/yyyy): ",
+						"Enter end time (HH:mm): ").getTime();
+			}
+			List<Event> foundEvents = searchNotes(query, from, to);
+			if(!foundEvents.isEmpty()) {
+				System.out.println(String.valueOf(foundEvents.size()) + " event(s) found");
+				System.out.println("-----------------------------------------------------------");
+				int count = 1;
+				for(Event event : foundEvents) {
+					System.out.println(String.valueOf(count)+".");
+					event.print();
+					count++;
+				}
+			} else {
+				System.out.println("No events found\n");
+			}
+			continueSearch = Utility.getYesNoInputFromUser("Search again? (yes/no): ");
+		}
+		Utility.pressEnterToContinue();
+	}
+	
+	/*
+	 * returns the events whose notes match the query, see NotesIndex, and that occur
+	 * in [from, to). Events are in the order they were created
+	 */
+	public List<Event> searchNotes(final String query, final long from, final long to) {
+		long startNanos = System.nanoTime();
+		List<Event> found = EventStore.read(new EventStore.Query<List<Event>>() {
+			@Override
+			public List<Event> run() {
+				List<Event> events = new ArrayList<Event>();
+				for (int id : EventStore.notesIndex.search(query)) {
+					EventHandle handle = EventStore.handles.get(id);
+					Event event = handle == null ? null : handle.getEvent();
+					if (event != null && (from == Long.MIN_VALUE && to == Long.MAX_VALUE
+							|| RecurrenceExpander.occursBetween(event, from, to))) {
+						events.add(event);
+					}
+				}
+				return events;
+			}
+		});
+		metrics.record(EventMetrics.Operation.SEARCH_NOTES, startNanos);
+		return found;
+	}
+	
+	/*
+	 * returns a page of the agenda of [from, to): the first limit occurrences after
+	 * the cursor, or from the start of the range if the cursor is null. The page is
+	 * taken from a consistent state of the data structures, under the read lock, so a
+	 * long agenda is read a page at a time. See Agenda
+	 */
+	public List<Occurrence> getOccurrences(final long from, final long to, final int limit,
+			final Agenda.Cursor after) {
+		long startNanos = System.nanoTime();
+		List<Occurrence> page = EventStore.read(new EventStore.Query<List<Occurrence>>() {
+			@Override
+			public List<Occurrence> run() {
+				List<Occurrence> occurrences = new ArrayList<Occurrence>(Math.min(limit, 1024));
+				Agenda agenda = after == null ? new Agenda(from, to) : new Agenda(from, to, after);
+				while (occurrences.size() < limit && agenda.hasNext()) {
+					occurrences.add(agenda.next());
+				}
+				return occurrences;
+			}
+		});
+		metrics.record(EventMetrics.Operation.OCCURRENCES, startNanos);
+		return page;
+	}
+	
+	/*
+	 * returns the occurrences taking up part of [from, to), and those of events without
+	 * a duration starting in it, by start and then by event id
+	 */
+	public List<Occurrence> getOverlapping(final long from, final long to) {
+		long startNanos = System.nanoTime();
+		List<Occurrence> occurrences = EventStore.read(new EventStore.Query<List<Occurrence>>() {
+			@Override
+			public List<Occurrence> run() {
+				return EventStore.intervalIndex.getOverlapping(from, to);
+			}
+		});
+		metrics.record(EventMetrics.Operation.FREE_BUSY, startNanos);
+		return occurrences;
+	}
+	
+	/*
+	 * returns the occurrences taking up part of [from, to), by start and then by event id.
+	 * Events without a duration take up no time
+	 */
+	public List<Occurrence> getBusy(final long from, final long to) {
+		long startNanos = System.nanoTime();
+		List<Occurrence> occurrences = EventStore.read(new EventStore.Query<List<Occurrence>>() {
+			@Override
+			public List<Occurrence> run() {
+				return EventStore.intervalIndex.getBusy(from, to);
+			}
+		});
+		metrics.record(EventMetrics.Operation.FREE_BUSY, startNanos);
+		return occurrences;
+	}
+	
+	/*
+	 * returns true if no occurrence takes up any part of [from, to)
+	 */
+	public boolean isFree(final long from, final long to) {
+		long startNanos = System.nanoTime();
+		boolean free = EventStore.read(new EventStore.Query<Boolean>() {
+			@Override
+			public Boolean run() {
+				return EventStore.intervalIndex.isFree(from, to);
+			}
+		});
+		metrics.record(EventMetrics.Operation.FREE_BUSY, startNanos);
+		return free;
+	}
+	
+	/*
+	 * returns the free windows of at least minMinutes in [from, to), in time order
+	 */
+	public List<IntervalIndex.Slot> getFreeSlots(final long from, final long to, final int minMinutes) {
+		long startNanos = System.nanoTime();
+		List<IntervalIndex.Slot> slots = EventStore.read(new EventStore.Query<List<IntervalIndex.Slot>>() {
+			@Override
+			public List<IntervalIndex.Slot> run() {
+				return EventStore.intervalIndex.getFreeSlots(from, to, minMinutes * 60000L);
+			}
+		});
+		metrics.record(EventMetrics.Operation.FREE_BUSY, startNanos);
+		return slots;
+	}
+	
+	/*
+	 * returns the occurrences of other events overlapping the occurrences of an event
+	 * in [from, to), by start and then by event id. The event does not need to be added
+	 * yet, so it can be checked before it is
+	 */
+	public List<Occurrence> getConflicts(final Event event, final long from, final long to) {
+		long startNanos = System.nanoTime();
+		List<Occurrence> conflicts = EventStore.read(new EventStore.Query<List<Occurrence>>() {
+			@Override
+			public List<Occurrence> run() {
+				return EventStore.intervalIndex.getConflicts(event, from, to);
+			}
+		});
+		metrics.record(EventMetrics.Operation.CONFLICTS, startNanos);
+		return conflicts;
+	}
+	
+	/*
+	 * lists the events whose name contains the text entered by user,
+	 * best matching names first
 	 */
 	public ArrayList<Event> listEventsFromName() {
 		ArrayList<Event> eventList = null;
 		
 		String eventName = Utility.getStringFromTerminal("Enter event name: ");
 		
-		if(Event.nameMap.containsKey(eventName.toLowerCase())) {
-			eventList = Event.nameMap.get(eventName.toLowerCase());
+		List<Event> foundEvents = searchEventsByName(eventName, MAX_SEARCH_NAMES);
+		if(!foundEvents.isEmpty()) {
+			// copy so the numbering shown stays valid while the user picks an event
+			eventList = new ArrayList<Event>(foundEvents);
 			String eventCount = String.valueOf(eventList.size());;
 			System.out.println(eventCount + " event(s) found");
 			System.out.println("-----------------------------------------------------------");
@@ -491,6 +1242,37 @@ public class EventsManager {
 		return eventList;
 	}
 	
+	/*
+	 * returns the events having the given name ignoring case, null if there are none
+	 */
+	public Collection<Event> findEventsByName(String eventName) {
+		NavigableMap<Integer, Event> events = EventStore.nameMap.get(EventStore.names.getKey(eventName));
+		return events == null ? null : events.values();
+	}
+	
+	/*
+	 * returns the events of the names that best match the given text ignoring case,
+	 * see NameIndex. At most maxNames different names are returned
+	 */
+	public List<Event> searchEventsByName(final String text, final int maxNames) {
+		long startNanos = System.nanoTime();
+		List<Event> found = EventStore.read(new EventStore.Query<List<Event>>() {
+			@Override
+			public List<Event> run() {
+				List<Event> events = new ArrayList<Event>();
+				for (String name : EventStore.nameIndex.search(text, maxNames)) {
+					NavigableMap<Integer, Event> eventsWithName = EventStore.nameMap.get(name);
+					if (eventsWithName != null) {
+						events.addAll(eventsWithName.values());
+					}
+				}
+				return events;
+			}
+		});
+		metrics.record(EventMetrics.Operation.SEARCH_NAME, startNanos);
+		return found;
+	}
+	
 	/*
 	 * Updates an event through user input data via terminal
 	 */
@@ -504,33 +1286,55 @@ public class EventsManager {
 				System.out.println(event.getDate());
 				Date newDate = Utility.
 					getDateAndTimeFromUser("Enter date: ", "Enter time: ");
-				event.setDate(newDate);
+				updateInMaps(event, newDate, event.getName(), event.getNotes(),
+						event.getReminder(), event.getFrequency());
 				break;
 			case 2:
 				System.out.print("Current Value: ");
 				System.out.println(event.getNotes());
 				String newNotes = Utility.getStringFromTerminal("Enter notes: ");
-				event.setNotes(newNotes);
+				updateInMaps(event, event.getDate(), event.getName(), newNotes,
+						event.getReminder(), event.getFrequency());
 				break;
 			case 3:
 				System.out.print("Current Value: ");
 				System.out.println(event.getReminder());
 				int newReminder = Utility.getIntegerFromTerminal("Enter reminder in minutes: ");
-				event.setReminder(newReminder);
+				updateInMaps(event, event.getDate(), event.getName(), event.getNotes(),
+						newReminder, event.getFrequency());
 				break;
 			case 4:
 				System.out.print("Current Value: ");
 				System.out.println(event.getFrequency());
 				Event.Frequency newFrequency = Utility.getEventFrequencyFromUser();
-				if(event.getFrequency() != newFrequency) {
-					deleteEventFromFrequencyMaps(event);
-					event.setFrequency(newFrequency);
-					addToFrequencyMaps(event);
-				} else {
-					event.setFrequency(newFrequency);
-				}
+				updateInMaps(event, event.getDate(), event.getName(), event.getNotes(),
+						event.getReminder(), newFrequency);
 				break;
 			case 5:
+				System.out.print("Current Value: ");
+				System.out.println(event.getDuration());
+				int newDuration = Utility.getIntegerFromTerminal("Enter duration in minutes: ", 0, Integer.MAX_VALUE);
+				updateInMaps(event, event.getDate(), event.getName(), event.getNotes(),
+						event.getReminder(), event.getFrequency(), newDuration);
+				break;
+			case 6:
+				System.out.print("Current Value: ");
+				System.out.println(event.getLastStartMillis() == Long.MAX_VALUE ? "none"
+						: new Date(event.getLastStartMillis()).toString());
+				long[] end = Utility.getYesNoInputFromUser("Does the event stop recurring? (yes/no): ")
+						? getRecurrenceEndFromUser() : new long[] { Long.MAX_VALUE, 0 };
+				updateInMaps(event, event.getDate(), event.getName(), event.getNotes(), event.getReminder(),
+						event.getFrequency(), event.getDuration(), end[0], (int) end[1], event.getExceptionDays());
+				break;
+			case 7:
+				System.out.print("Current Value: ");
+				System.out.println(Utility.appendDates(new StringBuilder(), event.getExceptionDays()));
+				long[] skipped = Arrays.copyOf(event.getExceptionDays(), event.getExceptionDays().length + 1);
+				skipped[skipped.length - 1] = Utility.getEpochDayFromUser("Enter the date to skip (MM/dd/yyyy): ");
+				updateInMaps(event, event.getDate(), event.getName(), event.getNotes(), event.getReminder(),
+						event.getFrequency(), event.getDuration(), event.getUntil(), event.getCount(), skipped);
+				break;
+			case 8:
 				break;
 			default:
 				System.out.println("Invalid Input.");
@@ -540,6 +1344,19 @@ public class EventsManager {
 		}
 	}
 	
+	/*
+	 * asks the user where a recurrence ends, returns the until instant and the count
+	 */
+	private static long[] getRecurrenceEndFromUser() {
+		if (Utility.getIntegerFromTerminal("End on a date (1) or after a number of times (2): ", 1, 2) == 1) {
+			long lastDay = Utility.getEpochDayFromUser("Enter the last date (MM/dd/yyyy): ");
+			// occurrences on the last date are still on
+			return new long[] { Utility.getMillis(lastDay + 1, 0) - 1, 0 };
+		}
+		return new long[] { Long.MAX_VALUE,
+				Utility.getIntegerFromTerminal("Enter the number of times: ", 1, RecurrenceExpander.MAX_COUNT) };
+	}
+	
 	/*
 	 * Inserts data for testing
 	 */
@@ -562,34 +1379,65 @@ public class EventsManager {
 					parse("9/6/2014 13:00"), "c", "bbsdsdbb", 0, Event.Frequency.YEARLY);
 			Event e8 = new Event(dateTimeFormat.
 					parse("10/24/2014 13:00"), "b", "bbbb", 40, Event.Frequency.NONE);
-			ArrayList<Event> l1 = new ArrayList<Event>();
-			l1.add(e1);
-			l1.add(e2);
-			ArrayList<Event> l2 = new ArrayList<Event>();
-			l2.add(e3);
-			l2.add(e4);
-			ArrayList<Event> l3 = new ArrayList<Event>();
-			l3.add(e5);
-			l3.add(e6);
-			l3.add(e7);
-			ArrayList<Event> nonRecurListNov = new ArrayList<Event>();
-			nonRecurListNov.add(e2);
-			nonRecurListNov.add(e3);
-			ArrayList<Event> nonRecurListOct = new ArrayList<Event>();
-			nonRecurListOct.add(e8);
-			Event.nonRecurringEvents.put("201410", nonRecurListNov);
-			Event.nonRecurringEvents.put("201409", nonRecurListOct);
-			
-			Event.nameMap.put("a", l1 );
-			Event.nameMap.put("b", l2 );
-			Event.nameMap.put("c", l3 );
-			Event.dailyEvents.add(e1);
-			Event.weeklyEvents.add(e4);
-			Event.yearlyEvents.get(Calendar.JUNE).add(e5);
-			Event.yearlyEvents.get(Calendar.AUGUST).add(e6);
-			Event.yearlyEvents.get(Calendar.SEPTEMBER).add(e7);
+			addToMaps(e1);
+			addToMaps(e2);
+			addToMaps(e3);
+			addToMaps(e4);
+			addToMaps(e5);
+			addToMaps(e6);
+			addToMaps(e7);
+			addToMaps(e8);
 		} catch (ParseException pe) {
 			System.out.println(pe.toString());
 		}		
 	}
+	
+	/*
+	 * The events occurring in a calendar month, grouped the way listEvents prints them
+	 */
+	public static class MonthEvents {
+		public final List<Event> nonRecurring = new ArrayList<Event>();
+		public final List<Event> yearly = new ArrayList<Event>();
+		public final List<Event> monthly = new ArrayList<Event>();
+		public final List<Event> weekly = new ArrayList<Event>();
+		public final List<Event> daily = new ArrayList<Event>();
+		// the days on which the events occur, bit i for day i + 1 of the month
+		public int daysToMark;
+	}
+	
+	/*
+	 * Collects the months of a range into their slots of an array, splitting the range
+	 * in halves until a part has no more than threshold months
+	 */
+	private class MonthRangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		// the first month of the whole range, counted as year * 12 + month
+		private final int firstMonth;
+		private final MonthEvents[] months;
+		private final int from;
+		private final int to;
+		private final int threshold;
+
+		MonthRangeTask(int firstMonth, MonthEvents[] months, int from, int to, int threshold) {
+			this.firstMonth = firstMonth;
+			this.months = months;
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				for (int i = from; i < to; i++) {
+					int month = firstMonth + i;
+					months[i] = collectMonthEvents(month % 12, month / 12);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new MonthRangeTask(firstMonth, months, from, middle, threshold),
+					new MonthRangeTask(firstMonth, months, middle, to, threshold));
+		}
+	}
 }
@@ -0,0 +1,92 @@
+/**
+ * FenwickTree.java
+ * Class to count values at integer positions, such as events by their start day, and
+ * to sum the counts up to a position in O(log n). The counts are kept in a binary
+ * indexed tree over a window of positions whose size is a power of two. Adding at a
+ * position outside the window doubles the window towards it, rebuilding the tree in
+ * O(n), so a tree only takes memory for the range of positions it is used over
+ */
+
+
+public class FenwickTree {
+	private static final int INITIAL_CAPACITY = 64;
+
+	// the position counted at index 1 of tree
+	private long first;
+	// tree[i] is the sum of the counts of the i & -i positions ending at index i,
+	// tree[0] is unused. null until the first count is added
+	private int[] tree;
+
+	/*
+	 * adds delta to the count at a position
+	 */
+	public void add(long position, int delta) {
+		if (tree == null) {
+			first = position - INITIAL_CAPACITY / 2;
+			tree = new int[INITIAL_CAPACITY + 1];
+		} else if (position < first || position - first >= tree.length - 1) {
+			grow(position);
+		}
+		for (int i = (int) (position - first) + 1; i < tree.length; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	/*
+	 * returns the sum of the counts at the positions up to and including position
+	 */
+	public int sumTo(long position) {
+		int[] tree = this.tree;
+		if (tree == null || position < first) {
+			return 0;
+		}
+		int sum = 0;
+		for (int i = (int) Math.min(position - first + 1, tree.length - 1); i > 0; i -= i & -i) {
+			sum += tree[i];
+		}
+		return sum;
+	}
+
+	/*
+	 * returns the count at a position
+	 */
+	public int get(long position) {
+		return sumTo(position) - sumTo(position - 1);
+	}
+
+	/*
+	 * doubles the window until it holds the position, keeping the counts
+	 */
+	private void grow(long position) {
+		int capacity = tree.length - 1;
+		long end = first + capacity;
+		long newFirst = first;
+		long newCapacity = capacity;
+		while (position < newFirst || position >= newFirst + newCapacity) {
+			if (newCapacity >= 1 << 30) {
+				throw new IllegalArgumentException("position " + position + " too far from " + first);
+			}
+			newCapacity *= 2;
+			// grow towards the position, the old window stays at one end
+			newFirst = position < first ? end - newCapacity : first;
+		}
+		// turn the tree back into the counts, undoing the build below
+		int[] counts = tree;
+		for (int i = capacity; i > 0; i--) {
+			int parent = i + (i & -i);
+			if (parent <= capacity) {
+				counts[parent] -= counts[i];
+			}
+		}
+		int[] newTree = new int[(int) newCapacity + 1];
+		System.arraycopy(counts, 1, newTree, (int) (first - newFirst) + 1, capacity);
+		for (int i = 1; i <= newCapacity; i++) {
+			int parent = i + (i & -i);
+			if (parent <= newCapacity) {
+				newTree[parent] += newTree[i];
+			}
+		}
+		first = newFirst;
+		tree = newTree;
+	}
+}
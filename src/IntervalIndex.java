@@ -0,0 +1,528 @@
+/**
+ * IntervalIndex.java
+ * Class to find the events taking up any part of a window of time, for free/busy and
+ * conflict queries. An event takes up [start, start + duration) at each occurrence.
+ * Events are kept in sorted sets by their frequency and by the power of two their
+ * duration is under, each at a key telling where its occurrences start in a period:
+ *   none     the start millis
+ *   daily    the local minute of the day
+ *   weekly   the local minute of the week, weeks starting on a Thursday like epoch days
+ *   monthly  the local minute of a month of 31 days
+ *   yearly   the local minute of a year of 12 months of 31 days
+ * An occurrence overlapping a window starts before the window ends and at most its
+ * duration before the window starts, so each set is only looked at over the keys of
+ * that range, in O(log n), and the events found are checked occurrence by occurrence.
+ * A query costs O(log n + k), k being the events overlapping the window and the few
+ * ending less than their duration before it.
+ * Recurrences with an end are kept apart, in an EndingTree per set at the same keys,
+ * which passes over the recurrences that ended before the window or start after it
+ * without visiting them, so they cost nothing however many pile up.
+ * Events without a duration take no time: they never make a window busy, but are among
+ * the events overlapping a window they start in.
+ * Changes are made under the EventStore write lock. The sets can be read while they are
+ * changed, the trees only under the read lock
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+
+public class IntervalIndex {
+	private static final long MINUTE_MILLIS = 60000;
+	private static final int DAY_MINUTES = 24 * 60;
+	private static final int WEEK_MINUTES = 7 * DAY_MINUTES;
+	private static final int MAX_DAY_OF_MONTH = 31;
+	private static final int MONTH_MINUTES = MAX_DAY_OF_MONTH * DAY_MINUTES;
+	private static final int YEAR_MINUTES = 12 * MONTH_MINUTES;
+	// 0 for the events without a duration, then one per power of two of minutes
+	private static final int DURATION_CLASSES = 33;
+	// how much further the local times of a window are looked at when the clocks change
+	// near it. An occurrence in the hour skipped by the clocks starts later than its key
+	// says, and the local times of the hour before the clocks go back are seen twice
+	private static final int OFFSET_CHANGE_MINUTES = 4 * 60;
+	// instants are turned into local minutes inside these bounds, so nothing overflows
+	private static final long MIN_MILLIS = Long.MIN_VALUE / 4;
+	private static final long MAX_MILLIS = Long.MAX_VALUE / 4;
+
+	private static final Comparator<Occurrence> OCCURRENCE_ORDER = new Comparator<Occurrence>() {
+		@Override
+		public int compare(Occurrence occurrence1, Occurrence occurrence2) {
+			int result = Long.compare(occurrence1.getStartMillis(), occurrence2.getStartMillis());
+			return result != 0 ? result
+					: Integer.compare(occurrence1.getEvent().getId(), occurrence2.getEvent().getId());
+		}
+	};
+
+	// the set of a frequency and a duration class is at
+	// frequency.ordinal() * DURATION_CLASSES + durationClass, and the tree of its
+	// recurrences with an end at the same index of endingTrees
+	private final List<NavigableSet<Entry>> sets;
+	private final List<EndingTree> endingTrees;
+	// the sets have no constant time size
+	private volatile int size;
+
+	public IntervalIndex() {
+		int count = Event.Frequency.values().length * DURATION_CLASSES;
+		sets = new ArrayList<NavigableSet<Entry>>(count);
+		endingTrees = new ArrayList<EndingTree>(count);
+		for (int i = 0; i < count; i++) {
+			sets.add(new ConcurrentSkipListSet<Entry>());
+			endingTrees.add(new EndingTree());
+		}
+	}
+
+	/*
+	 * adds an event to the index under the start, frequency and duration of its handle
+	 */
+	public void add(EventHandle handle) {
+		int index = getIndex(handle);
+		long key = getKey(handle.getFrequency(), handle.getStartMillis());
+		boolean added = isEnding(handle) ? endingTrees.get(index).add(key, handle)
+				: sets.get(index).add(new Entry(key, handle));
+		if (added) {
+			size++;
+		}
+	}
+
+	/*
+	 * removes an event added with a handle
+	 * returns true if the event was found
+	 */
+	public boolean remove(EventHandle handle) {
+		int index = getIndex(handle);
+		long key = getKey(handle.getFrequency(), handle.getStartMillis());
+		boolean removed = isEnding(handle) ? endingTrees.get(index).remove(key, handle)
+				: sets.get(index).remove(new Entry(key, handle));
+		if (!removed) {
+			return false;
+		}
+		size--;
+		return true;
+	}
+
+	/*
+	 * returns the number of events in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * returns the occurrences taking up part of [from, to), and those without a
+	 * duration starting in it, by start and then by event id
+	 */
+	public List<Occurrence> getOverlapping(long from, long to) {
+		List<Occurrence> occurrences = new ArrayList<Occurrence>();
+		scan(from, to, true, occurrences);
+		Collections.sort(occurrences, OCCURRENCE_ORDER);
+		return occurrences;
+	}
+
+	/*
+	 * returns the occurrences taking up part of [from, to), by start and then by event id
+	 */
+	public List<Occurrence> getBusy(long from, long to) {
+		List<Occurrence> occurrences = new ArrayList<Occurrence>();
+		scan(from, to, false, occurrences);
+		Collections.sort(occurrences, OCCURRENCE_ORDER);
+		return occurrences;
+	}
+
+	/*
+	 * returns true if no occurrence takes up any part of [from, to).
+	 * Stops at the first occurrence found
+	 */
+	public boolean isFree(long from, long to) {
+		return scan(from, to, false, null);
+	}
+
+	/*
+	 * returns the longest windows in [from, to) no occurrence takes up any part of,
+	 * leaving out those shorter than minLength millis, in time order
+	 */
+	public List<Slot> getFreeSlots(long from, long to, long minLength) {
+		List<Slot> slots = new ArrayList<Slot>();
+		long free = from;
+		for (Occurrence occurrence : getBusy(from, to)) {
+			long start = occurrence.getStartMillis();
+			if (start > free && start - free >= minLength) {
+				slots.add(new Slot(free, start));
+			}
+			free = Math.max(free, occurrence.getEndMillis());
+		}
+		if (to > free && to - free >= minLength) {
+			slots.add(new Slot(free, to));
+		}
+		return slots;
+	}
+
+	/*
+	 * returns the occurrences of the other events taking up part of the time taken up by
+	 * the occurrences of an event overlapping [from, to), by start and then by event id.
+	 * The event does not have to be in the index. An event without a duration has no conflicts
+	 */
+	public List<Occurrence> getConflicts(Event event, long from, long to) {
+		List<Occurrence> conflicts = new ArrayList<Occurrence>();
+		long length = event.getDuration() * MINUTE_MILLIS;
+		if (length == 0 || from >= to) {
+			return conflicts;
+		}
+		List<Occurrence> busy = new ArrayList<Occurrence>();
+		PrimitiveIterator.OfLong starts = RecurrenceExpander.occurrenceStarts(event.getStartMillis(),
+				event.getFrequency(), event.getLastStartMillis(), event.getExceptionDays(),
+				subtract(from, length), to);
+		while (starts.hasNext()) {
+			long start = starts.nextLong();
+			if (!overlaps(start, start + length, from, to)) {
+				continue;
+			}
+			busy.clear();
+			scan(start, start + length, false, busy);
+			for (Occurrence occurrence : busy) {
+				if (occurrence.getEvent().getId() != event.getId()) {
+					conflicts.add(occurrence);
+				}
+			}
+		}
+		Collections.sort(conflicts, OCCURRENCE_ORDER);
+		// an occurrence taking up the time of several occurrences of the event
+		// is found once for each of them
+		int count = 0;
+		for (Occurrence occurrence : conflicts) {
+			if (count == 0 || OCCURRENCE_ORDER.compare(conflicts.get(count - 1), occurrence) != 0) {
+				conflicts.set(count++, occurrence);
+			}
+		}
+		conflicts.subList(count, conflicts.size()).clear();
+		return conflicts;
+	}
+
+	/*
+	 * looks for the occurrences overlapping [from, to), those without a duration only if
+	 * instants is true. They are added to occurrences, or when it is null the scan stops
+	 * at the first one. returns true if none was found
+	 */
+	private boolean scan(long from, long to, boolean instants, List<Occurrence> occurrences) {
+		if (from >= to) {
+			return true;
+		}
+		boolean found = false;
+		for (Event.Frequency frequency : Event.Frequency.values()) {
+			for (int durationClass = instants ? 0 : 1; durationClass < DURATION_CLASSES; durationClass++) {
+				int index = frequency.ordinal() * DURATION_CLASSES + durationClass;
+				NavigableSet<Entry> set = sets.get(index);
+				EndingTree endingTree = endingTrees.get(index);
+				if (set.isEmpty() && endingTree.isEmpty()) {
+					continue;
+				}
+				// the earliest start of an occurrence of the class overlapping the window
+				long earliest = subtract(from, getMaxDuration(durationClass) * MINUTE_MILLIS);
+				long[] ranges;
+				if (frequency == Event.Frequency.NONE) {
+					ranges = new long[] { earliest, to - 1 };
+				} else {
+					ranges = getKeyRanges(frequency, earliest, to);
+				}
+				for (int i = 0; i < ranges.length; i += 2) {
+					for (Entry entry : set.subSet(new Entry(ranges[i], Integer.MIN_VALUE), true,
+							new Entry(ranges[i + 1], Integer.MAX_VALUE), true)) {
+						if (addOccurrences(entry.handle, from, to, occurrences)) {
+							if (occurrences == null) {
+								return false;
+							}
+							found = true;
+						}
+					}
+					// only the recurrences that have started by the end of the window
+					// and last until its earliest occurrence start are visited
+					for (EventHandle handle : endingTree.find(ranges[i], ranges[i + 1], earliest, to)) {
+						if (addOccurrences(handle, from, to, occurrences)) {
+							if (occurrences == null) {
+								return false;
+							}
+							found = true;
+						}
+					}
+				}
+			}
+		}
+		return !found;
+	}
+
+	/*
+	 * adds the occurrences of an event overlapping [from, to) to occurrences, if
+	 * it is not null. returns true if there is one
+	 */
+	private static boolean addOccurrences(EventHandle handle, long from, long to, List<Occurrence> occurrences) {
+		long length = handle.getDuration() * MINUTE_MILLIS;
+		boolean found = false;
+		PrimitiveIterator.OfLong starts = RecurrenceExpander.occurrenceStarts(handle.getStartMillis(),
+				handle.getFrequency(), handle.getLastStartMillis(), handle.getExceptionDays(),
+				subtract(from, length), to);
+		while (starts.hasNext()) {
+			long start = starts.nextLong();
+			if (overlaps(start, start + length, from, to)) {
+				if (occurrences == null) {
+					return true;
+				}
+				occurrences.add(new Occurrence(handle.getEvent(), start));
+				found = true;
+			}
+		}
+		return found;
+	}
+
+	/*
+	 * returns true if [start, end) overlaps [from, to). An instant overlaps the
+	 * window it is in
+	 */
+	private static boolean overlaps(long start, long end, long from, long to) {
+		return start < to && (end > from || (start == end && start >= from));
+	}
+
+	/*
+	 * returns the ranges of keys of a recurring frequency at which the events having
+	 * an occurrence starting in [from, to) are, as pairs of first and last keys.
+	 * The ranges are apart from each other, so no event is found twice
+	 */
+	private static long[] getKeyRanges(Event.Frequency frequency, long from, long to) {
+		from = Math.max(from, MIN_MILLIS);
+		to = Math.min(to, MAX_MILLIS);
+		if (from >= to) {
+			return new long[0];
+		}
+		// the local minutes of the first and the last millisecond of the window
+		long first = getLocalMinute(from);
+		long last = getLocalMinute(to - 1);
+		long margin = OFFSET_CHANGE_MINUTES * MINUTE_MILLIS;
+		if (Utility.hasOffsetChange(from - margin, to + margin)) {
+			first -= OFFSET_CHANGE_MINUTES;
+			last += OFFSET_CHANGE_MINUTES;
+		}
+		switch (frequency) {
+		case DAILY:
+			return getPeriodRanges(first, last, DAY_MINUTES);
+		case WEEKLY:
+			return getPeriodRanges(first, last, WEEK_MINUTES);
+		case MONTHLY:
+			if (last - first >= MONTH_MINUTES) {
+				return new long[] { 0, MONTH_MINUTES - 1 };
+			}
+			return getMonthRanges(first, last, false);
+		default:
+			if (last - first >= 366 * DAY_MINUTES) {
+				return new long[] { 0, YEAR_MINUTES - 1 };
+			}
+			return getMonthRanges(first, last, true);
+		}
+	}
+
+	/*
+	 * returns the ranges of the minutes from first to last within a period of
+	 * the given minutes
+	 */
+	private static long[] getPeriodRanges(long first, long last, int period) {
+		if (last - first + 1 >= period) {
+			return new long[] { 0, period - 1 };
+		}
+		long firstKey = Math.floorMod(first, period);
+		long lastKey = Math.floorMod(last, period);
+		if (firstKey <= lastKey) {
+			return new long[] { firstKey, lastKey };
+		}
+		return new long[] { 0, lastKey, firstKey, period - 1 };
+	}
+
+	/*
+	 * returns the ranges of the minutes from first to last within months of 31 days,
+	 * in a year of such months if yearly is true. The days past the end of a short month
+	 * are taken with its last day, which is where the events on them occur
+	 */
+	private static long[] getMonthRanges(long first, long last, boolean yearly) {
+		long[] ranges = new long[8];
+		int count = 0;
+		long minute = first;
+		while (minute <= last) {
+			long day = Math.floorDiv(minute, DAY_MINUTES);
+			int year = Utility.getYear(day);
+			int month = Utility.getMonth(day);
+			int monthLength = Utility.getMonthLength(year, month);
+			long monthStart = Utility.getMonthStartDay(month, year) * DAY_MINUTES;
+			long end = Math.min(last, monthStart + monthLength * DAY_MINUTES - 1);
+			long base = yearly ? month * MONTH_MINUTES : 0;
+			if (count + 2 * (1 + MAX_DAY_OF_MONTH - monthLength) > ranges.length) {
+				long[] grown = new long[ranges.length * 2];
+				System.arraycopy(ranges, 0, grown, 0, count);
+				ranges = grown;
+			}
+			ranges[count++] = base + minute - monthStart;
+			ranges[count++] = base + end - monthStart;
+			long lastDayStart = monthStart + (monthLength - 1) * DAY_MINUTES;
+			if (end >= lastDayStart) {
+				// the same times on the days the month is short of
+				long from = Math.max(minute, lastDayStart) - lastDayStart;
+				long to = end - lastDayStart;
+				for (int later = monthLength; later < MAX_DAY_OF_MONTH; later++) {
+					ranges[count++] = base + later * DAY_MINUTES + from;
+					ranges[count++] = base + later * DAY_MINUTES + to;
+				}
+			}
+			minute = end + 1;
+		}
+		return mergeRanges(ranges, count);
+	}
+
+	/*
+	 * sorts the first count / 2 ranges and joins those overlapping or touching
+	 */
+	private static long[] mergeRanges(long[] ranges, int count) {
+		// insertion sort by first key, there are only a few ranges
+		for (int i = 2; i < count; i += 2) {
+			long rangeFirst = ranges[i];
+			long rangeLast = ranges[i + 1];
+			int j = i - 2;
+			while (j >= 0 && ranges[j] > rangeFirst) {
+				ranges[j + 2] = ranges[j];
+				ranges[j + 3] = ranges[j + 1];
+				j -= 2;
+			}
+			ranges[j + 2] = rangeFirst;
+			ranges[j + 3] = rangeLast;
+		}
+		int merged = 0;
+		for (int i = 0; i < count; i += 2) {
+			if (merged > 0 && ranges[i] <= ranges[merged - 1] + 1) {
+				ranges[merged - 1] = Math.max(ranges[merged - 1], ranges[i + 1]);
+			} else {
+				ranges[merged++] = ranges[i];
+				ranges[merged++] = ranges[i + 1];
+			}
+		}
+		long[] result = new long[merged];
+		System.arraycopy(ranges, 0, result, 0, merged);
+		return result;
+	}
+
+	/*
+	 * returns the key of an event in the set of its frequency
+	 */
+	static long getKey(Event.Frequency frequency, long startMillis) {
+		if (frequency == Event.Frequency.NONE) {
+			return startMillis;
+		}
+		long day = Utility.getEpochDay(startMillis);
+		int minute = Utility.getMinuteOfDay(startMillis);
+		switch (frequency) {
+		case DAILY:
+			return minute;
+		case WEEKLY:
+			return Math.floorMod(day, 7) * DAY_MINUTES + minute;
+		case MONTHLY:
+			return (Utility.getDayOfMonth(day) - 1) * DAY_MINUTES + minute;
+		default:
+			return (Utility.getMonth(day) * MAX_DAY_OF_MONTH + Utility.getDayOfMonth(day) - 1) * DAY_MINUTES
+					+ minute;
+		}
+	}
+
+	/*
+	 * returns the number of local minutes from 1970-01-01 00:00 to an instant
+	 */
+	private static long getLocalMinute(long millis) {
+		return Utility.getEpochDay(millis) * DAY_MINUTES + Utility.getMinuteOfDay(millis);
+	}
+
+	/*
+	 * returns 0 for no duration, otherwise the smallest class whose maximum
+	 * duration is at least the given minutes
+	 */
+	static int getDurationClass(int minutes) {
+		return minutes <= 0 ? 0 : 33 - Integer.numberOfLeadingZeros(minutes - 1);
+	}
+
+	/*
+	 * returns the longest duration in minutes of a class
+	 */
+	static long getMaxDuration(int durationClass) {
+		return durationClass == 0 ? 0 : 1L << (durationClass - 1);
+	}
+
+	private static int getIndex(EventHandle handle) {
+		return handle.getFrequency().ordinal() * DURATION_CLASSES + getDurationClass(handle.getDuration());
+	}
+
+	private static boolean isEnding(EventHandle handle) {
+		return handle.getFrequency() != Event.Frequency.NONE && handle.getLastStartMillis() != Long.MAX_VALUE;
+	}
+
+	/*
+	 * returns millis - length, or Long.MIN_VALUE if that is too small for a long
+	 */
+	private static long subtract(long millis, long length) {
+		return millis < Long.MIN_VALUE + length ? Long.MIN_VALUE : millis - length;
+	}
+
+	/*
+	 * An event in a set, ordered by key and then by event id
+	 */
+	private static class Entry implements Comparable<Entry> {
+		private final long key;
+		private final int id;
+		private final EventHandle handle;
+
+		Entry(long key, EventHandle handle) {
+			this.key = key;
+			this.id = handle.getId();
+			this.handle = handle;
+		}
+
+		// an entry to look up the keys from or to
+		Entry(long key, int id) {
+			this.key = key;
+			this.id = id;
+			this.handle = null;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			int result = Long.compare(key, other.key);
+			return result != 0 ? result : Integer.compare(id, other.id);
+		}
+	}
+
+	/*
+	 * A window of time, from startMillis included to endMillis excluded
+	 */
+	public static class Slot {
+		private final long startMillis;
+		private final long endMillis;
+
+		/**
+		 * @param startMillis
+		 * @param endMillis
+		 */
+		public Slot(long startMillis, long endMillis) {
+			this.startMillis = startMillis;
+			this.endMillis = endMillis;
+		}
+
+		/**
+		 * @return the start of the window in epoch millis
+		 */
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		/**
+		 * @return the end of the window in epoch millis, excluded
+		 */
+		public long getEndMillis() {
+			return endMillis;
+		}
+	}
+}
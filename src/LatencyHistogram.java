@@ -0,0 +1,192 @@
+/**
+ * LatencyHistogram.java
+ * Class to record durations in nanoseconds and report their percentiles, like an HDR
+ * histogram. Durations under 32 ns have a bucket each, longer ones are counted in 16
+ * buckets per power of two, so a reported percentile is at most about 6% above the
+ * real one whatever the scale, in a fixed array of counts.
+ * Recording is lock free, a few atomic increments, so it can be called from any
+ * thread on every operation. A snapshot read while durations are being recorded may
+ * miss the latest ones
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class LatencyHistogram {
+	// durations below 1 << SUB_BUCKET_BITS are counted exactly
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_BUCKETS = SUB_BUCKETS / 2;
+	private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/*
+	 * records the time since startNanos, a value of System.nanoTime
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/*
+	 * records a duration, negative ones are taken as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(getBucket(nanos));
+		totalNanos.add(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	/*
+	 * forgets the recorded durations
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		totalNanos.reset();
+		maxNanos.set(0);
+	}
+
+	/*
+	 * returns the counts and percentiles of the durations recorded so far
+	 */
+	public Snapshot getSnapshot() {
+		long[] bucketCounts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			bucketCounts[i] = counts.get(i);
+			count += bucketCounts[i];
+		}
+		long max = maxNanos.get();
+		return new Snapshot(count, count == 0 ? 0 : totalNanos.sum() / count,
+				getPercentile(bucketCounts, count, 0.5, max), getPercentile(bucketCounts, count, 0.9, max),
+				getPercentile(bucketCounts, count, 0.99, max), getPercentile(bucketCounts, count, 0.999, max), max);
+	}
+
+	/*
+	 * returns the highest duration of the bucket holding the given fraction of the
+	 * durations, but no more than the longest duration recorded
+	 */
+	private static long getPercentile(long[] bucketCounts, long count, double fraction, long max) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += bucketCounts[i];
+			if (seen >= rank) {
+				return Math.min(getBucketEnd(i), max);
+			}
+		}
+		return max;
+	}
+
+	static int getBucket(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+		// the top SUB_BUCKET_BITS bits of the duration, from HALF_BUCKETS to SUB_BUCKETS - 1
+		int top = (int) (nanos >>> shift);
+		return SUB_BUCKETS + (shift - 1) * HALF_BUCKETS + top - HALF_BUCKETS;
+	}
+
+	/*
+	 * returns the highest duration counted in a bucket
+	 */
+	static long getBucketEnd(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / HALF_BUCKETS + 1;
+		long top = (bucket - SUB_BUCKETS) % HALF_BUCKETS + HALF_BUCKETS;
+		long end = ((top + 1) << shift) - 1;
+		// the last bucket ends past Long.MAX_VALUE
+		return end < 0 ? Long.MAX_VALUE : end;
+	}
+
+	/*
+	 * The durations recorded up to a point, in nanoseconds. Read through JMX as
+	 * a composite value, so it only has getters
+	 */
+	public static class Snapshot {
+		private final long count;
+		private final long mean;
+		private final long p50;
+		private final long p90;
+		private final long p99;
+		private final long p999;
+		private final long max;
+
+		Snapshot(long count, long mean, long p50, long p90, long p99, long p999, long max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.p999 = p999;
+			this.max = max;
+		}
+
+		/**
+		 * @return the number of durations recorded
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the mean duration
+		 */
+		public long getMeanNanos() {
+			return mean;
+		}
+
+		/**
+		 * @return the median duration
+		 */
+		public long getP50Nanos() {
+			return p50;
+		}
+
+		/**
+		 * @return the duration 90% of the durations are under
+		 */
+		public long getP90Nanos() {
+			return p90;
+		}
+
+		/**
+		 * @return the duration 99% of the durations are under
+		 */
+		public long getP99Nanos() {
+			return p99;
+		}
+
+		/**
+		 * @return the duration 99.9% of the durations are under
+		 */
+		public long getP999Nanos() {
+			return p999;
+		}
+
+		/**
+		 * @return the longest duration
+		 */
+		public long getMaxNanos() {
+			return max;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/**
+ * NameIndex.java
+ * Class to search the event names by prefix or by any part of the name, ignoring case.
+ * Each distinct name gets a small number, and every name is indexed under the 3
+ * character pieces starting at each of its positions (its trigrams, padded at the end
+ * of the name), each piece keeping the numbers of its names in a PostingList.
+ * A search only checks the names under the rarest trigram of the query instead of
+ * every name. A query shorter than 3 characters checks the names under the trigrams
+ * starting with it. The best matches are ranked: the exact name first, then names
+ * starting with the query, then names with a word starting with it, then the rest,
+ * shorter names before longer ones
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+
+public class NameIndex {
+	private static final int GRAM_LENGTH = 3;
+	// pads the trigrams of the last positions of a name
+	private static final char PADDING = '\0';
+
+	private static final int EXACT = 0;
+	private static final int PREFIX = 1;
+	private static final int WORD_PREFIX = 2;
+	private static final int SUBSTRING = 3;
+
+	// trigram to the numbers of the names containing it
+	private final ConcurrentSkipListMap<String, PostingList> grams = new ConcurrentSkipListMap<String, PostingList>();
+	private final ConcurrentMap<String, Integer> numbers = new ConcurrentHashMap<String, Integer>();
+	// number to name, null for free numbers
+	private String[] names = new String[16];
+	private int nameCount;
+	// numbers of removed names, given out again before new ones
+	private int[] freeNumbers = new int[16];
+	private int freeCount;
+
+	/*
+	 * adds a name, given in lower case like the keys of nameMap.
+	 * The caller holds the EventStore write lock
+	 */
+	public void add(String name) {
+		if (numbers.containsKey(name)) {
+			return;
+		}
+		int number;
+		if (freeCount > 0) {
+			number = freeNumbers[--freeCount];
+		} else {
+			if (nameCount == names.length) {
+				names = Arrays.copyOf(names, nameCount * 2);
+			}
+			number = nameCount++;
+		}
+		names[number] = name;
+		numbers.put(name, number);
+		for (String gram : getGrams(name)) {
+			PostingList list = grams.get(gram);
+			if (list == null) {
+				list = new PostingList();
+				grams.put(gram, list);
+			}
+			list.add(number);
+		}
+	}
+
+	/*
+	 * removes a name added before. The caller holds the EventStore write lock
+	 */
+	public void remove(String name) {
+		Integer number = numbers.remove(name);
+		if (number == null) {
+			return;
+		}
+		for (String gram : getGrams(name)) {
+			PostingList list = grams.get(gram);
+			if (list != null) {
+				list.remove(number);
+				if (list.size() == 0) {
+					grams.remove(gram);
+				}
+			}
+		}
+		names[number] = null;
+		if (freeCount == freeNumbers.length) {
+			freeNumbers = Arrays.copyOf(freeNumbers, freeCount * 2);
+		}
+		freeNumbers[freeCount++] = number;
+	}
+
+	/*
+	 * returns up to limit names containing the query ignoring case, best match first
+	 */
+	public List<String> search(String query, int limit) {
+		final String key = query.toLowerCase();
+		if (key.isEmpty() || limit <= 0) {
+			return Collections.emptyList();
+		}
+
+		// keeps the best matches with the worst of them on top
+		Comparator<String> ranking = new Comparator<String>() {
+			@Override
+			public int compare(String name1, String name2) {
+				int result = Integer.compare(getMatchRank(name1, key), getMatchRank(name2, key));
+				if (result == 0) {
+					result = Integer.compare(name1.length(), name2.length());
+				}
+				return result != 0 ? result : name1.compareTo(name2);
+			}
+		};
+		PriorityQueue<String> best = new PriorityQueue<String>(limit + 1, Collections.reverseOrder(ranking));
+		String[] names = this.names;
+
+		if (key.length() >= GRAM_LENGTH) {
+			// every name containing the query has all its trigrams, so the
+			// smallest list of names holds all the matches
+			PostingList candidates = null;
+			for (int i = 0; i + GRAM_LENGTH <= key.length(); i++) {
+				PostingList list = grams.get(key.substring(i, i + GRAM_LENGTH));
+				if (list == null) {
+					return Collections.emptyList();
+				}
+				if (candidates == null || list.size() < candidates.size()) {
+					candidates = list;
+				}
+			}
+			PostingList.Cursor cursor = candidates.cursor();
+			for (int number = cursor.atLeast(0); number != Integer.MAX_VALUE; number = cursor.atLeast(number + 1)) {
+				addMatch(best, limit, names[number], key);
+			}
+		} else {
+			// a name contains the query where one of its trigrams starts with it
+			BitSet candidates = new BitSet();
+			for (PostingList list : grams.subMap(key, key + Character.MAX_VALUE).values()) {
+				PostingList.Cursor cursor = list.cursor();
+				for (int number = cursor.atLeast(0); number != Integer.MAX_VALUE; number = cursor.atLeast(number + 1)) {
+					candidates.set(number);
+				}
+			}
+			for (int number = candidates.nextSetBit(0); number >= 0; number = candidates.nextSetBit(number + 1)) {
+				addMatch(best, limit, names[number], key);
+			}
+		}
+
+		List<String> result = new ArrayList<String>(best);
+		Collections.sort(result, ranking);
+		return result;
+	}
+
+	private static void addMatch(PriorityQueue<String> best, int limit, String name, String key) {
+		if (name == null || !name.contains(key)) {
+			return;
+		}
+		best.add(name);
+		if (best.size() > limit) {
+			best.poll();
+		}
+	}
+
+	private static int getMatchRank(String name, String key) {
+		if (name.equals(key)) {
+			return EXACT;
+		}
+		if (name.startsWith(key)) {
+			return PREFIX;
+		}
+		for (int index = name.indexOf(key, 1); index > 0; index = name.indexOf(key, index + 1)) {
+			if (!Character.isLetterOrDigit(name.charAt(index - 1))) {
+				return WORD_PREFIX;
+			}
+		}
+		return SUBSTRING;
+	}
+
+	/*
+	 * returns the distinct trigrams starting at each position of a name,
+	 * the ones running past its end are padded
+	 */
+	private static Set<String> getGrams(String name) {
+		Set<String> result = new HashSet<String>();
+		StringBuilder gram = new StringBuilder(GRAM_LENGTH);
+		for (int i = 0; i < name.length(); i++) {
+			gram.setLength(0);
+			gram.append(name, i, Math.min(name.length(), i + GRAM_LENGTH));
+			while (gram.length() < GRAM_LENGTH) {
+				gram.append(PADDING);
+			}
+			result.add(gram.toString());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,148 @@
+/**
+ * NotesIndex.java
+ * Class to find events by the words in their notes.
+ * Notes are split into lower case words, and each word keeps the sorted ids of the
+ * events using it, in a compressed PostingList. An AND search walks the lists
+ * together, letting each one skip ahead to the next id the others can still match.
+ * A query is a list of words that must all be present, and alternatives are
+ * separated by OR, like "dentist monday OR doctor"
+ */
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+public class NotesIndex {
+	private static final int[] NO_IDS = new int[0];
+
+	private final ConcurrentMap<String, PostingList> postings = new ConcurrentHashMap<String, PostingList>();
+
+	/*
+	 * indexes the words of the notes of an event. The caller holds the EventStore write lock
+	 */
+	public void add(int id, String notes) {
+		for (String word : getWords(notes)) {
+			PostingList list = postings.get(word);
+			if (list == null) {
+				list = new PostingList();
+				postings.put(word, list);
+			}
+			list.add(id);
+		}
+	}
+
+	/*
+	 * removes an event indexed with the given notes. The caller holds the EventStore write lock
+	 */
+	public void remove(int id, String notes) {
+		for (String word : getWords(notes)) {
+			PostingList list = postings.get(word);
+			if (list != null) {
+				list.remove(id);
+				if (list.size() == 0) {
+					postings.remove(word);
+				}
+			}
+		}
+	}
+
+	/*
+	 * returns the number of different words in the notes
+	 */
+	public int getWordCount() {
+		return postings.size();
+	}
+
+	/*
+	 * returns the sorted ids of the events whose notes match the query
+	 */
+	public int[] search(String query) {
+		int[] result = NO_IDS;
+		for (String alternative : query.trim().split("\\s+OR\\s+")) {
+			result = union(result, searchAll(getWords(alternative)));
+		}
+		return result;
+	}
+
+	/*
+	 * returns the sorted ids of the events having all the words.
+	 * The cursors take turns jumping to the smallest id all of them can still have
+	 */
+	private int[] searchAll(Set<String> words) {
+		if (words.isEmpty()) {
+			return NO_IDS;
+		}
+		PostingList.Cursor[] cursors = new PostingList.Cursor[words.size()];
+		int i = 0;
+		for (String word : words) {
+			PostingList list = postings.get(word);
+			if (list == null) {
+				return NO_IDS;
+			}
+			cursors[i++] = list.cursor();
+		}
+		// the shortest list goes first, it decides which ids are tried
+		Arrays.sort(cursors);
+
+		int[] result = new int[cursors[0].size];
+		int count = 0;
+		int candidate = cursors[0].atLeast(0);
+		while (candidate != Integer.MAX_VALUE) {
+			int next = candidate;
+			for (i = 1; i < cursors.length && next == candidate; i++) {
+				next = cursors[i].atLeast(candidate);
+			}
+			if (next == candidate) {
+				if (count == result.length) {
+					result = Arrays.copyOf(result, count * 2 + 1);
+				}
+				result[count++] = candidate;
+				next = candidate + 1;
+			}
+			candidate = next == Integer.MAX_VALUE ? next : cursors[0].atLeast(next);
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	private static int[] union(int[] ids1, int[] ids2) {
+		if (ids1.length == 0) {
+			return ids2;
+		}
+		int[] result = new int[ids1.length + ids2.length];
+		int i = 0, j = 0, count = 0;
+		while (i < ids1.length || j < ids2.length) {
+			int id;
+			if (j == ids2.length || i < ids1.length && ids1[i] < ids2[j]) {
+				id = ids1[i++];
+			} else if (i == ids1.length || ids2[j] < ids1[i]) {
+				id = ids2[j++];
+			} else {
+				id = ids1[i++];
+				j++;
+			}
+			result[count++] = id;
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/*
+	 * returns the distinct lower case words of a text
+	 */
+	static Set<String> getWords(String text) {
+		Set<String> words = new LinkedHashSet<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (wordChar && start < 0) {
+				start = i;
+			} else if (!wordChar && start >= 0) {
+				words.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return words;
+	}
+}
@@ -0,0 +1,323 @@
+/**
+ * NotesStore.java
+ * Class to keep the notes of the events in the store outside the Java heap.
+ * Each distinct notes text is written once as UTF-8 into direct byte buffers
+ * (segments) and gets a small id. Events and handles hold the id and the text is
+ * decoded again when it is asked for, so notes of kilobytes cost the heap a few
+ * bytes per distinct text and are never copied or scanned by the garbage collector.
+ * Texts are found by their hash code in a table of id chains, so adding a text that
+ * is already stored only counts a reference to it, like StringDictionary.
+ * Segments are appended to. A segment is dropped once none of its texts are left,
+ * and when more than half of the bytes belong to released texts the live texts are
+ * copied to new segments; ids do not change when texts move.
+ * Texts are added and released under the write lock of a StampedLock, since they
+ * are added outside the EventStore write lock by EventsManager.addAllToMaps, and
+ * read under its read lock, so readers decode texts side by side
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+
+public class NotesStore {
+	public static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+	private static final int NO_ID = -1;
+
+	private final int segmentSize;
+	private final StampedLock lock = new StampedLock();
+	// null for dropped segments, whose slots are used again
+	private ByteBuffer[] segments = new ByteBuffer[4];
+	private int[] segmentLiveBytes = new int[4];
+	// the segment texts are appended to, its position is where the next one goes
+	private int current = NO_ID;
+	private long allocatedBytes;
+	private long liveBytes;
+
+	// by id: the location and length of the text, its hash and references, and the
+	// next id of its hash chain, or of the free ids for free ids
+	private int[] segmentOf = new int[16];
+	private int[] offsets = new int[16];
+	private int[] lengths = new int[16];
+	private int[] hashes = new int[16];
+	private int[] references = new int[16];
+	private int[] next = new int[16];
+	private int idCount;
+	private int freeIds = NO_ID;
+	private int size;
+	// first id of each hash chain
+	private int[] buckets;
+
+	// the UTF-8 bytes of the text being added or moved under the write lock, get
+	// decodes into an array of its own as readers share the read lock
+	private byte[] scratch = new byte[1024];
+
+	public NotesStore() {
+		this(DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param segmentSize bytes of each direct buffer, longer texts get a buffer of their own
+	 */
+	public NotesStore(int segmentSize) {
+		this.segmentSize = segmentSize;
+		buckets = new int[64];
+		Arrays.fill(buckets, NO_ID);
+	}
+
+	/*
+	 * returns the id of a text, storing it if it is not stored yet, and counts a
+	 * reference to it. Every acquire is matched by a release
+	 */
+	public int acquire(String text) {
+		long stamp = lock.writeLock();
+		try {
+			return add(text);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/*
+	 * removes a reference to a text, dropping it with the last one
+	 */
+	public void release(int id) {
+		long stamp = lock.writeLock();
+		try {
+			remove(id);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/*
+	 * returns the text of an id, or an empty text if it has been released
+	 */
+	public String get(int id) {
+		long stamp = lock.readLock();
+		try {
+			if (id < 0 || id >= idCount || references[id] == 0 || lengths[id] == 0) {
+				return "";
+			}
+			byte[] bytes = new byte[lengths[id]];
+			ByteBuffer buffer = segments[segmentOf[id]].duplicate();
+			buffer.position(offsets[id]);
+			buffer.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * returns the number of distinct texts
+	 */
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return size;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * returns the bytes of the texts stored
+	 */
+	public long getLiveBytes() {
+		long stamp = lock.readLock();
+		try {
+			return liveBytes;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * returns the bytes of the buffers, including the space of released texts
+	 */
+	public long getAllocatedBytes() {
+		long stamp = lock.readLock();
+		try {
+			return allocatedBytes;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private int add(String text) {
+		int hash = text.hashCode();
+		int length = EventCodec.getUtf8Length(text);
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		EventCodec.putUtf8(text, scratch, 0);
+		for (int id = buckets[hash & (buckets.length - 1)]; id != NO_ID; id = next[id]) {
+			if (hashes[id] == hash && lengths[id] == length && hasBytes(id, scratch, length)) {
+				references[id]++;
+				return id;
+			}
+		}
+
+		int id = newId();
+		lengths[id] = length;
+		hashes[id] = hash;
+		references[id] = 1;
+		if (length == 0) {
+			// empty notes take no space in any segment
+			segmentOf[id] = NO_ID;
+		} else {
+			int segment = reserve(length);
+			ByteBuffer buffer = segments[segment];
+			segmentOf[id] = segment;
+			offsets[id] = buffer.position();
+			buffer.put(scratch, 0, length);
+			segmentLiveBytes[segment] += length;
+			liveBytes += length;
+		}
+
+		int bucket = hash & (buckets.length - 1);
+		next[id] = buckets[bucket];
+		buckets[bucket] = id;
+		if (++size > buckets.length * 3 / 4) {
+			rehash(buckets.length * 2);
+		}
+		return id;
+	}
+
+	private void remove(int id) {
+		if (--references[id] > 0) {
+			return;
+		}
+		int bucket = hashes[id] & (buckets.length - 1);
+		if (buckets[bucket] == id) {
+			buckets[bucket] = next[id];
+		} else {
+			int previous = buckets[bucket];
+			while (next[previous] != id) {
+				previous = next[previous];
+			}
+			next[previous] = next[id];
+		}
+		next[id] = freeIds;
+		freeIds = id;
+		size--;
+
+		int segment = segmentOf[id];
+		if (segment == NO_ID) {
+			return;
+		}
+		segmentLiveBytes[segment] -= lengths[id];
+		liveBytes -= lengths[id];
+		if (segmentLiveBytes[segment] == 0 && segment != current) {
+			allocatedBytes -= segments[segment].capacity();
+			segments[segment] = null;
+		}
+		if (allocatedBytes - liveBytes > Math.max(liveBytes, segmentSize)) {
+			compact();
+		}
+	}
+
+	private int newId() {
+		if (freeIds != NO_ID) {
+			int id = freeIds;
+			freeIds = next[id];
+			return id;
+		}
+		if (idCount == segmentOf.length) {
+			int capacity = idCount * 2;
+			segmentOf = Arrays.copyOf(segmentOf, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			hashes = Arrays.copyOf(hashes, capacity);
+			references = Arrays.copyOf(references, capacity);
+			next = Arrays.copyOf(next, capacity);
+		}
+		return idCount++;
+	}
+
+	/*
+	 * returns a segment with room for length more bytes at its position
+	 */
+	private int reserve(int length) {
+		if (current != NO_ID && segments[current].remaining() >= length) {
+			return current;
+		}
+		if (current != NO_ID && segmentLiveBytes[current] == 0) {
+			allocatedBytes -= segments[current].capacity();
+			segments[current] = null;
+		}
+		current = newSegment(Math.max(segmentSize, length));
+		return current;
+	}
+
+	private int newSegment(int capacity) {
+		int segment = 0;
+		while (segment < segments.length && segments[segment] != null) {
+			segment++;
+		}
+		if (segment == segments.length) {
+			segments = Arrays.copyOf(segments, segments.length * 2);
+			segmentLiveBytes = Arrays.copyOf(segmentLiveBytes, segments.length);
+		}
+		segments[segment] = ByteBuffer.allocateDirect(capacity);
+		segmentLiveBytes[segment] = 0;
+		allocatedBytes += capacity;
+		return segment;
+	}
+
+	private boolean hasBytes(int id, byte[] bytes, int length) {
+		if (length == 0) {
+			return true;
+		}
+		ByteBuffer buffer = segments[segmentOf[id]];
+		int offset = offsets[id];
+		for (int i = 0; i < length; i++) {
+			if (buffer.get(offset + i) != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehash(int capacity) {
+		buckets = new int[capacity];
+		Arrays.fill(buckets, NO_ID);
+		for (int id = 0; id < idCount; id++) {
+			if (references[id] > 0) {
+				int bucket = hashes[id] & (capacity - 1);
+				next[id] = buckets[bucket];
+				buckets[bucket] = id;
+			}
+		}
+	}
+
+	/*
+	 * copies the live texts to new segments in id order and drops the old ones
+	 */
+	private void compact() {
+		ByteBuffer[] oldSegments = segments;
+		segments = new ByteBuffer[4];
+		segmentLiveBytes = new int[4];
+		current = NO_ID;
+		allocatedBytes = 0;
+		for (int id = 0; id < idCount; id++) {
+			if (references[id] == 0 || lengths[id] == 0) {
+				continue;
+			}
+			int length = lengths[id];
+			if (scratch.length < length) {
+				scratch = new byte[length];
+			}
+			ByteBuffer from = oldSegments[segmentOf[id]].duplicate();
+			from.position(offsets[id]);
+			from.get(scratch, 0, length);
+			int segment = reserve(length);
+			segmentOf[id] = segment;
+			offsets[id] = segments[segment].position();
+			segments[segment].put(scratch, 0, length);
+			segmentLiveBytes[segment] += length;
+		}
+	}
+}
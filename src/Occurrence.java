@@ -0,0 +1,50 @@
+/**
+ * Occurrence.java
+ * Class to hold a single concrete occurrence of an event.
+ * A recurring event has one occurrence per period, a non-recurring event has exactly one
+ */
+
+import java.util.Date;
+
+
+public class Occurrence {
+	private final Event event;
+	private final long startMillis;
+
+	/**
+	 * @param event
+	 * @param startMillis
+	 */
+	public Occurrence(Event event, long startMillis) {
+		this.event = event;
+		this.startMillis = startMillis;
+	}
+
+	/**
+	 * @return the event this is an occurrence of
+	 */
+	public Event getEvent() {
+		return event;
+	}
+
+	/**
+	 * @return the start of the occurrence in epoch millis
+	 */
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * @return the end of the occurrence in epoch millis, the start if the event has no duration
+	 */
+	public long getEndMillis() {
+		return startMillis + event.getDuration() * 60000L;
+	}
+
+	/**
+	 * @return the start of the occurrence as a date
+	 */
+	public Date getDate() {
+		return new Date(startMillis);
+	}
+}
@@ -0,0 +1,263 @@
+/**
+ * PostingList.java
+ * Class to hold a sorted set of ids, such as the events using a word.
+ * The ids are split in blocks of up to MAX_BLOCK_SIZE ids. A block keeps its first id
+ * and the gaps to the following ones as variable length numbers, so a block of close
+ * ids takes about a byte per id. The first ids of the blocks are kept in an array, so
+ * a cursor can jump over the blocks it does not need, and adding or removing an id
+ * only rewrites its own block. Ids bigger than all the others, the usual case since
+ * ids are given out in increasing order, are appended to the last block
+ */
+
+import java.util.Arrays;
+
+
+public class PostingList {
+	private static final int MAX_BLOCK_SIZE = 256;
+
+	private byte[][] blocks = new byte[1][];
+	private int[] blockFirst = new int[1];
+	private int[] blockCount = new int[1];
+	private int[] blockLength = new int[1];
+	private int blockTotal;
+	private int size;
+	private int lastId = -1;
+
+	public int size() {
+		return size;
+	}
+
+	public void add(int id) {
+		if (id > lastId) {
+			if (blockTotal == 0 || blockCount[blockTotal - 1] == MAX_BLOCK_SIZE) {
+				insertBlock(blockTotal, id, new byte[8], 1, 0);
+			} else {
+				int block = blockTotal - 1;
+				blocks[block] = ensureCapacity(blocks[block], blockLength[block]);
+				blockLength[block] = writeGap(blocks[block], blockLength[block], id - lastId);
+				blockCount[block]++;
+			}
+			lastId = id;
+			size++;
+			return;
+		}
+		int block = Math.max(0, findBlock(id));
+		int[] ids = decodeBlock(block);
+		int index = Arrays.binarySearch(ids, id);
+		if (index >= 0) {
+			return;
+		}
+		index = -index - 1;
+		int[] newIds = new int[ids.length + 1];
+		System.arraycopy(ids, 0, newIds, 0, index);
+		newIds[index] = id;
+		System.arraycopy(ids, index, newIds, index + 1, ids.length - index);
+		if (newIds.length > MAX_BLOCK_SIZE) {
+			int half = newIds.length / 2;
+			encodeBlock(block, newIds, 0, half);
+			int[] rest = Arrays.copyOfRange(newIds, half, newIds.length);
+			insertBlock(block + 1, rest[0], new byte[8], 1, 0);
+			encodeBlock(block + 1, rest, 0, rest.length);
+		} else {
+			encodeBlock(block, newIds, 0, newIds.length);
+		}
+		size++;
+	}
+
+	public void remove(int id) {
+		int block = findBlock(id);
+		if (block < 0) {
+			return;
+		}
+		int[] ids = decodeBlock(block);
+		int index = Arrays.binarySearch(ids, id);
+		if (index < 0) {
+			return;
+		}
+		size--;
+		if (ids.length == 1) {
+			deleteBlock(block);
+		} else {
+			int[] newIds = new int[ids.length - 1];
+			System.arraycopy(ids, 0, newIds, 0, index);
+			System.arraycopy(ids, index + 1, newIds, index, newIds.length - index);
+			encodeBlock(block, newIds, 0, newIds.length);
+		}
+		if (id == lastId) {
+			lastId = blockTotal == 0 ? -1 : decodeBlock(blockTotal - 1)[blockCount[blockTotal - 1] - 1];
+		}
+	}
+
+	public Cursor cursor() {
+		return new Cursor(this);
+	}
+
+	/*
+	 * returns the last block whose first id is not bigger than the id, -1 if none
+	 */
+	private int findBlock(int id) {
+		int block = Arrays.binarySearch(blockFirst, 0, blockTotal, id);
+		return block >= 0 ? block : -block - 2;
+	}
+
+	private int[] decodeBlock(int block) {
+		int[] ids = new int[blockCount[block]];
+		byte[] data = blocks[block];
+		int position = 0;
+		int value = blockFirst[block];
+		ids[0] = value;
+		for (int i = 1; i < ids.length; i++) {
+			int b = data[position++];
+			int gap = b & 0x7f;
+			for (int shift = 7; b < 0; shift += 7) {
+				b = data[position++];
+				gap |= (b & 0x7f) << shift;
+			}
+			value += gap;
+			ids[i] = value;
+		}
+		return ids;
+	}
+
+	/*
+	 * replaces the contents of a block with ids[from, to), which must not be empty
+	 */
+	private void encodeBlock(int block, int[] ids, int from, int to) {
+		byte[] data = new byte[Math.max(8, (to - from) * 2)];
+		int length = 0;
+		for (int i = from + 1; i < to; i++) {
+			data = ensureCapacity(data, length);
+			length = writeGap(data, length, ids[i] - ids[i - 1]);
+		}
+		blocks[block] = data;
+		blockFirst[block] = ids[from];
+		blockCount[block] = to - from;
+		blockLength[block] = length;
+	}
+
+	/*
+	 * returns an array with room for one more gap after length bytes
+	 */
+	private static byte[] ensureCapacity(byte[] data, int length) {
+		return length + 5 > data.length ? Arrays.copyOf(data, data.length * 2) : data;
+	}
+
+	/*
+	 * writes a gap at the given offset, returns the offset following it
+	 */
+	private static int writeGap(byte[] data, int length, int gap) {
+		while ((gap & ~0x7f) != 0) {
+			data[length++] = (byte) (gap | 0x80);
+			gap >>>= 7;
+		}
+		data[length++] = (byte) gap;
+		return length;
+	}
+
+	private void insertBlock(int block, int first, byte[] data, int count, int length) {
+		if (blockTotal == blocks.length) {
+			int capacity = blockTotal * 2;
+			blocks = Arrays.copyOf(blocks, capacity);
+			blockFirst = Arrays.copyOf(blockFirst, capacity);
+			blockCount = Arrays.copyOf(blockCount, capacity);
+			blockLength = Arrays.copyOf(blockLength, capacity);
+		}
+		int moved = blockTotal - block;
+		System.arraycopy(blocks, block, blocks, block + 1, moved);
+		System.arraycopy(blockFirst, block, blockFirst, block + 1, moved);
+		System.arraycopy(blockCount, block, blockCount, block + 1, moved);
+		System.arraycopy(blockLength, block, blockLength, block + 1, moved);
+		blocks[block] = data;
+		blockFirst[block] = first;
+		blockCount[block] = count;
+		blockLength[block] = length;
+		blockTotal++;
+	}
+
+	private void deleteBlock(int block) {
+		int moved = blockTotal - block - 1;
+		System.arraycopy(blocks, block + 1, blocks, block, moved);
+		System.arraycopy(blockFirst, block + 1, blockFirst, block, moved);
+		System.arraycopy(blockCount, block + 1, blockCount, block, moved);
+		System.arraycopy(blockLength, block + 1, blockLength, block, moved);
+		blockTotal--;
+		blocks[blockTotal] = null;
+	}
+
+	/*
+	 * Walks the ids of a list in increasing order
+	 */
+	public static class Cursor implements Comparable<Cursor> {
+		// copied from the list so the cursor only works with what it saw at the start
+		private final byte[][] blocks;
+		private final int[] blockFirst;
+		private final int[] blockCount;
+		private final int blockTotal;
+		public final int size;
+
+		private int block = -1;
+		// index of the current id in its block, and the offset of the gap after it
+		private int index;
+		private int position;
+		private int current = -1;
+
+		Cursor(PostingList list) {
+			this.blocks = list.blocks;
+			this.blockFirst = list.blockFirst;
+			this.blockCount = list.blockCount;
+			this.blockTotal = list.blockTotal;
+			this.size = list.size;
+		}
+
+		/*
+		 * returns the smallest id in the list that is at least target,
+		 * Integer.MAX_VALUE if there is none. target must not decrease between calls
+		 */
+		public int atLeast(int target) {
+			if (current >= target) {
+				return current;
+			}
+			// jump to the last block starting at or before the target, if it is ahead
+			if (block + 1 < blockTotal && blockFirst[block + 1] <= target) {
+				int next = Arrays.binarySearch(blockFirst, block + 1, blockTotal, target);
+				block = next >= 0 ? next : -next - 2;
+				index = 0;
+				position = 0;
+				current = blockFirst[block];
+			}
+			// decode with locals, this loop is where searches spend their time
+			int value = current;
+			int valueIndex = index;
+			int valuePosition = position;
+			while (value < target) {
+				if (block < 0 || valueIndex + 1 >= blockCount[block]) {
+					// the rest of this block is before the target, so the answer
+					// is the first id of the next block
+					block++;
+					valueIndex = 0;
+					valuePosition = 0;
+					value = block < blockTotal ? blockFirst[block] : Integer.MAX_VALUE;
+					continue;
+				}
+				byte[] data = blocks[block];
+				int b = data[valuePosition++];
+				int gap = b & 0x7f;
+				for (int shift = 7; b < 0; shift += 7) {
+					b = data[valuePosition++];
+					gap |= (b & 0x7f) << shift;
+				}
+				value += gap;
+				valueIndex++;
+			}
+			current = value;
+			index = valueIndex;
+			position = valuePosition;
+			return value;
+		}
+
+		@Override
+		public int compareTo(Cursor other) {
+			return Integer.compare(size, other.size);
+		}
+	}
+}
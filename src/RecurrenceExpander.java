@@ -0,0 +1,261 @@
+/**
+ * RecurrenceExpander.java
+ * Class to compute the concrete occurrences of an event inside a time window.
+ * The first occurrence in the window is found arithmetically from the event start,
+ * the following ones are generated lazily one period at a time.
+ * A recurrence may end, at its last start worked out by getLastStart from an UNTIL
+ * instant or a COUNT of occurrences, and may leave out the occurrences on some local
+ * days. The first occurrence is the event start whatever the UNTIL instant is
+ */
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+
+public class RecurrenceExpander {
+	// occurrences a COUNT may ask for, and the instant, the start of the year 10000,
+	// from which an UNTIL is taken as no end, so the last occurrence is computed
+	// without overflow and DayCounts does not count over millions of days
+	public static final int MAX_COUNT = 100000;
+	public static final long MAX_UNTIL = 253402300800000L;
+	static final long[] NO_DAYS = new long[0];
+
+	/*
+	 * returns the occurrences of an event starting in [from, to) in time order.
+	 * Occurrences are computed as the event start plus a whole number of periods,
+	 * so a monthly event on the 31st falls on the last day of shorter months
+	 */
+	public static Iterable<Occurrence> occurrences(final Event event, final long from, final long to) {
+		return new Iterable<Occurrence>() {
+			@Override
+			public Iterator<Occurrence> iterator() {
+				final StartIterator starts = new StartIterator(event.getDate().getTime(),
+						event.getFrequency(), event.getLastStartMillis(), event.getExceptionDays(), from, to);
+				return new Iterator<Occurrence>() {
+					@Override
+					public boolean hasNext() {
+						return starts.hasNext();
+					}
+
+					@Override
+					public Occurrence next() {
+						return new Occurrence(event, starts.nextLong());
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/*
+	 * returns the start millis of the occurrences in [from, to) of a recurrence ending
+	 * at lastStart, Long.MAX_VALUE for none, leaving out the ones on the sorted local
+	 * exceptionDays
+	 */
+	public static PrimitiveIterator.OfLong occurrenceStarts(long eventStart, Event.Frequency frequency,
+			long lastStart, long[] exceptionDays, long from, long to) {
+		return new StartIterator(eventStart, frequency, lastStart, exceptionDays, from, to);
+	}
+
+	/*
+	 * returns true if the event has at least one occurrence in [from, to)
+	 */
+	public static boolean occursBetween(Event event, long from, long to) {
+		return new StartIterator(event.getDate().getTime(), event.getFrequency(), event.getLastStartMillis(),
+				event.getExceptionDays(), from, to).hasNext();
+	}
+
+	/*
+	 * returns the start of the last occurrence of an event starting at eventStart: the
+	 * last one at or before until and at most count occurrences from the start.
+	 * Long.MAX_VALUE and 0 stand for no until and no count, and a recurrence with
+	 * neither has no last occurrence, Long.MAX_VALUE is returned
+	 */
+	public static long getLastStart(long eventStart, Event.Frequency frequency, long until, int count) {
+		if (frequency == Event.Frequency.NONE) {
+			return eventStart;
+		}
+		if (until >= MAX_UNTIL && count <= 0) {
+			return Long.MAX_VALUE;
+		}
+		long startDay = Utility.getEpochDay(eventStart);
+		int millisOfDay = Utility.getMillisOfDay(eventStart);
+		long lastStart = Long.MAX_VALUE;
+		if (count > 0) {
+			lastStart = getOccurrenceStart(eventStart, startDay, millisOfDay, frequency, Math.min(count, MAX_COUNT) - 1);
+		}
+		if (until < MAX_UNTIL && until < lastStart) {
+			// the period holding until, or the one before if its occurrence is later
+			long index = until <= eventStart ? 0
+					: Math.max(0, getPeriodsBefore(startDay, frequency, Utility.getEpochDay(until)));
+			long start = getOccurrenceStart(eventStart, startDay, millisOfDay, frequency, index);
+			while (start > until && index > 0) {
+				start = getOccurrenceStart(eventStart, startDay, millisOfDay, frequency, --index);
+			}
+			lastStart = start;
+		}
+		return lastStart;
+	}
+
+	/*
+	 * returns true if an event starting on the local day startDay has an occurrence
+	 * on the given day, ignoring where the recurrence ends
+	 */
+	public static boolean isOccurrenceDay(long startDay, Event.Frequency frequency, long day) {
+		if (day < startDay || frequency == Event.Frequency.NONE) {
+			return day == startDay;
+		}
+		return getOccurrenceDay(startDay, frequency, getPeriodsBefore(startDay, frequency, day)) == day;
+	}
+
+	/*
+	 * returns the local day of the occurrence index periods after the one on startDay.
+	 * Monthly and yearly occurrences keep the day of the month of the start, or take
+	 * the last day of shorter months, the same as Calendar.add
+	 */
+	static long getOccurrenceDay(long startDay, Event.Frequency frequency, long index) {
+		switch(frequency) {
+		case DAILY:
+			return startDay + index;
+		case WEEKLY:
+			return startDay + 7L * index;
+		case MONTHLY:
+		case YEARLY:
+			long months = Utility.getMonth(startDay) + (frequency == Event.Frequency.MONTHLY ? index : 12L * index);
+			int year = (int) (Utility.getYear(startDay) + Math.floorDiv(months, 12));
+			int month = Math.floorMod(months, 12);
+			int day = Math.min(Utility.getDayOfMonth(startDay), Utility.getMonthLength(year, month));
+			return Utility.getEpochDay(year, month, day);
+		default:
+			return startDay;
+		}
+	}
+
+	/*
+	 * returns the number of whole periods between startDay and the day, or the month
+	 * for monthly and yearly events, containing the given local day.
+	 * Counted in longs, the days between far apart instants do not fit in an int
+	 */
+	static long getPeriodsBefore(long startDay, Event.Frequency frequency, long day) {
+		switch(frequency) {
+		case DAILY:
+			return day - startDay;
+		case WEEKLY:
+			return (day - startDay) / 7;
+		case MONTHLY:
+			return ((long) Utility.getYear(day) - Utility.getYear(startDay)) * 12
+					+ Utility.getMonth(day) - Utility.getMonth(startDay);
+		case YEARLY:
+			return (long) Utility.getYear(day) - Utility.getYear(startDay);
+		default:
+			return 0;
+		}
+	}
+
+	private static long getOccurrenceStart(long eventStart, long startDay, int millisOfDay,
+			Event.Frequency frequency, long index) {
+		if (index == 0) {
+			return eventStart;
+		}
+		return Utility.getMillis(getOccurrenceDay(startDay, frequency, index), millisOfDay);
+	}
+
+	/*
+	 * Walks the occurrence starts of one event inside a window.
+	 * Occurrences are computed on local days and turned into instants at the
+	 * time of day of the event start. The window ends after the last start, so an
+	 * ended recurrence is done without computing any occurrence, and at MAX_UNTIL, so
+	 * a window reaching far into the future does not step through millions of years
+	 */
+	private static class StartIterator implements PrimitiveIterator.OfLong {
+		private final Event.Frequency frequency;
+		private final long to;
+		private final long[] exceptionDays;
+		private final long eventStart;
+		private final long startDay;
+		private final int millisOfDay;
+		// index of the next occurrence, counted in periods from the event start
+		private long periodIndex;
+		private long nextStart;
+
+		StartIterator(long eventStart, Event.Frequency frequency, long lastStart, long[] exceptionDays,
+				long from, long to) {
+			this.frequency = frequency;
+			long end = lastStart < to ? lastStart + 1 : to;
+			this.to = frequency == Event.Frequency.NONE ? end : Math.min(end, MAX_UNTIL);
+			this.exceptionDays = exceptionDays;
+			this.eventStart = eventStart;
+			this.startDay = Utility.getEpochDay(eventStart);
+			this.millisOfDay = Utility.getMillisOfDay(eventStart);
+
+			periodIndex = 0;
+			if (frequency == Event.Frequency.NONE) {
+				nextStart = eventStart >= from ? eventStart : Long.MAX_VALUE;
+			} else if (from >= this.to) {
+				nextStart = Long.MAX_VALUE;
+			} else if (eventStart >= from) {
+				nextStart = eventStart;
+			} else {
+				// jump to the period that contains the window start, then step
+				// forward past any occurrence earlier on that same day or month
+				periodIndex = getPeriodsBefore(startDay, frequency, Utility.getEpochDay(from));
+				nextStart = getOccurrenceStart(periodIndex);
+				while (nextStart < from) {
+					periodIndex++;
+					nextStart = getOccurrenceStart(periodIndex);
+				}
+			}
+			skipExceptions();
+		}
+
+		private long getOccurrenceStart(long index) {
+			return RecurrenceExpander.getOccurrenceStart(eventStart, startDay, millisOfDay, frequency, index);
+		}
+
+		/*
+		 * moves past the occurrences on exception days
+		 */
+		private void skipExceptions() {
+			if (exceptionDays.length == 0 || frequency == Event.Frequency.NONE) {
+				return;
+			}
+			while (nextStart < to && Arrays.binarySearch(exceptionDays,
+					getOccurrenceDay(startDay, frequency, periodIndex)) >= 0) {
+				periodIndex++;
+				nextStart = getOccurrenceStart(periodIndex);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return nextStart < to;
+		}
+
+		@Override
+		public long nextLong() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			long start = nextStart;
+			if (frequency == Event.Frequency.NONE) {
+				nextStart = Long.MAX_VALUE;
+			} else {
+				periodIndex++;
+				nextStart = getOccurrenceStart(periodIndex);
+				skipExceptions();
+			}
+			return start;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/**
+ * ReminderScheduler.java
+ * Class to fire the reminders of the events.
+ * Each event has at most one pending reminder, for its next occurrence, kept in a
+ * hierarchical timing wheel: a few rings of slots where each ring covers 64 times the
+ * span of the ring below it. Scheduling and cancelling a reminder is O(1), and a
+ * single thread advances the wheel one tick at a time, moving reminders down to the
+ * finer rings as their time gets closer and firing the ones that are due.
+ * After a reminder of a recurring event fires, the reminder of its next occurrence
+ * is scheduled
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+
+
+public class ReminderScheduler {
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	// with one second ticks 5 rings cover about 34 years
+	private static final int LEVELS = 5;
+	public static final long DEFAULT_TICK_MILLIS = 1000;
+
+	/*
+	 * Receives the reminders when they are due
+	 */
+	public static interface Sink {
+		void remind(Occurrence occurrence);
+	}
+
+	private final Sink sink;
+	private final long tickMillis;
+	// wheel[level][slot] is the first reminder of a doubly linked list
+	private final Reminder[][] wheel = new Reminder[LEVELS][SLOTS];
+	private final Map<Integer, Reminder> reminders = new HashMap<Integer, Reminder>();
+	// every reminder due at or before this tick has been fired
+	private long currentTick;
+	private Thread tickThread;
+
+	/**
+	 * @param sink receives the reminders
+	 * @param tickMillis length of a tick, reminders fire at most this late
+	 * @param nowMillis the current time, reminders due before it are not fired
+	 */
+	public ReminderScheduler(Sink sink, long tickMillis, long nowMillis) {
+		this.sink = sink;
+		this.tickMillis = tickMillis;
+		this.currentTick = nowMillis / tickMillis;
+	}
+
+	/*
+	 * starts the thread that advances the wheel with the clock
+	 */
+	public synchronized void start() {
+		if (tickThread != null) {
+			return;
+		}
+		tickThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				tickLoop();
+			}
+		}, "event-reminders");
+		tickThread.setDaemon(true);
+		tickThread.start();
+	}
+
+	/*
+	 * stops the ticking thread, pending reminders are kept
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			thread = tickThread;
+			tickThread = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private void tickLoop() {
+		while (!Thread.currentThread().isInterrupted()) {
+			long now = System.currentTimeMillis();
+			advanceTo(now);
+			try {
+				Thread.sleep(tickMillis - now % tickMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * schedules the reminder of the first occurrence of an event whose reminder is due
+	 * at or after the current tick, replacing the reminder it had. Events with no
+	 * reminder, 0 minutes, get none.
+	 * Called when an event is added or updated, while holding the EventStore write lock
+	 */
+	public synchronized void schedule(Event event) {
+		cancel(event);
+		if (event.getReminder() <= 0) {
+			return;
+		}
+		Reminder reminder = new Reminder(event);
+		if (reminder.moveToDueFrom(currentTick * tickMillis, tickMillis)) {
+			reminders.put(event.getId(), reminder);
+			insert(reminder, currentTick + 1);
+		}
+	}
+
+	/*
+	 * removes the pending reminder of an event
+	 */
+	public synchronized void cancel(Event event) {
+		Reminder reminder = reminders.remove(event.getId());
+		if (reminder != null) {
+			unlink(reminder);
+		}
+	}
+
+	/**
+	 * @return the number of pending reminders
+	 */
+	public synchronized int size() {
+		return reminders.size();
+	}
+
+	/*
+	 * fires every reminder due up to the given time.
+	 * The sink is called without holding the scheduler lock, so it may add,
+	 * update or delete events
+	 */
+	public void advanceTo(long nowMillis) {
+		long targetTick = nowMillis / tickMillis;
+		List<Reminder> due = new ArrayList<Reminder>();
+		while (true) {
+			synchronized (this) {
+				if (currentTick >= targetTick) {
+					break;
+				}
+				// fire in batches so a long catch up does not hold the lock throughout
+				long batchEnd = Math.min(targetTick, currentTick + SLOTS);
+				while (currentTick < batchEnd) {
+					tick(due);
+				}
+			}
+			fire(due);
+			due.clear();
+		}
+	}
+
+	/*
+	 * moves the wheel forward one tick and collects the reminders it makes due
+	 */
+	private void tick(List<Reminder> due) {
+		currentTick++;
+		// when a ring's slot is done, the next slot of the ring above is spread
+		// over the rings below it. Higher rings go first so their reminders can
+		// be spread again in the same tick
+		int level = 1;
+		while (level < LEVELS && (currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+			level++;
+		}
+		for (level = level - 1; level >= 1; level--) {
+			int slot = (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK;
+			Reminder reminder = wheel[level][slot];
+			wheel[level][slot] = null;
+			while (reminder != null) {
+				Reminder next = reminder.next;
+				reminder.previous = null;
+				reminder.next = null;
+				insert(reminder, currentTick);
+				reminder = next;
+			}
+		}
+
+		int slot = (int) currentTick & SLOT_MASK;
+		Reminder reminder = wheel[0][slot];
+		wheel[0][slot] = null;
+		while (reminder != null) {
+			Reminder next = reminder.next;
+			reminder.previous = null;
+			reminder.next = null;
+			reminder.slotLevel = -1;
+			due.add(reminder);
+			reminder = next;
+		}
+	}
+
+	private void fire(List<Reminder> due) {
+		for (Reminder reminder : due) {
+			try {
+				sink.remind(new Occurrence(reminder.event, reminder.occurrenceStart));
+			} catch (RuntimeException e) {
+				System.out.println("Could not deliver the reminder of " + reminder.event.getName()
+						+ ": " + e.getMessage());
+			}
+			synchronized (this) {
+				// an update or delete while the reminder was being fired has
+				// already replaced it
+				if (reminders.get(reminder.event.getId()) != reminder) {
+					continue;
+				}
+				if (reminder.moveToDueFrom(reminder.occurrenceStart - reminder.reminderMillis + 1, tickMillis)) {
+					insert(reminder, currentTick + 1);
+				} else {
+					reminders.remove(reminder.event.getId());
+				}
+			}
+		}
+	}
+
+	/*
+	 * puts a reminder in the slot of the finest ring whose span reaches its tick.
+	 * A reminder due before earliestTick is put in earliestTick, which is the current
+	 * tick while spreading a slot and the next tick otherwise
+	 */
+	private void insert(Reminder reminder, long earliestTick) {
+		long tick = Math.max(reminder.dueTick, earliestTick);
+		// a slot of a ring is spread when the clock reaches it, so a reminder can go in
+		// a ring if its slot comes up less than one turn of the ring from now
+		int level = 0;
+		while (level < LEVELS - 1
+				&& (tick >>> (SLOT_BITS * level)) - (currentTick >>> (SLOT_BITS * level)) >= SLOTS) {
+			level++;
+		}
+		long slotIndex = tick >>> (SLOT_BITS * level);
+		long currentIndex = currentTick >>> (SLOT_BITS * level);
+		if (slotIndex - currentIndex >= SLOTS) {
+			// beyond the top ring, park it in the slot that comes up last. It is
+			// put back in the wheel from there
+			slotIndex = currentIndex + SLOTS - 1;
+		}
+		int slot = (int) slotIndex & SLOT_MASK;
+		Reminder head = wheel[level][slot];
+		reminder.previous = null;
+		reminder.next = head;
+		if (head != null) {
+			head.previous = reminder;
+		}
+		wheel[level][slot] = reminder;
+		reminder.slotLevel = level;
+		reminder.slot = slot;
+	}
+
+	private void unlink(Reminder reminder) {
+		if (reminder.slotLevel < 0) {
+			// already taken out of the wheel to be fired
+			return;
+		}
+		if (reminder.previous != null) {
+			reminder.previous.next = reminder.next;
+		} else {
+			wheel[reminder.slotLevel][reminder.slot] = reminder.next;
+		}
+		if (reminder.next != null) {
+			reminder.next.previous = reminder.previous;
+		}
+		reminder.previous = null;
+		reminder.next = null;
+		reminder.slotLevel = -1;
+	}
+
+	/*
+	 * The pending reminder of one event. The event start, frequency, end of recurrence,
+	 * skipped days and reminder are copied when it is scheduled, an update to the event
+	 * schedules a new one
+	 */
+	private static class Reminder {
+		final Event event;
+		final long eventStart;
+		final Event.Frequency frequency;
+		final long lastStart;
+		final long[] exceptionDays;
+		final long reminderMillis;
+		long occurrenceStart;
+		long dueTick;
+		Reminder previous;
+		Reminder next;
+		int slotLevel = -1;
+		int slot;
+
+		Reminder(Event event) {
+			this.event = event;
+			this.eventStart = event.getDate().getTime();
+			this.frequency = event.getFrequency();
+			this.lastStart = event.getLastStartMillis();
+			this.exceptionDays = event.getExceptionDays();
+			this.reminderMillis = event.getReminder() * 60000L;
+		}
+
+		/*
+		 * moves to the first occurrence whose reminder is due at or after the given
+		 * time, so the occurrences whose reminder time has passed are skipped even
+		 * if they have not started yet. returns false if the event has no such occurrence
+		 */
+		boolean moveToDueFrom(long from, long tickMillis) {
+			PrimitiveIterator.OfLong starts = RecurrenceExpander.occurrenceStarts(eventStart, frequency,
+					lastStart, exceptionDays, from + reminderMillis, Long.MAX_VALUE);
+			if (!starts.hasNext()) {
+				return false;
+			}
+			occurrenceStart = starts.nextLong();
+			dueTick = Math.floorDiv(occurrenceStart - reminderMillis, tickMillis);
+			return true;
+		}
+	}
+}
@@ -1,2 +1,2 @@
-javac Event.java Utility.java EventsCalendar.java EventsManager.java
+javac Event.java EventHandle.java EventTimeIndex.java EndingTree.java Occurrence.java RecurrenceExpander.java Agenda.java FenwickTree.java DayCounts.java IntervalIndex.java LatencyHistogram.java EventMetricsMXBean.java EventMetrics.java EventJournal.java EventCodec.java EventPersistence.java EventImporter.java BatchCommands.java EventServer.java EventStore.java PostingList.java NameIndex.java StringDictionary.java NotesIndex.java NotesStore.java ReminderScheduler.java Utility.java EventsCalendar.java EventsManager.java
 java EventsManager
\ No newline at end of file
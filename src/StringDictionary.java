@@ -0,0 +1,139 @@
+/**
+ * StringDictionary.java
+ * Class to keep one copy of each distinct name of the events in the store.
+ * Each distinct string gets an entry with a small id, handed out again once the entry
+ * is freed, and optionally its lower case key, computed once when the entry is made.
+ * Entries count their references: an EventHandle acquires the entry of the name it is
+ * indexed with and releases it when it is removed from the indexes, and an entry is
+ * dropped when its last handle is gone. Notes are kept off the heap by NotesStore.
+ * The events of the store share the strings of the entries, so thousands of events
+ * named "Standup" hold one String between them instead of one each
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+public class StringDictionary {
+	private final boolean keepKeys;
+	// string to its entry, read without locking by find and getKey
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	// id to entry, null for free ids
+	private Entry[] byId = new Entry[16];
+	private int idCount;
+	// ids of dropped entries, given out again before new ones
+	private int[] freeIds = new int[16];
+	private int freeCount;
+
+	private static final class Entry {
+		final int id;
+		final String value;
+		// lower case value, null when the dictionary keeps no keys
+		final String key;
+		int references;
+
+		Entry(int id, String value, String key) {
+			this.id = id;
+			this.value = value;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * @param keepKeys true to compute the lower case key of each string, for names
+	 */
+	public StringDictionary(boolean keepKeys) {
+		this.keepKeys = keepKeys;
+	}
+
+	/*
+	 * returns the id of the entry of a string, making it if there is none, and counts
+	 * a reference to it. Every acquire is matched by a release
+	 */
+	public synchronized int acquire(String value) {
+		Entry entry = entries.get(value);
+		if (entry == null) {
+			int id;
+			if (freeCount > 0) {
+				id = freeIds[--freeCount];
+			} else {
+				if (idCount == byId.length) {
+					byId = Arrays.copyOf(byId, idCount * 2);
+				}
+				id = idCount++;
+			}
+			entry = new Entry(id, value, keepKeys ? getSharedKey(value) : null);
+			byId[id] = entry;
+			entries.put(value, entry);
+		}
+		entry.references++;
+		return entry.id;
+	}
+
+	/*
+	 * removes a reference to an entry, dropping it with the last one
+	 */
+	public synchronized void release(int id) {
+		Entry entry = byId[id];
+		if (--entry.references == 0) {
+			entries.remove(entry.value);
+			byId[id] = null;
+			if (freeCount == freeIds.length) {
+				freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+			}
+			freeIds[freeCount++] = id;
+		}
+	}
+
+	/*
+	 * returns the string of an entry
+	 */
+	public synchronized String get(int id) {
+		return byId[id].value;
+	}
+
+	/*
+	 * returns the lower case key of an entry
+	 */
+	public synchronized String getKey(int id) {
+		return byId[id].key;
+	}
+
+	/*
+	 * returns the lower case key of a string, without making a new one when the
+	 * string has an entry
+	 */
+	public String getKey(String value) {
+		Entry entry = entries.get(value);
+		return entry != null && entry.key != null ? entry.key : value.toLowerCase();
+	}
+
+	/*
+	 * returns the shared copy of a string, null if it has no entry
+	 */
+	public String find(String value) {
+		Entry entry = entries.get(value);
+		return entry != null ? entry.value : null;
+	}
+
+	/*
+	 * returns the number of distinct strings
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/*
+	 * returns the lower case form of a string, shared with the entry of that form
+	 * when there is one, so "Standup" and "standup" have the same key
+	 */
+	private String getSharedKey(String value) {
+		String key = value.toLowerCase();
+		if (key == value) {
+			return value;
+		}
+		Entry entry = entries.get(key);
+		return entry != null ? entry.value : key;
+	}
+}
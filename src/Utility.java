@@ -8,18 +8,181 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.TimeZone;
 
 
 public class Utility {	
+	public static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+	// the day arithmetic here uses the Gregorian calendar for every year, while Date,
+	// SimpleDateFormat and GregorianCalendar switch to the Julian calendar before
+	// October 15, 1582. Both agree from this year on
+	public static final int FIRST_GREGORIAN_YEAR = 1583;
+	public static final int LAST_YEAR = 9999;
+	// the zone dates are entered and shown in. Kept since TimeZone.getDefault() returns a copy
+	private static final TimeZone timeZone = TimeZone.getDefault();
+	private static final ZoneRules zoneRules = timeZone.toZoneId().getRules();
+	// all terminal input goes through one reader. A reader per call would throw away
+	// the input it had buffered ahead, which loses the lines of piped input
+	private static final BufferedReader terminal = new BufferedReader(new InputStreamReader(System.in));
+	
+	/*
+	 * returns the epoch millis at which the given calendar month starts.
+	 * month is zero based like Calendar.MONTH and may run past December
+	 */
+	public static long getMonthStartMillis(int month, int year) {
+		return getMillis(getMonthStartDay(month, year), 0);
+	}
+	
+	/*
+	 * returns the epoch day of the first day of the given calendar month.
+	 * month is zero based like Calendar.MONTH and may run past December
+	 */
+	public static long getMonthStartDay(int month, int year) {
+		return getEpochDay(year + Math.floorDiv(month, 12), Math.floorMod(month, 12), 1);
+	}
+	
+	/*
+	 * returns the number of days from 1970-01-01 to the given date.
+	 * month is zero based like Calendar.MONTH
+	 */
+	public static long getEpochDay(int year, int month, int day) {
+		// shift the year to start in March so the leap day comes last
+		long y = month < Calendar.MARCH ? year - 1 : year;
+		int m = month < Calendar.MARCH ? month + 10 : month - 2;
+		long era = Math.floorDiv(y, 400);
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * m + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+	
+	/*
+	 * returns the local day of an instant, counted in days from 1970-01-01
+	 */
+	public static long getEpochDay(long millis) {
+		return Math.floorDiv(millis + timeZone.getOffset(millis), DAY_MILLIS);
+	}
+	
+	/*
+	 * returns the local time of day of an instant in millis since midnight
+	 */
+	public static int getMillisOfDay(long millis) {
+		return (int) Math.floorMod(millis + timeZone.getOffset(millis), DAY_MILLIS);
+	}
+	
+	/*
+	 * returns the local time of day of an instant in minutes since midnight
+	 */
+	public static int getMinuteOfDay(long millis) {
+		return getMillisOfDay(millis) / 60000;
+	}
+	
+	/*
+	 * returns the instant of a local day and time. Like Calendar, a time that happens
+	 * twice when the clocks go back is taken the second time, and a time skipped when
+	 * they go forward is read with the offset from before, which moves it forward
+	 */
+	public static long getMillis(long epochDay, int millisOfDay) {
+		long localMillis = epochDay * DAY_MILLIS + millisOfDay;
+		// the offsets a day away are the ones before and after any change around this time
+		int offsetAfter = timeZone.getOffset(localMillis + DAY_MILLIS);
+		if (timeZone.getOffset(localMillis - offsetAfter) == offsetAfter) {
+			return localMillis - offsetAfter;
+		}
+		int offsetBefore = timeZone.getOffset(localMillis - DAY_MILLIS);
+		return localMillis - offsetBefore;
+	}
+	
+	/*
+	 * returns true if the offset of the local zone changes in [from, to)
+	 */
+	public static boolean hasOffsetChange(long from, long to) {
+		if (from >= to || zoneRules.isFixedOffset()) {
+			return false;
+		}
+		ZoneOffsetTransition transition = zoneRules.nextTransition(Instant.ofEpochMilli(from).minusMillis(1));
+		return transition != null && transition.getInstant().toEpochMilli() < to;
+	}
+	
+	/*
+	 * returns the year of an epoch day
+	 */
+	public static int getYear(long epochDay) {
+		long dayOfEra = getDayOfEra(epochDay);
+		long yearOfEra = getYearOfEra(dayOfEra);
+		int marchMonth = getMarchMonth(dayOfEra, yearOfEra);
+		long year = Math.floorDiv(epochDay + 719468, 146097) * 400 + yearOfEra;
+		// the year counted from March ends with January and February
+		return (int) (marchMonth >= 10 ? year + 1 : year);
+	}
+	
+	/*
+	 * returns the month of an epoch day, zero based like Calendar.MONTH
+	 */
+	public static int getMonth(long epochDay) {
+		long dayOfEra = getDayOfEra(epochDay);
+		int marchMonth = getMarchMonth(dayOfEra, getYearOfEra(dayOfEra));
+		return marchMonth < 10 ? marchMonth + 2 : marchMonth - 10;
+	}
+	
+	/*
+	 * returns the day of the month of an epoch day, starting at 1
+	 */
+	public static int getDayOfMonth(long epochDay) {
+		long dayOfEra = getDayOfEra(epochDay);
+		long yearOfEra = getYearOfEra(dayOfEra);
+		int dayOfYear = getMarchDayOfYear(dayOfEra, yearOfEra);
+		int marchMonth = (5 * dayOfYear + 2) / 153;
+		return dayOfYear - (153 * marchMonth + 2) / 5 + 1;
+	}
+	
 	/*
-	 * Makes a key from month and year for hash map 
+	 * returns the weekday of an epoch day, Calendar.SUNDAY to Calendar.SATURDAY
 	 */
-	public static String makeMonthYearKey(int month, int year) {
-		// pad with zeroes in front
-		return String.format("%04d", year) + String.format("%02d", month);
+	public static int getDayOfWeek(long epochDay) {
+		// 1970-01-01 was a Thursday
+		return Math.floorMod(epochDay + 4, 7) + Calendar.SUNDAY;
+	}
+	
+	/*
+	 * returns the number of days in a month, month is zero based like Calendar.MONTH
+	 */
+	public static int getMonthLength(int year, int month) {
+		switch (month) {
+		case Calendar.FEBRUARY:
+			boolean leapYear = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+			return leapYear ? 29 : 28;
+		case Calendar.APRIL:
+		case Calendar.JUNE:
+		case Calendar.SEPTEMBER:
+		case Calendar.NOVEMBER:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+	
+	// the inverse of getEpochDay(year, month, day), on years starting in March
+	private static long getDayOfEra(long epochDay) {
+		long shifted = epochDay + 719468;
+		return shifted - Math.floorDiv(shifted, 146097) * 146097;
+	}
+	
+	private static long getYearOfEra(long dayOfEra) {
+		return (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+	}
+	
+	private static int getMarchDayOfYear(long dayOfEra, long yearOfEra) {
+		return (int) (dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100));
+	}
+	
+	private static int getMarchMonth(long dayOfEra, long yearOfEra) {
+		return (5 * getMarchDayOfYear(dayOfEra, yearOfEra) + 2) / 153;
 	}
 	
 	/*
@@ -34,7 +197,9 @@ public class Utility {
 				String dateString = getDateFromUser(datePrompt);
 				String timeString = getTimeFromUser(timePrompt);
 				date = dateTimeFormat.parse(dateString + " " + timeString);
-				validInput = true;
+				validInput = Event.isInDateRange(date.getTime());
+				if (!validInput)
+					System.out.println("Date out of range, events start before the year 10000. Enter again.");
 			} catch (ParseException p) {
 				System.out.println("Date or time format not valid. Enter again.");
 			}
@@ -64,6 +229,25 @@ public class Utility {
 		return dateString;
 	}
 	
+	/*
+	 * gets a date from user through terminal, returns its local day
+	 */
+	public static long getEpochDayFromUser(String prompt) {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+		while (true) {
+			long millis;
+			try {
+				millis = dateFormat.parse(getDateFromUser(prompt)).getTime();
+			} catch (ParseException p) {
+				// getDateFromUser only returns dates that parse
+				throw new IllegalStateException(p);
+			}
+			if (Event.isInDateRange(millis))
+				return getEpochDay(millis);
+			System.out.println("Date out of range, enter a date before the year 10000.");
+		}
+	}
+	
 	/*
 	 * gets time from user through terminal
 	 */
@@ -94,8 +278,7 @@ public class Utility {
 		while(userInput.equals("")) {
 		    try {
 		      System.out.print(prompt);
-		      userInput = new BufferedReader(new InputStreamReader(System.in))
-		        .readLine();
+		      userInput = terminal.readLine();
 		      if (userInput.equals(""))
 		    	  System.out.println("Field cannot be blank.");
 		    } catch (IOException e) {
@@ -166,14 +349,17 @@ public class Utility {
   		System.out.println("|        2. Notes                                         |");
   		System.out.println("|        3. Reminder                                      |");
   		System.out.println("|        4. Frequency                                     |");
-  		System.out.println("|        5. None                                          |");
+  		System.out.println("|        5. Duration                                      |");
+  		System.out.println("|        6. End of recurrence                             |");
+  		System.out.println("|        7. Skip a date                                   |");
+  		System.out.println("|        8. None                                          |");
   		System.out.println("===========================================================");
   		
   		int userInput = 0;
   		boolean validInput = false;
   		while(!validInput) {			
-			userInput = Utility.getIntegerFromTerminal("Enter option (1-5): ");
-			if(userInput >= 1 && userInput <= 5) {
+			userInput = Utility.getIntegerFromTerminal("Enter option (1-8): ");
+			if(userInput >= 1 && userInput <= 8) {
 				return userInput;
 			} else
 				System.out.println("Invalid Input.");			
@@ -224,20 +410,67 @@ public class Utility {
 	public static void pressEnterToContinue() { 
 	    System.out.println("Press Enter to continue...");	        
 	    try {
-	    	String userInput = new BufferedReader(new InputStreamReader(System.in))
-	        .readLine();
+	    	terminal.readLine();
 	    }  
 	    catch(IOException e) {
 	    	System.err.println(e.getMessage());
 	    }  
 	}
 	
+	/*
+	 * appends a local day as MM/dd/yyyy, the format dates are entered in
+	 */
+	public static StringBuilder appendDate(StringBuilder text, long epochDay) {
+		appendDigits(text, getMonth(epochDay) + 1, 2).append('/');
+		appendDigits(text, getDayOfMonth(epochDay), 2).append('/');
+		return appendDigits(text, getYear(epochDay), 4);
+	}
+	
+	/*
+	 * appends local days as MM/dd/yyyy separated by spaces
+	 */
+	public static StringBuilder appendDates(StringBuilder text, long[] epochDays) {
+		for (int i = 0; i < epochDays.length; i++) {
+			if (i > 0)
+				text.append(' ');
+			appendDate(text, epochDays[i]);
+		}
+		return text;
+	}
+	
+	/*
+	 * appends a time of day as HH:mm
+	 */
+	public static StringBuilder appendTime(StringBuilder text, int minuteOfDay) {
+		appendDigits(text, minuteOfDay / 60, 2).append(':');
+		return appendDigits(text, minuteOfDay % 60, 2);
+	}
+	
+	/*
+	 * appends a number padded with zeros to the given number of digits
+	 */
+	private static StringBuilder appendDigits(StringBuilder text, int value, int digits) {
+		int limit = 1;
+		for (int i = 1; i < digits; i++) {
+			limit *= 10;
+		}
+		for (; limit > 1 && value < limit; limit /= 10) {
+			text.append('0');
+		}
+		return text.append(value);
+	}
+	
+	/*
+	 * returns the reader all terminal input is read through
+	 */
+	public static BufferedReader getTerminalReader() {
+		return terminal;
+	}
+	
 	/*
 	 * returns the day of the month for a given event
 	 */
 	public static int getEventDayOfMonth(Event event) {
-		Calendar eventDate = new GregorianCalendar();
-		eventDate.setTime(event.getDate());
-		return eventDate.get(Calendar.DAY_OF_MONTH);
+		return getDayOfMonth(event.getEpochDay());
 	}
 }
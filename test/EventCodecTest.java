@@ -0,0 +1,176 @@
+/**
+ * EventCodecTest.java
+ * Checks that events written by an EventCodec.Encoder are read back by a Decoder with
+ * every field they were written with: starts before and after 1970, in whole minutes
+ * or not, names and notes repeated or outside ASCII, recurrences with an end and
+ * skipped days, and enough events for several blocks. Also checks that a Decoder
+ * gives new ids when asked to, reads nothing past the end of the events, and turns
+ * down streams it cannot read, those of other versions included.
+ * Prints the checks that failed and exits with status 1 if there are any
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+
+public class EventCodecTest {
+	private static final long MINUTE = 60000;
+	private static final long DAY = 24 * 60 * MINUTE;
+	// noon of January 15, 2030
+	private static final long NOW = Utility.getMillis(Utility.getMonthStartDay(0, 2030) + 14, 12 * 3600000);
+
+	private static int failures;
+
+	public static void main(String[] args) throws IOException {
+		roundTripKeepsEveryField();
+		newIdsAreGiven();
+		nothingIsReadPastTheEnd();
+		unreadableStreamsAreTurnedDown();
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("EventCodecTest passed");
+	}
+
+	private static void roundTripKeepsEveryField() throws IOException {
+		List<Event> events = createEvents();
+		List<Event> read = decode(encode(events), true);
+		check(read.size() == events.size(), "read " + read.size() + " events instead of " + events.size());
+		for (int i = 0; i < Math.min(events.size(), read.size()); i++) {
+			checkSame(events.get(i), read.get(i));
+		}
+	}
+
+	private static void newIdsAreGiven() throws IOException {
+		List<Event> events = createEvents();
+		int nextId = Event.getNextId();
+		List<Event> read = decode(encode(events), false);
+		for (int i = 0; i < read.size(); i++) {
+			check(read.get(i).getId() == nextId + i, "event " + i + " was read with id " + read.get(i).getId()
+					+ " instead of " + (nextId + i));
+		}
+	}
+
+	/*
+	 * the events of a snapshot are followed by its checksum, which the decoder must
+	 * leave for the caller
+	 */
+	private static void nothingIsReadPastTheEnd() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		EventCodec.Encoder encoder = new EventCodec.Encoder(bytes);
+		encoder.write(new Event(new Date(NOW), "Lunch", "", 0, Event.Frequency.DAILY));
+		encoder.finish();
+		check(encoder.getBytesWritten() == bytes.size(), "the encoder counted " + encoder.getBytesWritten()
+				+ " bytes but wrote " + bytes.size());
+		bytes.write(42);
+		InputStream input = new ByteArrayInputStream(bytes.toByteArray());
+		EventCodec.Decoder decoder = new EventCodec.Decoder(input, true);
+		check(decoder.read() != null, "the event was not read");
+		check(decoder.read() == null, "an event was read after the last one");
+		check(input.read() == 42, "the decoder read past the end of the events");
+	}
+
+	private static void unreadableStreamsAreTurnedDown() throws IOException {
+		byte[] stream = encode(createEvents());
+		expectIOException(new byte[] { 'E', 'V', 'X', (byte) EventCodec.VERSION }, "a stream of another kind was read");
+		byte[] older = stream.clone();
+		older[3] = (byte) (EventCodec.VERSION - 1);
+		expectIOException(older, "a stream of an older version was read");
+		expectIOException(new byte[] { 'E', 'V', 'B', (byte) (EventCodec.VERSION + 1) },
+				"a stream of a newer version was read");
+		expectIOException(Arrays.copyOf(stream, stream.length / 2), "a truncated stream was read");
+	}
+
+	/*
+	 * returns events of every frequency, in start order and out of it
+	 */
+	private static List<Event> createEvents() {
+		List<Event> events = new ArrayList<Event>();
+		events.add(new Event(new Date(NOW), "Lunch", "", 0, Event.Frequency.NONE));
+		events.add(new Event(new Date(-1000 * DAY + 1234), "Before 1970", "not in whole minutes", 5,
+				Event.Frequency.NONE, 90));
+		events.add(new Event(new Date(NOW + 30 * MINUTE), "Lunch", "the same name again", 10,
+				Event.Frequency.NONE));
+
+		Event standup = new Event(new Date(NOW - 60 * DAY), "Standup", "daily, until next month", 15,
+				Event.Frequency.DAILY, 15);
+		long day = standup.getEpochDay();
+		standup.setRecurrence(NOW + 30 * DAY, 0, new long[] { day + 2, day + 3, day + 40 });
+		events.add(standup);
+		Event course = new Event(new Date(NOW), "Course", "ten weeks", 0, Event.Frequency.WEEKLY, 120);
+		course.setRecurrence(Long.MAX_VALUE, 10, new long[] { course.getEpochDay() + 14 });
+		events.add(course);
+		Event review = new Event(new Date(NOW - DAY), "Review", "caf\u00e9 \u20ac \ud83d\udcc5", 60,
+				Event.Frequency.MONTHLY, 30);
+		review.setRecurrence(NOW - 400 * DAY, 0, RecurrenceExpander.NO_DAYS);
+		events.add(review);
+		events.add(new Event(new Date(NOW), "Birthday", "", 1440, Event.Frequency.YEARLY));
+		events.add(new Event(new Date(NOW), "Standup", "daily, until next month", 0, Event.Frequency.DAILY));
+
+		// about 200KB of records, written in several blocks
+		char[] text = new char[100];
+		for (int i = 0; i < 2000; i++) {
+			Arrays.fill(text, (char) ('a' + i % 26));
+			events.add(new Event(new Date(NOW + i * MINUTE), "Meeting " + i, i + new String(text), 0,
+					Event.Frequency.NONE, 30));
+		}
+		return events;
+	}
+
+	private static byte[] encode(List<Event> events) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		EventCodec.Encoder encoder = new EventCodec.Encoder(bytes);
+		for (Event event : events) {
+			encoder.write(event);
+		}
+		encoder.finish();
+		return bytes.toByteArray();
+	}
+
+	private static List<Event> decode(byte[] stream, boolean keepIds) throws IOException {
+		EventCodec.Decoder decoder = new EventCodec.Decoder(new ByteArrayInputStream(stream), keepIds);
+		List<Event> events = new ArrayList<Event>();
+		for (Event event = decoder.read(); event != null; event = decoder.read()) {
+			events.add(event);
+		}
+		return events;
+	}
+
+	private static void checkSame(Event written, Event read) {
+		String event = "event " + written.getId() + " ";
+		check(read.getId() == written.getId(), event + "was read with id " + read.getId());
+		check(read.getStartMillis() == written.getStartMillis(), event + "was read starting at " + read.getDate());
+		check(read.getName().equals(written.getName()), event + "was read named " + read.getName());
+		check(read.getNotes().equals(written.getNotes()), event + "was read with notes " + read.getNotes());
+		check(read.getReminder() == written.getReminder(), event + "was read with a reminder of " + read.getReminder());
+		check(read.getFrequency() == written.getFrequency(), event + "was read " + read.getFrequency());
+		check(read.getDuration() == written.getDuration(), event + "was read lasting " + read.getDuration());
+		check(read.getUntil() == written.getUntil(), event + "was read until " + read.getUntil());
+		check(read.getCount() == written.getCount(), event + "was read with a count of " + read.getCount());
+		check(Arrays.equals(read.getExceptionDays(), written.getExceptionDays()),
+				event + "was read skipping " + Arrays.toString(read.getExceptionDays()));
+	}
+
+	private static void expectIOException(byte[] stream, String message) {
+		try {
+			decode(stream, true);
+			check(false, message);
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static void check(boolean passed, String message) {
+		if (!passed) {
+			failures++;
+			System.out.println("FAILED " + message);
+		}
+	}
+}
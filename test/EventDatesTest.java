@@ -0,0 +1,163 @@
+/**
+ * EventDatesTest.java
+ * Checks that events starting or skipping days outside the range the indexes can count
+ * are turned down before anything changes: by addToMaps, addAllToMaps, updateInMaps and
+ * the import of a CSV file, and that the store stays whole and usable afterwards.
+ * Prints the checks that failed and exits with status 1 if there are any
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+
+public class EventDatesTest {
+	// noon of January 15, 2030
+	private static final long NOW = Utility.getMillis(Utility.getMonthStartDay(0, 2030) + 14, 12 * 3600000);
+	// about 3 million years from now, further than DayCounts can count from NOW
+	private static final long FAR = NOW + 1100000000L * Utility.DAY_MILLIS;
+
+	private static int failures;
+
+	public static void main(String[] args) throws IOException {
+		farStartIsNotAdded();
+		farBatchIsNotAdded();
+		farUpdateLeavesEvent();
+		farSkippedDayLeavesEvent();
+		farRowsAreNotImported();
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("EventDatesTest passed");
+	}
+
+	private static void farStartIsNotAdded() {
+		final EventsManager eventsManager = newStore();
+		expectRejected(new Runnable() {
+			@Override
+			public void run() {
+				eventsManager.addToMaps(new Event(new Date(FAR), "Far", "", 0, Event.Frequency.NONE));
+			}
+		}, "an event 3 million years away was added");
+		check(EventStore.handles.size() == 1, "the store has " + EventStore.handles.size() + " events instead of 1");
+		check(eventsManager.searchEventsByName("Far", 10).isEmpty(), "the far event is in the name index");
+		checkUsable(eventsManager);
+	}
+
+	private static void farBatchIsNotAdded() {
+		final EventsManager eventsManager = newStore();
+		final List<Event> batch = new ArrayList<Event>();
+		batch.add(new Event(new Date(NOW + Utility.DAY_MILLIS), "Near", "", 0, Event.Frequency.NONE));
+		batch.add(new Event(new Date(FAR), "Far", "", 0, Event.Frequency.NONE));
+		expectRejected(new Runnable() {
+			@Override
+			public void run() {
+				eventsManager.addAllToMaps(batch);
+			}
+		}, "a batch with an event 3 million years away was added");
+		check(EventStore.handles.size() == 1, "the store has " + EventStore.handles.size() + " events instead of 1");
+		check(eventsManager.searchEventsByName("Near", 10).isEmpty(), "part of a turned down batch was added");
+		checkUsable(eventsManager);
+	}
+
+	private static void farUpdateLeavesEvent() {
+		final EventsManager eventsManager = newStore();
+		final Event event = EventStore.handles.values().iterator().next().getEvent();
+		expectRejected(new Runnable() {
+			@Override
+			public void run() {
+				eventsManager.updateInMaps(event, new Date(FAR), event.getName(), event.getNotes(),
+						event.getReminder(), event.getFrequency());
+			}
+		}, "an event was moved 3 million years away");
+		check(event.getStartMillis() == NOW, "the turned down update changed the event to " + event.getDate());
+		checkListed(eventsManager, event);
+		checkUsable(eventsManager);
+	}
+
+	private static void farSkippedDayLeavesEvent() {
+		final EventsManager eventsManager = newStore();
+		final Event event = EventStore.handles.values().iterator().next().getEvent();
+		final long farDay = Utility.getEpochDay(FAR);
+		expectRejected(new Runnable() {
+			@Override
+			public void run() {
+				eventsManager.updateInMaps(event, event.getDate(), event.getName(), event.getNotes(),
+						event.getReminder(), event.getFrequency(), event.getDuration(),
+						Long.MAX_VALUE, 0, new long[] { farDay });
+			}
+		}, "a day 3 million years away was skipped");
+		check(event.getExceptionDays().length == 0, "the turned down update changed the skipped days");
+		checkListed(eventsManager, event);
+		checkUsable(eventsManager);
+	}
+
+	private static void farRowsAreNotImported() throws IOException {
+		final EventsManager eventsManager = newStore();
+		File file = File.createTempFile("events", ".csv");
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+			writer.write("1/20/2030,10:00,Near\n");
+			writer.write("1/20/3002030,10:00,Far\n");
+			writer.write("1/21/2030,10:00,Skipping,,,DAILY,,,,1/22/3002030\n");
+			writer.close();
+			EventImporter.Result result = new EventImporter(eventsManager, 1).importFile(file);
+			check(result.getImported() == 1, "imported " + result.getImported() + " rows instead of 1");
+			check(result.getRejected() == 2, "rejected " + result.getRejected() + " rows instead of 2");
+		} finally {
+			file.delete();
+		}
+		check(EventStore.handles.size() == 2, "the store has " + EventStore.handles.size() + " events instead of 2");
+		checkUsable(eventsManager);
+	}
+
+	/*
+	 * returns an empty store holding one daily event starting at NOW
+	 */
+	private static EventsManager newStore() {
+		EventStore.initialize();
+		EventsManager eventsManager = new EventsManager();
+		eventsManager.addToMaps(new Event(new Date(NOW), "Daily", "", 0, Event.Frequency.DAILY));
+		return eventsManager;
+	}
+
+	/*
+	 * the store still takes new events and lists them
+	 */
+	private static void checkUsable(EventsManager eventsManager) {
+		Event event = new Event(new Date(NOW + 400 * Utility.DAY_MILLIS), "Later", "", 0, Event.Frequency.NONE);
+		eventsManager.addToMaps(event);
+		long day = Utility.getEpochDay(event.getStartMillis());
+		EventsManager.MonthEvents month = eventsManager.getMonthEvents(Utility.getMonth(day), Utility.getYear(day));
+		check(month.nonRecurring.contains(event), "an event added afterwards is not listed");
+	}
+
+	private static void checkListed(EventsManager eventsManager, Event event) {
+		check(EventStore.handles.get(event.getId()) != null, "the event is no longer in the store");
+		EventsManager.MonthEvents month = eventsManager.getMonthEvents(0, 2030);
+		check(month.daily.contains(event), "the event is no longer listed in January 2030");
+	}
+
+	private static void expectRejected(Runnable change, String message) {
+		try {
+			change.run();
+			check(false, message);
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static void check(boolean passed, String message) {
+		if (!passed) {
+			failures++;
+			System.out.println("FAILED " + message);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * EventTimeIndexTest.java
+ * Checks that EventTimeIndex.activeBetween finds the recurrences running in a window,
+ * in start order, without looking at the recurrences with an end that ended before the
+ * window or start after it, apart from the few on the way down the tree. The handles
+ * count the reads of their start and of the start of their last occurrence.
+ * Prints the checks that failed and exits with status 1 if there are any
+ */
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+
+public class EventTimeIndexTest {
+	private static final long DAY = 24 * 3600000L;
+	private static final int OTHERS = 1000;
+	// 9:00 on June 1, 2030
+	private static final long NOW = Utility.getMillis(Utility.getMonthStartDay(5, 2030), 9 * 3600000);
+
+	private static int failures;
+
+	public static void main(String[] args) {
+		EventStore.initialize();
+		onlyRunningRecurrencesAreLookedAt();
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("EventTimeIndexTest passed");
+	}
+
+	/*
+	 * daily standups that ended a year ago and others starting next year, one that
+	 * ends next month and one without an end. The month of June finds the two running
+	 * ones, the one without an end first as it started earlier
+	 */
+	private static void onlyRunningRecurrencesAreLookedAt() {
+		EventTimeIndex index = new EventTimeIndex();
+		List<CountingHandle> others = new ArrayList<CountingHandle>();
+		for (int i = 0; i < OTHERS; i++) {
+			long start = i % 2 == 0 ? NOW - 2 * 365 * DAY : NOW + 365 * DAY;
+			Event event = new Event(new Date(start), "Standup", "", 0, Event.Frequency.DAILY);
+			event.setRecurrence(start + 365 * DAY, 0, RecurrenceExpander.NO_DAYS);
+			CountingHandle handle = new CountingHandle(event);
+			others.add(handle);
+			index.add(handle);
+		}
+		Event endless = new Event(new Date(NOW - 60 * DAY), "Standup", "", 0, Event.Frequency.DAILY);
+		index.add(new CountingHandle(endless));
+		Event ending = new Event(new Date(NOW - 30 * DAY), "Standup", "", 0, Event.Frequency.DAILY);
+		ending.setRecurrence(NOW + 30 * DAY, 0, RecurrenceExpander.NO_DAYS);
+		index.add(new CountingHandle(ending));
+		for (CountingHandle handle : others) {
+			handle.reads = 0;
+		}
+
+		List<Event> active = new ArrayList<Event>();
+		for (Event event : index.activeBetween(NOW, NOW + 30 * DAY)) {
+			active.add(event);
+		}
+		check(active.size() == 2, "expected the 2 running standups but got " + active.size());
+		check(active.size() == 2 && active.get(0) == endless && active.get(1) == ending,
+				"the running standups are not in start order");
+		int lookedAt = 0;
+		for (CountingHandle handle : others) {
+			lookedAt += handle.reads;
+		}
+		check(lookedAt < OTHERS / 20, "looked at the other standups " + lookedAt + " times");
+
+		// a window while the ended ones were running still finds them
+		int past = 0;
+		for (Event event : index.activeBetween(NOW - 400 * DAY, NOW - 399 * DAY)) {
+			past++;
+		}
+		check(past == OTHERS / 2, "expected " + OTHERS / 2 + " standups 400 days ago but got " + past);
+	}
+
+	/*
+	 * A handle counting the reads of its start and of the start of its last occurrence
+	 */
+	private static class CountingHandle extends EventHandle {
+		int reads;
+
+		CountingHandle(Event event) {
+			super(event);
+		}
+
+		@Override
+		public long getStartMillis() {
+			reads++;
+			return super.getStartMillis();
+		}
+
+		@Override
+		public long getLastStartMillis() {
+			reads++;
+			return super.getLastStartMillis();
+		}
+	}
+
+	private static void check(boolean passed, String message) {
+		if (!passed) {
+			failures++;
+			System.out.println("FAILED " + message);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * IntervalIndexTest.java
+ * Checks that IntervalIndex finds the occurrences of recurrences with an end without
+ * visiting the recurrences that ended before the window, and still finds the ones that
+ * have not ended. An event is visited when its occurrences are expanded, which reads
+ * the skipped days of its handle, so the handles count those reads. Recurrences that
+ * start after the window are not even looked at, apart from the few on the way down
+ * the tree, so the handles count the reads of their start too.
+ * Prints the checks that failed and exits with status 1 if there are any
+ */
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+
+public class IntervalIndexTest {
+	private static final long HOUR = 3600000;
+	private static final long DAY = 24 * HOUR;
+	private static final int ENDED = 1000;
+	// 9:00 on June 1, 2030
+	private static final long NOW = Utility.getMillis(Utility.getMonthStartDay(5, 2030), 9 * 3600000);
+
+	private static int failures;
+
+	public static void main(String[] args) {
+		EventStore.initialize();
+		endedRecurrencesAreNotVisited();
+		laterRecurrencesAreNotLookedAt();
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("IntervalIndexTest passed");
+	}
+
+	/*
+	 * daily standups at 9:00 that ended a year ago, one that ends next month and one
+	 * without an end. A window this morning finds the two running ones and looks at
+	 * none of the ended ones, though they are all at the same time of day
+	 */
+	private static void endedRecurrencesAreNotVisited() {
+		IntervalIndex index = new IntervalIndex();
+		List<CountingHandle> ended = new ArrayList<CountingHandle>();
+		for (int i = 0; i < ENDED; i++) {
+			Event event = new Event(new Date(NOW - 2 * 365 * DAY), "Standup", "", 0, Event.Frequency.DAILY, 15);
+			event.setRecurrence(NOW - 365 * DAY, 0, RecurrenceExpander.NO_DAYS);
+			CountingHandle handle = new CountingHandle(event);
+			ended.add(handle);
+			index.add(handle);
+		}
+		Event ending = new Event(new Date(NOW - 30 * DAY), "Standup", "", 0, Event.Frequency.DAILY, 15);
+		ending.setRecurrence(NOW + 30 * DAY, 0, RecurrenceExpander.NO_DAYS);
+		index.add(new CountingHandle(ending));
+		Event endless = new Event(new Date(NOW - 30 * DAY), "Standup", "", 0, Event.Frequency.DAILY, 15);
+		index.add(new CountingHandle(endless));
+
+		List<Occurrence> busy = index.getBusy(NOW - HOUR, NOW + HOUR);
+		check(busy.size() == 2, "expected the 2 running standups but got " + busy.size() + " occurrences");
+		for (Occurrence occurrence : busy) {
+			check(occurrence.getStartMillis() == NOW, "found an occurrence at " + new Date(occurrence.getStartMillis()));
+			check(occurrence.getEvent() == ending || occurrence.getEvent() == endless,
+					"found a standup that ended");
+		}
+		check(!index.isFree(NOW, NOW + HOUR), "the window of the running standups is free");
+		int visited = 0;
+		for (CountingHandle handle : ended) {
+			visited += handle.reads;
+		}
+		check(visited == 0, "visited the ended standups " + visited + " times");
+
+		// a window while they were running still finds them
+		List<Occurrence> past = index.getBusy(NOW - 400 * DAY - HOUR, NOW - 400 * DAY + HOUR);
+		check(past.size() == ENDED, "expected " + ENDED + " standups 400 days ago but got " + past.size());
+	}
+
+	/*
+	 * daily standups at 9:00 from next year to the year after, and one running now.
+	 * A window this morning finds the running one and looks at the start of only a
+	 * few of the later ones
+	 */
+	private static void laterRecurrencesAreNotLookedAt() {
+		IntervalIndex index = new IntervalIndex();
+		List<CountingHandle> later = new ArrayList<CountingHandle>();
+		for (int i = 0; i < ENDED; i++) {
+			Event event = new Event(new Date(NOW + 365 * DAY), "Standup", "", 0, Event.Frequency.DAILY, 15);
+			event.setRecurrence(NOW + 2 * 365 * DAY, 0, RecurrenceExpander.NO_DAYS);
+			CountingHandle handle = new CountingHandle(event);
+			later.add(handle);
+			index.add(handle);
+		}
+		Event running = new Event(new Date(NOW - 30 * DAY), "Standup", "", 0, Event.Frequency.DAILY, 15);
+		running.setRecurrence(NOW + 30 * DAY, 0, RecurrenceExpander.NO_DAYS);
+		index.add(new CountingHandle(running));
+		for (CountingHandle handle : later) {
+			handle.starts = 0;
+		}
+
+		List<Occurrence> busy = index.getBusy(NOW - HOUR, NOW + HOUR);
+		check(busy.size() == 1 && busy.get(0).getEvent() == running,
+				"expected the running standup but got " + busy.size() + " occurrences");
+		int lookedAt = 0;
+		for (CountingHandle handle : later) {
+			lookedAt += handle.starts;
+			check(handle.reads == 0, "visited a standup starting next year");
+		}
+		check(lookedAt < ENDED / 20, "looked at the start of the later standups " + lookedAt + " times");
+	}
+
+	/*
+	 * A handle counting the reads of its skipped days and of its start
+	 */
+	private static class CountingHandle extends EventHandle {
+		int reads;
+		int starts;
+
+		CountingHandle(Event event) {
+			super(event);
+		}
+
+		@Override
+		public long[] getExceptionDays() {
+			reads++;
+			return super.getExceptionDays();
+		}
+
+		@Override
+		public long getStartMillis() {
+			starts++;
+			return super.getStartMillis();
+		}
+	}
+
+	private static void check(boolean passed, String message) {
+		if (!passed) {
+			failures++;
+			System.out.println("FAILED " + message);
+		}
+	}
+}
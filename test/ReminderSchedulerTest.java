@@ -0,0 +1,101 @@
+/**
+ * ReminderSchedulerTest.java
+ * Checks which reminders ReminderScheduler fires: none for events without a reminder,
+ * none whose reminder time passed before the event was scheduled, even if the
+ * occurrence has not started yet, and one per occurrence afterwards.
+ * Prints the checks that failed and exits with status 1 if there are any
+ */
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+
+public class ReminderSchedulerTest {
+	private static final long MINUTE = 60000;
+	private static final long HOUR = 60 * MINUTE;
+	// noon of January 15, 2030, away from any clock change
+	private static final long NOW = Utility.getMillis(Utility.getMonthStartDay(0, 2030) + 14, 12 * 3600000);
+
+	private static int failures;
+
+	public static void main(String[] args) {
+		noReminderIsNotScheduled();
+		passedReminderIsNotFired();
+		reminderLongerThanPeriodFiresOnce();
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("ReminderSchedulerTest passed");
+	}
+
+	/*
+	 * an event with a reminder of 0 minutes gets no reminder
+	 */
+	private static void noReminderIsNotScheduled() {
+		List<Occurrence> fired = new ArrayList<Occurrence>();
+		ReminderScheduler scheduler = newScheduler(fired);
+		scheduler.schedule(new Event(new Date(NOW + HOUR), "Lunch", "", 0, Event.Frequency.DAILY));
+		check(scheduler.size() == 0, "an event without a reminder has a pending reminder");
+		scheduler.advanceTo(NOW + 3 * 24 * HOUR);
+		check(fired.isEmpty(), "an event without a reminder was reminded " + fired.size() + " times");
+	}
+
+	/*
+	 * an event starting in 10 minutes with a reminder 30 minutes before it is not
+	 * reminded late
+	 */
+	private static void passedReminderIsNotFired() {
+		List<Occurrence> fired = new ArrayList<Occurrence>();
+		ReminderScheduler scheduler = newScheduler(fired);
+		scheduler.schedule(new Event(new Date(NOW + 10 * MINUTE), "Call", "", 30, Event.Frequency.NONE));
+		check(scheduler.size() == 0, "a reminder due before now is pending");
+		scheduler.advanceTo(NOW + HOUR);
+		check(fired.isEmpty(), "a reminder due before now was fired");
+	}
+
+	/*
+	 * a daily event reminded two days ahead: the occurrences of the next two days are
+	 * past their reminder, the first reminder is for the day after, and each reminder
+	 * fires once at its time
+	 */
+	private static void reminderLongerThanPeriodFiresOnce() {
+		List<Occurrence> fired = new ArrayList<Occurrence>();
+		ReminderScheduler scheduler = newScheduler(fired);
+		long start = NOW - 5 * 24 * HOUR + HOUR;
+		scheduler.schedule(new Event(new Date(start), "Report", "", 48 * 60, Event.Frequency.DAILY));
+		scheduler.advanceTo(NOW + 30 * MINUTE);
+		check(fired.isEmpty(), "reminders due before now were fired: " + fired.size());
+
+		scheduler.advanceTo(NOW + HOUR + 2000);
+		check(fired.size() == 1, "expected 1 reminder at its time but got " + fired.size());
+		if (fired.size() == 1) {
+			check(fired.get(0).getStartMillis() == NOW + 49 * HOUR,
+					"reminded of the occurrence at " + new Date(fired.get(0).getStartMillis()));
+		}
+
+		scheduler.advanceTo(NOW + 25 * HOUR + 2000);
+		check(fired.size() == 2, "expected 2 reminders a day later but got " + fired.size());
+		if (fired.size() == 2) {
+			check(fired.get(1).getStartMillis() == NOW + 73 * HOUR,
+					"reminded of the occurrence at " + new Date(fired.get(1).getStartMillis()));
+		}
+	}
+
+	private static ReminderScheduler newScheduler(final List<Occurrence> fired) {
+		return new ReminderScheduler(new ReminderScheduler.Sink() {
+			@Override
+			public void remind(Occurrence occurrence) {
+				fired.add(occurrence);
+			}
+		}, ReminderScheduler.DEFAULT_TICK_MILLIS, NOW);
+	}
+
+	private static void check(boolean passed, String message) {
+		if (!passed) {
+			failures++;
+			System.out.println("FAILED " + message);
+		}
+	}
+}
@@ -0,0 +1,6 @@
+javac -sourcepath .;..\src ReminderSchedulerTest.java IntervalIndexTest.java EventDatesTest.java EventCodecTest.java EventTimeIndexTest.java
+java -cp .;..\src ReminderSchedulerTest
+java -cp .;..\src IntervalIndexTest
+java -cp .;..\src EventTimeIndexTest
+java -cp .;..\src EventDatesTest
+java -cp .;..\src EventCodecTest
\ No newline at end of file